@@ -0,0 +1,9 @@
+package db.mysql.migration;
+
+import edu.msu.nscl.olog.AttachmentBackfill;
+
+/**
+ * Records the attachments stored before the attachments table existed.
+ */
+public class V2_14_1__Backfill_attachments extends AttachmentBackfill {
+}
@@ -4,6 +4,7 @@
  */
 package edu.msu.nscl.olog;
 
+import java.io.File;
 import java.io.InputStream;
 
 /**
@@ -20,6 +21,7 @@ public class Attachment {
         private String encoding;
         private String fileName;
         private Long fileSize;
+        private File file;
         
         public void setContent(InputStream content){
             this.content = content;
@@ -59,5 +61,20 @@ public class Attachment {
         
         public String getEncoding(){
             return encoding;
-        }  
+        }
+
+        /**
+         * @param file local file holding the content, if the repository
+         * keeps it in a file data store
+         */
+        public void setFile(File file){
+            this.file = file;
+        }
+
+        /**
+         * @return local file holding the content, or null
+         */
+        public File getFile(){
+            return file;
+        }
 }
@@ -0,0 +1,111 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import org.apache.jackrabbit.JcrConstants;
+import com.googlecode.flyway.core.api.migration.jdbc.JdbcMigration;
+
+/**
+ * Fills the attachments table from the attachments already stored in the
+ * repository. Each migration tree runs it through its own
+ * V2_14_1__Backfill_attachments class; it needs the repository, which
+ * OlogContextListener opens before migrating. With the repository disabled
+ * (olog/jcrEnabled = false) there is nothing to backfill.
+ *
+ * @author berryman
+ */
+public class AttachmentBackfill implements JdbcMigration {
+
+    private static final Logger log = Logger.getLogger(AttachmentBackfill.class.getName());
+    private static final int BATCH_SIZE = 100;
+    private static final String INSERT = "INSERT INTO attachments"
+            + " (entry_id, file_name, mime_type, file_size, thumbnail, content_hash, path, created)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Override
+    public void migrate(Connection connection) throws Exception {
+        if (!OlogConfig.getBoolean("olog/jcrEnabled", true)) {
+            // No repository, so no attachments to backfill
+            log.info("Repository disabled (olog/jcrEnabled), no attachments to backfill");
+            return;
+        }
+        if (JCRUtil.getRepository() == null) {
+            throw new IllegalStateException("The attachments backfill reads the repository;"
+                    + " run it by starting the application");
+        }
+        long start = System.currentTimeMillis();
+        Timestamp now = new Timestamp(start);
+        int count = 0;
+        Session session = JCRUtil.getReadSession();
+        PreparedStatement insert = connection.prepareStatement(INSERT);
+        try {
+            Node rn = session.getRootNode();
+            NodeIterator folders = rn.getNodes();
+            while (folders.hasNext()) {
+                Node folder = folders.nextNode();
+                Long entryId;
+                try {
+                    entryId = Long.valueOf(folder.getName());
+                } catch (NumberFormatException ex) {
+                    // thumbnails and system nodes
+                    continue;
+                }
+                NodeIterator files = folder.getNodes();
+                while (files.hasNext()) {
+                    Node file = files.nextNode();
+                    Node content = file.getNode(JcrConstants.JCR_CONTENT);
+                    javax.jcr.Property data = content.getProperty(JcrConstants.JCR_DATA);
+                    insert.setLong(1, entryId);
+                    insert.setString(2, file.getName());
+                    insert.setString(3, content.getProperty(JcrConstants.JCR_MIMETYPE).getString());
+                    insert.setLong(4, data.getLength());
+                    insert.setBoolean(5, rn.hasNode("thumbnails/" + entryId + "/" + file.getName()));
+                    insert.setString(6, hash(data.getBinary()));
+                    insert.setString(7, file.getPath());
+                    insert.setTimestamp(8, now);
+                    insert.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        } finally {
+            insert.close();
+            JCRUtil.release(session);
+        }
+        log.log(Level.INFO, "Recorded {0} attachments in {1} ms",
+                new Object[]{count, System.currentTimeMillis() - start});
+    }
+
+    private static String hash(Binary bin) throws RepositoryException, IOException {
+        MessageDigest digest = AttachmentManager.newDigest();
+        InputStream in = bin.getStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            bin.dispose();
+        }
+        return AttachmentManager.toHex(digest.digest());
+    }
+}
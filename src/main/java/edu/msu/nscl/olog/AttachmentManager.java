@@ -4,235 +4,505 @@
  */
 package edu.msu.nscl.olog;
 
-import java.io.*;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import javax.jcr.*;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.DatatypeConverter;
-import net.coobird.thumbnailator.Thumbnails;
 import org.apache.commons.io.IOUtils;
-import org.apache.jackrabbit.JcrConstants;
 
 /**
+ * Attachments: their metadata in the attachments table, their content in
+ * an AttachmentStore. olog/attachmentStore picks the store new attachments
+ * go to: jcr (the default), file, or the class name of another
+ * AttachmentStore. Attachments stay readable in the repository until
+ * AttachmentStoreMigration has moved them.
  *
  * @author berryman
  */
 public class AttachmentManager {
     
+    private static final Logger log = Logger.getLogger(AttachmentManager.class.getName());
+    private static final int IN_LIST_SIZE = 500;
+    private static final AttachmentStore jcr = new JcrAttachmentStore();
+    private static final AttachmentStore store = createStore(OlogConfig.getString("olog/attachmentStore", "jcr"));
+
     private AttachmentManager() {
     }
+
+    private static AttachmentStore createStore(String name) {
+        if (name.equals("jcr")) {
+            return jcr;
+        }
+        if (name.equals("file")) {
+            return new FileAttachmentStore();
+        }
+        try {
+            return (AttachmentStore) Class.forName(name).newInstance();
+        } catch (Exception ex) {
+            log.log(Level.SEVERE, "Cannot create attachment store " + name + ", using the repository", ex);
+            return jcr;
+        }
+    }
+
+    /**
+     * @return the store new attachments go to
+     */
+    public static AttachmentStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the repository store, which holds attachments not migrated yet
+     */
+    public static AttachmentStore getRepositoryStore() {
+        return jcr;
+    }
+
+    /**
+     * @param metadata an attachment
+     * @return the store holding its content
+     */
+    public static AttachmentStore storeFor(AttachmentMetadata metadata) {
+        return store.holds(metadata.getPath()) ? store : jcr;
+    }
     
     public static List<Long> findAll(String searchTerm) throws CFException {
-        List<Long> ids = new ArrayList<Long>();
-        try {
-            Session session = JCRUtil.getSession();
-            Workspace workspace = session.getWorkspace();
-            QueryManager qm = workspace.getQueryManager();
-            Query query = qm.createQuery("//element(*, nt:file)[jcr:contains(jcr:content, '" + searchTerm + "')]", Query.XPATH);
-            QueryResult qr = query.execute();
-            NodeIterator ni = qr.getNodes();
-            while (ni.hasNext()) {
-                Node node = ni.nextNode();
-                Node parent = node.getParent();
-                String name = parent.getName();
-                ids.add(Long.valueOf(name));
+        try {
+            List<Long> ids = jcr.search(searchTerm);
+            if (store != jcr) {
+                ids.addAll(store.search(searchTerm));
             }
-        } catch (LoginException e) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Search: " + searchTerm + " could not login to repository. " + e);
-        }
-        catch (RepositoryException e) {
+            return ids;
+        } catch (IOException e) {
             throw new CFException(Response.Status.CONFLICT,
-                    "Search: " + searchTerm + " could not put item in repository. " + e);
+                    "Search: " + searchTerm + " could not search attachments. " + e);
         }
-
-        return ids;
     }
     
     public static XmlAttachments findAll(Long logId) throws CFException {
-        XmlAttachments xmlAttachments = new XmlAttachments();
-        try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(logId.toString());
-            NodeIterator nodes = folderNode.getNodes();
-            while (nodes.hasNext()) {
-                Node contentNode = nodes.nextNode();
-                String tfileName = contentNode.getName();
-                XmlAttachment xmlAttachment = new XmlAttachment();
-                xmlAttachment.setFileName(contentNode.getName());
-                xmlAttachment.setContentType(contentNode.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_MIMETYPE).getString());
-                xmlAttachment.setFileSize(contentNode.getNode(JcrConstants.JCR_CONTENT).getProperty(JcrConstants.JCR_DATA).getLength());
-                if (rn.hasNode("thumbnails/" + logId.toString() + "/" + tfileName)) {
-                    xmlAttachment.setThumbnail(true);
+        return findAll(Collections.singleton(logId)).get(logId);
+    }
+
+    /**
+     * Lists the attachments of several log entries from the attachments
+     * table, with one indexed query per IN_LIST_SIZE entries and no
+     * repository access.
+     *
+     * @param logIds entry ids
+     * @return XmlAttachments of each entry, empty for entries without any
+     * @throws CFException
+     */
+    public static Map<Long, XmlAttachments> findAll(Collection<Long> logIds) throws CFException {
+        Map<Long, XmlAttachments> result = new HashMap<Long, XmlAttachments>();
+        for (Long logId : logIds) {
+            result.put(logId, new XmlAttachments());
+        }
+        if (logIds.isEmpty()) {
+            return result;
+        }
+        List<Long> ids = new ArrayList<Long>(result.keySet());
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+                TypedQuery<AttachmentMetadata> query = JPAUtil.readOnly(em.createQuery(
+                        "SELECT a FROM AttachmentMetadata a WHERE a.entryId IN :ids ORDER BY a.entryId, a.fileName",
+                        AttachmentMetadata.class));
+                query.setParameter("ids", ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size())));
+                for (AttachmentMetadata metadata : query.getResultList()) {
+                    result.get(metadata.getEntryId()).addXmlAttachment(metadata.toXmlAttachment());
                 }
-                xmlAttachments.addXmlAttachment(xmlAttachment);
             }
-            return xmlAttachments;
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored metadata of one attachment.
+     *
+     * @param logId entry id
+     * @param fileName file name
+     * @return the metadata, or null if there is no such attachment
+     * @throws CFException wrapping a JPA exception
+     */
+    public static AttachmentMetadata findMetadata(Long logId, String fileName) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            List<AttachmentMetadata> rs = JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM AttachmentMetadata a WHERE a.entryId = :entryId AND a.fileName = :fileName",
+                    AttachmentMetadata.class))
+                    .setParameter("entryId", logId).setParameter("fileName", fileName).getResultList();
+            return rs.isEmpty() ? null : rs.get(0);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
 
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
-            // TODO: Return Empty set only for javax.jcr.PathNotFoundException
-            return xmlAttachments;
-            //
-            //throw new CFException(Response.Status.NOT_FOUND,
-            //        "Log entry " + logId.toString() + " could not find item in repository. " + ex);
+    /**
+     * Opens an attachment for reading. The content stream must be closed.
+     *
+     * @param metadata the attachment
+     * @return content, mime type, size and local file (if any)
+     * @throws CFException NOT_FOUND if the content is missing
+     */
+    public static Attachment findAttachment(AttachmentMetadata metadata) throws CFException {
+        try {
+            return storeFor(metadata).get(metadata);
+        } catch (IOException ex) {
+            throw readFailed(metadata, ex);
         }
     }
-    
-    public static Attachment findAttachment(String filePath, String fileName) throws CFException {
-        InputStream content = null;
-        String mimeType = null;
-        try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(filePath);
-            Node contentNode = folderNode.getNode(fileName).getNode(JcrConstants.JCR_CONTENT);
-            javax.jcr.Property dataProperty = contentNode.getProperty(JcrConstants.JCR_DATA);
-            javax.jcr.Property mimeProperty = contentNode.getProperty(JcrConstants.JCR_MIMETYPE);
-
-            mimeType = mimeProperty.getString();
-
-            Binary bin = dataProperty.getBinary();
-            content = bin.getStream();
-            bin.dispose();
-
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    filePath + ", could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
+
+    /**
+     * Opens an attachment for reading. The content stream must be closed.
+     *
+     * @param logId entry id
+     * @param fileName file name
+     * @return content, mime type, size and local file (if any)
+     * @throws CFException NOT_FOUND if there is no such attachment
+     */
+    public static Attachment findAttachment(Long logId, String fileName) throws CFException {
+        AttachmentMetadata metadata = findMetadata(logId, fileName);
+        if (metadata == null) {
             throw new CFException(Response.Status.NOT_FOUND,
-                    filePath + ", could not find item in repository. " + ex);
+                    "Log entry " + logId + " has no attachment " + fileName);
         }
-        Attachment attachment = new Attachment();
-        attachment.setContent(content);
-        attachment.setMimeType(mimeType);
+        return findAttachment(metadata);
+    }
 
-        return attachment;
+    /**
+     * Opens a thumbnail of an attachment for reading. The content stream
+     * must be closed.
+     *
+     * @param metadata the attachment
+     * @param size thumbnail size
+     * @return content, mime type, size and local file (if any)
+     * @throws CFException NOT_FOUND if there is no such thumbnail
+     */
+    public static Attachment findThumbnail(AttachmentMetadata metadata, int size) throws CFException {
+        try {
+            return storeFor(metadata).getThumbnail(metadata, size);
+        } catch (IOException ex) {
+            throw readFailed(metadata, ex);
+        }
+    }
+
+    private static CFException readFailed(AttachmentMetadata metadata, IOException ex) {
+        if (ex instanceof FileNotFoundException) {
+            return new CFException(Response.Status.NOT_FOUND,
+                    metadata.getPath() + ", could not find item in repository. " + ex);
+        }
+        return new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                metadata.getPath() + ", could not read item from repository. " + ex);
     }
 
     public static XmlAttachment create(Attachment attachment, Long logId) throws CFException {
-        XmlAttachment result = new XmlAttachment();
+        UploadLimits.check(attachment.getFileSize());
+        // The request as a whole is counted by UploadLimitFilter
+        UploadLimits.LimitedInputStream limited = UploadLimits.limitSize(attachment.getContent());
         try {
-            Session session = JCRUtil.getSession();
-            ValueFactory valueFactory = session.getValueFactory();
-            Node rn = session.getRootNode();
             String mimeType = attachment.getMimeType();
             String fileName = attachment.getFileName();
-            Long fileSize = attachment.getFileSize();
-            final int ndx = fileName.lastIndexOf(".");
-            final String extension = fileName.substring(ndx + 1);
             InputStream stream;
 
             if (attachment.getEncoding().equalsIgnoreCase("base64")) {
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(attachment.getContent(), writer, null);
-                stream = new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(writer.toString()));
+                stream = new Base64DecodingInputStream(limited);
             } else {
-                stream = attachment.getContent();
+                stream = limited;
             }
 
             if (mimeType == null) {
                 mimeType = "application/octet-stream";
             }
 
-            Node folderNode;
+            AttachmentMetadata metadata = new AttachmentMetadata();
+            metadata.setEntryId(logId);
+            metadata.setFileName(fileName);
+            metadata.setMimeType(mimeType);
+            store.put(metadata, stream);
 
-            if (rn.hasNode(logId.toString())) {
-                folderNode = rn.getNode(logId.toString());
-                if (!folderNode.isNodeType(JcrConstants.NT_FOLDER)) {
-                    folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
-                }
-            } else {
-                folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
-            }
-            Node fileNode = folderNode.addNode(fileName, JcrConstants.NT_FILE);
-            Node resNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-            resNode.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
-            resNode.setProperty(JcrConstants.JCR_ENCODING, "");
-
-            Binary binFile = valueFactory.createBinary(stream);
-            resNode.setProperty(JcrConstants.JCR_DATA, binFile);
-
-            // Add thumbnail
-            if ((extension.equals("jpeg") || extension.equals("jpg")
-                    || extension.equals("gif")
-                    || extension.equals("png"))) {
-                Node tfolderNode;
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                Thumbnails.of(binFile.getStream()).size(80, 80).outputFormat(extension).toOutputStream(outputStream);
-                InputStream fis = new ByteArrayInputStream(outputStream.toByteArray());
-                Binary binThumbnail = valueFactory.createBinary(fis);
-
-                if (!rn.hasNode("thumbnails")) {
-                    rn.addNode("thumbnails", JcrConstants.NT_FOLDER);
-                }
+            // The thumbnail is made by ThumbnailWorker once the upload is stored
+            metadata.setThumbnailPending(!metadata.getThumbnail() && ThumbnailWorker.supports(fileName));
 
-                if (rn.hasNode("thumbnails/" + logId.toString())) {
-                    tfolderNode = rn.getNode("thumbnails/" + logId.toString());
-                    if (!tfolderNode.isNodeType(JcrConstants.NT_FOLDER)) {
-                        tfolderNode = rn.addNode("thumbnails/" + logId.toString(), JcrConstants.NT_FOLDER);
-                    }
-                } else {
-                    tfolderNode = rn.addNode("thumbnails/" + logId.toString(), JcrConstants.NT_FOLDER);
-                }
-                Node tfileNode = tfolderNode.addNode(fileName, JcrConstants.NT_FILE);
-                Node tresNode = tfileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-                tresNode.setProperty(JcrConstants.JCR_MIMETYPE, "image/" + extension);
-                tresNode.setProperty(JcrConstants.JCR_ENCODING, "");
-                tresNode.setProperty(JcrConstants.JCR_DATA, binThumbnail);
-                binThumbnail.dispose();
-                result.setThumbnail(true);
+            try {
+                JPAUtil.save(metadata);
+            } catch (PersistenceException e) {
+                // Keep the store and the table in step
+                store.remove(metadata);
+                BlobCollector.released(metadata);
+                throw new CFException(Response.Status.CONFLICT,
+                        "Log entry " + logId.toString() + " could not record attachment " + fileName + ". " + e);
+            }
+            LogIndex.addAttachment(logId, fileName);
+            CacheCoordinator.evict(AttachmentMetadata.class, metadata.getId());
+            if (metadata.getThumbnailPending()) {
+                ThumbnailWorker.submit(logId, fileName);
             }
-            binFile.dispose();
 
-            session.save();
-            result.setContentType(mimeType);
-            result.setFileName(fileName);
-            result.setFileSize(fileSize);
-
-            return result;
+            return metadata.toXmlAttachment();
 
         } catch (IOException ex) {
-            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
-                    "Log entry " + logId.toString() + " could not create thumbnail. " + ex);
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
+            // Includes the upload being cut off by its limits
+            if (limited.getFailure() != null) {
+                throw limited.getFailure();
+            }
             throw new CFException(Response.Status.CONFLICT,
                     "Log entry " + logId.toString() + " could not put item in repository. " + ex);
+        } finally {
+            IOUtils.closeQuietly(limited);
+        }
+    }
+
+    public static void remove(String fileName, Long logId) throws CFException {
+        AttachmentMetadata metadata = findMetadata(logId, fileName);
+        if (metadata == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Log entry " + logId.toString() + " could not find item in repository. " + fileName);
+        }
+        try {
+            storeFor(metadata).remove(metadata);
+        } catch (FileNotFoundException ex) {
+            // Only the metadata is left
+        } catch (IOException ex) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + logId.toString() + " could not remove item from repository. " + ex);
+        }
+        removeMetadata(logId, fileName);
+        if (metadata.getContentHash() != null && countReferences(metadata.getContentHash()) == 0) {
+            BlobCollector.released(metadata);
         }
+        LogIndex.removeAttachment(logId, fileName);
+        CacheCoordinator.evict(AttachmentMetadata.class, metadata.getId());
     }
 
+    /**
+     * Stores the thumbnails generated for an attachment and marks it as
+     * having one.
+     *
+     * @param logId entry id
+     * @param fileName attachment file name
+     * @param mimeType thumbnail mime type
+     * @param thumbnails encoded image of each size
+     * @throws CFException if the thumbnails could not be stored
+     */
+    public static void storeThumbnails(Long logId, String fileName, String mimeType,
+            Map<Integer, byte[]> thumbnails) throws CFException {
+        AttachmentMetadata metadata = findMetadata(logId, fileName);
+        if (metadata == null) {
+            // Removed meanwhile
+            return;
+        }
+        try {
+            storeFor(metadata).putThumbnails(metadata, mimeType, thumbnails);
+        } catch (IOException ex) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Log entry " + logId.toString() + " could not store thumbnail. " + ex);
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            em.createQuery("UPDATE AttachmentMetadata a SET a.thumbnail = TRUE, a.thumbnailPending = FALSE"
+                    + " WHERE a.entryId = :entryId AND a.fileName = :fileName")
+                    .setParameter("entryId", logId).setParameter("fileName", fileName).executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
 
+    /**
+     * Counts a failed attempt to make the thumbnail of an attachment,
+     * giving up after <tt>maxAttempts</tt>.
+     *
+     * @param logId entry id
+     * @param fileName attachment file name
+     * @param maxAttempts attempts before the attachment is left without one
+     * @throws CFException wrapping a JPA exception
+     */
+    public static void thumbnailFailed(Long logId, String fileName, int maxAttempts) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            em.createQuery("UPDATE AttachmentMetadata a SET a.thumbnailAttempts = a.thumbnailAttempts + 1"
+                    + " WHERE a.entryId = :entryId AND a.fileName = :fileName")
+                    .setParameter("entryId", logId).setParameter("fileName", fileName).executeUpdate();
+            em.createQuery("UPDATE AttachmentMetadata a SET a.thumbnailPending = FALSE"
+                    + " WHERE a.entryId = :entryId AND a.fileName = :fileName AND a.thumbnailAttempts >= :max")
+                    .setParameter("entryId", logId).setParameter("fileName", fileName)
+                    .setParameter("max", maxAttempts).executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
 
-    public static void remove(String fileName, Long logId) throws CFException {
+    /**
+     * Lists attachments whose thumbnail is still to be made.
+     *
+     * @param max maximum number of results
+     * @return metadata of the attachments, oldest first
+     * @throws CFException wrapping a JPA exception
+     */
+    public static List<AttachmentMetadata> findPendingThumbnails(int max) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
         try {
-            Session session = JCRUtil.getSession();
-            Node rn = session.getRootNode();
-            Node folderNode = rn.getNode(logId.toString());
-            Node contentNode = folderNode.getNode(fileName);
-            contentNode.remove();
-            if (rn.hasNode("thumbnails/" + logId.toString() + "/" + fileName)) {
-                Node tfolderNode = rn.getNode("thumbnails/" + logId.toString());
-                Node tcontentNode = tfolderNode.getNode(fileName);
-                tcontentNode.remove();
-            }
-            session.save();
+            return JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM AttachmentMetadata a WHERE a.thumbnailPending = TRUE ORDER BY a.id",
+                    AttachmentMetadata.class)).setMaxResults(max).getResultList();
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
 
-        } catch (LoginException ex) {
-            throw new CFException(Response.Status.BAD_REQUEST,
-                    "Log entry " + logId.toString() + " could not login to repository. " + ex);
-        } catch (RepositoryException ex) {
-            throw new CFException(Response.Status.NOT_FOUND,
-                    "Log entry " + logId.toString() + " could not find item in repository. " + ex);
+    /**
+     * Finds an attachment with the given content, by its hash and size.
+     *
+     * @return the oldest such attachment, or null if there is none
+     */
+    static AttachmentMetadata findByContent(String contentHash, Long fileSize) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            List<AttachmentMetadata> rs = JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM AttachmentMetadata a WHERE a.contentHash = :contentHash AND a.fileSize = :fileSize"
+                    + " ORDER BY a.id", AttachmentMetadata.class))
+                    .setParameter("contentHash", contentHash).setParameter("fileSize", fileSize)
+                    .setMaxResults(1).getResultList();
+            return rs.isEmpty() ? null : rs.get(0);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Counts the attachments referring to some content.
+     *
+     * @param contentHash hex SHA-256 of the content
+     * @return number of attachments with that content
+     * @throws CFException wrapping a JPA exception
+     */
+    public static long countReferences(String contentHash) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            return JPAUtil.readOnly(em.createQuery(
+                    "SELECT COUNT(a) FROM AttachmentMetadata a WHERE a.contentHash = :contentHash", Long.class))
+                    .setParameter("contentHash", contentHash).getSingleResult();
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Lists attachments by id, from <tt>afterId</tt> on.
+     *
+     * @param afterId id to start after
+     * @param max maximum number of results
+     * @return metadata of the attachments, by id
+     * @throws CFException wrapping a JPA exception
+     */
+    public static List<AttachmentMetadata> findAfter(Long afterId, int max) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            return JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM AttachmentMetadata a WHERE a.id > :afterId ORDER BY a.id",
+                    AttachmentMetadata.class)).setParameter("afterId", afterId)
+                    .setMaxResults(max).getResultList();
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
         }
     }
+
+    /**
+     * Points an attachment at its content in another store.
+     *
+     * @param metadata the attachment, as it was read
+     * @param path its path in the other store
+     * @return false if the attachment was removed or changed meanwhile
+     * @throws CFException wrapping a JPA exception
+     */
+    static boolean moveContent(AttachmentMetadata metadata, String path) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            int updated = em.createQuery("UPDATE AttachmentMetadata a SET a.path = :path"
+                    + " WHERE a.id = :id AND a.path = :oldPath")
+                    .setParameter("path", path).setParameter("id", metadata.getId())
+                    .setParameter("oldPath", metadata.getPath()).executeUpdate();
+            JPAUtil.finishTransacton(em);
+            return updated == 1;
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    private static void removeMetadata(Long logId, String fileName) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            em.createQuery("DELETE FROM AttachmentMetadata a WHERE a.entryId = :entryId AND a.fileName = :fileName")
+                    .setParameter("entryId", logId).setParameter("fileName", fileName).executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        return DatatypeConverter.printHexBinary(digest).toLowerCase();
+    }
 }
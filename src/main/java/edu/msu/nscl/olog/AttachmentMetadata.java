@@ -0,0 +1,181 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.*;
+
+/**
+ * Metadata of an attachment whose content is stored in the repository, so
+ * that attachments can be listed without reading the repository.
+ *
+ * @author berryman
+ */
+@Entity
+@Table(name = "attachments")
+public class AttachmentMetadata implements Serializable {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+    @Column(name = "entry_id", nullable = false)
+    private Long entryId;
+    @Column(name = "file_name", nullable = false, length = 250)
+    private String fileName;
+    @Column(name = "mime_type", nullable = false, length = 250)
+    private String mimeType;
+    @Column(name = "file_size", nullable = false)
+    private Long fileSize;
+    @Column(name = "thumbnail", nullable = false)
+    private boolean thumbnail;
+    @Column(name = "thumbnail_pending", nullable = false)
+    private boolean thumbnailPending;
+    @Column(name = "thumbnail_attempts", nullable = false)
+    private int thumbnailAttempts;
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+    @Column(name = "path", nullable = false, length = 500)
+    private String path;
+    @Column(name = "created", nullable = false, updatable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+
+    @PrePersist
+    public void setUpdated() {
+        if (created == null) {
+            created = new Date();
+        }
+    }
+
+    /**
+     * Creates a new instance of AttachmentMetadata
+     */
+    public AttachmentMetadata() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    /**
+     * @return id of the entry the file is attached to
+     */
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * @return content length in bytes
+     */
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @return whether a thumbnail is stored for the file
+     */
+    public boolean getThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(boolean thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * @return whether a thumbnail is yet to be generated
+     */
+    public boolean getThumbnailPending() {
+        return thumbnailPending;
+    }
+
+    public void setThumbnailPending(boolean thumbnailPending) {
+        this.thumbnailPending = thumbnailPending;
+    }
+
+    /**
+     * @return number of failed attempts to generate the thumbnail
+     */
+    public int getThumbnailAttempts() {
+        return thumbnailAttempts;
+    }
+
+    public void setThumbnailAttempts(int thumbnailAttempts) {
+        this.thumbnailAttempts = thumbnailAttempts;
+    }
+
+    /**
+     * @return hex SHA-256 of the content
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * @return path of the file node in the repository
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    /**
+     * @return the attachment as represented in XML/JSON
+     */
+    public XmlAttachment toXmlAttachment() {
+        XmlAttachment xmlAttachment = new XmlAttachment();
+        xmlAttachment.setFileName(fileName);
+        xmlAttachment.setContentType(mimeType);
+        xmlAttachment.setFileSize(fileSize);
+        xmlAttachment.setThumbnail(thumbnail ? XmlAttachment.THUMBNAIL_READY
+                : thumbnailPending ? XmlAttachment.THUMBNAIL_PENDING : XmlAttachment.THUMBNAIL_NONE);
+        return xmlAttachment;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where AttachmentManager keeps the content of attachments and their
+ * thumbnails. The attachments table lists the attachments; a store only
+ * holds bytes, found again through the path it gave each attachment.
+ * <p>
+ * Attachments with the same content may share it, so removing an attachment
+ * leaves its content in place. Once no attachment refers to the content any
+ * more, BlobCollector has the store collect it.
+ *
+ * @author berryman
+ */
+public interface AttachmentStore {
+
+    /**
+     * @param path path of an attachment, as set by put
+     * @return whether the content of the attachment is in this store
+     */
+    boolean holds(String path);
+
+    /**
+     * Stores the content of a new attachment, reading <tt>content</tt> to
+     * the end, and sets its size, content hash and path on
+     * <tt>metadata</tt>. If thumbnails of the same content are stored
+     * already, it is marked as having a thumbnail.
+     *
+     * @param metadata entry id, file name and mime type of the attachment
+     * @param content the content
+     * @throws IOException if the content could not be read or stored
+     */
+    void put(AttachmentMetadata metadata, InputStream content) throws IOException;
+
+    /**
+     * Opens the content of an attachment. The stream must be closed.
+     *
+     * @param metadata the attachment
+     * @return content, mime type, size, and local file if there is one
+     * @throws java.io.FileNotFoundException if the content is missing
+     * @throws IOException if the content could not be opened
+     */
+    Attachment get(AttachmentMetadata metadata) throws IOException;
+
+    /**
+     * Stores the thumbnails of an attachment, replacing any.
+     *
+     * @param metadata the attachment
+     * @param mimeType mime type of the thumbnails
+     * @param thumbnails encoded image of each size
+     * @throws IOException if the thumbnails could not be stored
+     */
+    void putThumbnails(AttachmentMetadata metadata, String mimeType, Map<Integer, byte[]> thumbnails)
+            throws IOException;
+
+    /**
+     * Opens a thumbnail of an attachment. The stream must be closed.
+     *
+     * @param metadata the attachment
+     * @param size thumbnail size
+     * @return content, mime type, size, and local file if there is one
+     * @throws java.io.FileNotFoundException if there is no such thumbnail
+     * @throws IOException if the thumbnail could not be opened
+     */
+    Attachment getThumbnail(AttachmentMetadata metadata, int size) throws IOException;
+
+    /**
+     * Removes an attachment. Content it shares with others stays.
+     *
+     * @param metadata the attachment
+     * @throws IOException if the attachment could not be removed
+     */
+    void remove(AttachmentMetadata metadata) throws IOException;
+
+    /**
+     * Deletes content, and its thumbnails, that no attachment refers to any
+     * more.
+     *
+     * @param released removed attachments whose content is unreferenced
+     * @throws IOException if the content could not be deleted
+     */
+    void collect(Collection<AttachmentMetadata> released) throws IOException;
+
+    /**
+     * Searches the text of the attachments, for stores that index it.
+     *
+     * @param searchTerm term to look for
+     * @return ids of the entries with a matching attachment
+     * @throws IOException if the search failed
+     */
+    List<Long> search(String searchTerm) throws IOException;
+}
@@ -0,0 +1,180 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Moves the attachments still kept in the repository to the configured
+ * AttachmentStore, in the background after startup, unless
+ * olog/attachmentStoreMigrate is false. Each attachment is copied with its
+ * thumbnails, the attachments table is pointed at the copy, and the
+ * repository node is removed; attachments stay readable throughout. Once
+ * the repository is empty it can be left closed with olog/jcrEnabled =
+ * false.
+ *
+ * @author berryman
+ */
+public class AttachmentStoreMigration {
+
+    private static final Logger log = Logger.getLogger(AttachmentStoreMigration.class.getName());
+    private static final boolean enabled = OlogConfig.getBoolean("olog/attachmentStoreMigrate", true);
+    private static final int BATCH_SIZE = 100;
+    private static Thread thread;
+
+    private AttachmentStoreMigration() {
+    }
+
+    /**
+     * Starts the migration if the configured store is not the repository.
+     */
+    public static synchronized void start() {
+        if (!enabled || thread != null || AttachmentManager.getStore() == AttachmentManager.getRepositoryStore()
+                || JCRUtil.getRepository() == null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    migrate();
+                } catch (Exception ex) {
+                    log.log(Level.SEVERE, "Attachment migration stopped", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }, "olog-attachment-migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the migration; it resumes at the next start.
+     */
+    public static synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private static void migrate() throws CFException, IOException {
+        AttachmentStore source = AttachmentManager.getRepositoryStore();
+        AttachmentStore target = AttachmentManager.getStore();
+        long start = System.currentTimeMillis();
+        List<AttachmentMetadata> moved = new ArrayList<AttachmentMetadata>();
+        int failed = 0;
+        Long last = 0L;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<AttachmentMetadata> attachments = AttachmentManager.findAfter(last, BATCH_SIZE);
+            if (attachments.isEmpty()) {
+                break;
+            }
+            for (AttachmentMetadata metadata : attachments) {
+                last = metadata.getId();
+                if (!source.holds(metadata.getPath()) || Thread.currentThread().isInterrupted()) {
+                    continue;
+                }
+                try {
+                    if (copy(metadata, source, target)) {
+                        source.remove(metadata);
+                        moved.add(metadata);
+                    }
+                } catch (IOException ex) {
+                    failed++;
+                    log.log(Level.WARNING, "Could not move attachment " + metadata.getPath(), ex);
+                }
+            }
+            JPAUtil.closeEntityManager();
+        }
+        if (!moved.isEmpty()) {
+            // Frees the binaries of the removed nodes
+            source.collect(moved);
+        }
+        if (!moved.isEmpty() || failed > 0) {
+            log.log(Level.INFO, "Moved {0} attachments out of the repository in {1} ms, {2} failed",
+                    new Object[]{moved.size(), System.currentTimeMillis() - start, failed});
+        }
+    }
+
+    /**
+     * Copies an attachment and its thumbnails, and points the attachments
+     * table at the copy.
+     *
+     * @return false if the attachment was removed meanwhile
+     * @throws IOException if the copy failed or does not match the recorded
+     * content hash; the source is then left as it was
+     */
+    private static boolean copy(AttachmentMetadata metadata, AttachmentStore source, AttachmentStore target)
+            throws IOException, CFException {
+        AttachmentMetadata copy = new AttachmentMetadata();
+        copy.setEntryId(metadata.getEntryId());
+        copy.setFileName(metadata.getFileName());
+        copy.setMimeType(metadata.getMimeType());
+        InputStream in = source.get(metadata).getContent();
+        try {
+            target.put(copy, in);
+        } finally {
+            in.close();
+        }
+        if (metadata.getContentHash() != null && !metadata.getContentHash().equals(copy.getContentHash())) {
+            // Never let a bad copy replace the original: drop the copy and
+            // keep the source
+            if (AttachmentManager.countReferences(copy.getContentHash()) == 0) {
+                BlobCollector.released(copy);
+            }
+            throw new IOException("Copy of " + metadata.getPath() + " does not match its recorded hash");
+        }
+        if (metadata.getThumbnail() && !copy.getThumbnail()) {
+            copyThumbnails(metadata, copy, source, target);
+        }
+        if (AttachmentManager.moveContent(metadata, copy.getPath())) {
+            return true;
+        }
+        if (AttachmentManager.countReferences(copy.getContentHash()) == 0) {
+            BlobCollector.released(copy);
+        }
+        return false;
+    }
+
+    private static void copyThumbnails(AttachmentMetadata metadata, AttachmentMetadata copy,
+            AttachmentStore source, AttachmentStore target) throws IOException {
+        Map<Integer, byte[]> thumbnails = new LinkedHashMap<Integer, byte[]>();
+        String mimeType = null;
+        for (int size : ThumbnailWorker.getSizes()) {
+            Attachment thumbnail;
+            try {
+                thumbnail = source.getThumbnail(metadata, size);
+            } catch (FileNotFoundException ex) {
+                continue;
+            }
+            InputStream in = thumbnail.getContent();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                IOUtils.copy(in, out);
+                thumbnails.put(size, out.toByteArray());
+                mimeType = thumbnail.getMimeType();
+            } finally {
+                in.close();
+            }
+        }
+        if (!thumbnails.isEmpty()) {
+            target.putThumbnails(copy, mimeType, thumbnails);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import com.sun.jersey.multipart.FormDataBodyPart;
 import com.sun.jersey.multipart.FormDataParam;
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
@@ -29,6 +30,10 @@ public class AttachmentsResource {
     @Context
     private SecurityContext securityContext;
     
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private Logger audit = Logger.getLogger(this.getClass().getPackage().getName() + ".audit");
     private Logger log = Logger.getLogger(this.getClass().getName());
 
@@ -64,63 +69,208 @@ public class AttachmentsResource {
     }
     
     /**
-     * GET method for retrieving the list of attachments for a given log.
+     * GET method for retrieving the attachment <tt>fileName</tt> of a log.
+     * Answers conditional requests (If-None-Match, If-Modified-Since) with
+     * 304 and single byte ranges with 206.
      *
-     * @return
+     * @return HTTP Response
      */
     @GET
     @Path("{logId}/{fileName}")
-    public Response getFile(@PathParam("logId") Long logId, @PathParam("fileName") String fileName ) {
+    public Response getFile(@Context Request request, @Context HttpHeaders headers,
+            @PathParam("logId") Long logId, @PathParam("fileName") String fileName) {
+        return download(request, headers, logId, fileName, 0);
+    }
+
+    /**
+     * GET method for retrieving the thumbnail of the attachment
+     * <tt>fileName</tt> of a log, in the default or the given <tt>size</tt>
+     * (one of olog/thumbnailSizes).
+     *
+     * @return HTTP Response
+     */
+    @GET
+    @Path("{logId}/{fileName}:thumbnail")
+    public Response getThumbnail(@Context Request request, @Context HttpHeaders headers,
+            @PathParam("logId") Long logId, @PathParam("fileName") String fileName,
+            @QueryParam("size") Integer size) {
+        return download(request, headers, logId, fileName, size == null ? ThumbnailWorker.getDefaultSize() : size);
+    }
+
+    /**
+     * @param thumbnailSize size of the thumbnail to send, or 0 for the file
+     */
+    private Response download(Request request, HttpHeaders headers, Long logId, String fileName, int thumbnailSize) {
         OlogImpl cm = OlogImpl.getInstance();
         String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
-        Attachment result;
+        boolean thumbnail = thumbnailSize > 0;
         try {
-            String filePath = logId.toString();
-            result = cm.getAttachment(filePath, fileName);
-            Response r;
-            if (result == null) {
-                r = Response.status(Response.Status.NOT_FOUND).build();
+            AttachmentMetadata metadata = cm.getAttachmentMetadata(logId, fileName);
+            if (metadata == null) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Log entry " + logId + " has no attachment " + fileName + ".");
+            }
+            if (thumbnail && !metadata.getThumbnail()) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Log entry " + logId + " attachment " + fileName + " has no thumbnail"
+                        + (metadata.getThumbnailPending() ? " yet." : "."));
+            }
+            EntityTag etag = null;
+            Date lastModified = null;
+            if (metadata.getContentHash() != null) {
+                // A thumbnail is derived from the content, so the hash identifies it too
+                etag = new EntityTag(metadata.getContentHash() + (thumbnail ? "-" + thumbnailSize : ""));
+                lastModified = metadata.getCreated();
+                Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+                if (notModified != null) {
+                    Response r = notModified.build();
+                    audit.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
+                    return r;
+                }
+            }
+            Attachment result = thumbnail ? cm.getThumbnail(metadata, thumbnailSize) : cm.getAttachment(metadata);
+            // Only the size and type are needed here: the content is opened
+            // again when the response is written, so that HEAD requests and
+            // responses that are never written do not leave it open
+            result.getContent().close();
+            long length = result.getFileSize();
+            long[] range = range(headers, etag, length);
+            Response.ResponseBuilder rb;
+            if (range == null) {
+                rb = Response.ok(new AttachmentOutput(metadata, thumbnailSize, 0, length));
+                range = new long[]{0, length - 1};
+            } else if (range[0] >= length) {
+                rb = Response.status(HTTP_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + length);
+                range = null;
             } else {
-                r = Response.ok((Object)result.getContent()).type(result.getMimeType()).build();
+                rb = Response.status(HTTP_PARTIAL_CONTENT)
+                        .entity(new AttachmentOutput(metadata, thumbnailSize, range[0], range[1] - range[0] + 1))
+                        .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            }
+            if (range != null) {
+                rb.type(result.getMimeType()).header("Content-Length", range[1] - range[0] + 1);
             }
-            audit.info( user+"|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
+            rb.header("Accept-Ranges", "bytes");
+            if (etag != null) {
+                rb.tag(etag).lastModified(lastModified);
+            }
+            Response r = rb.build();
+            audit.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
             return r;
+        } catch (IOException e) {
+            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|500|cause=" + e);
+            return Response.serverError().build();
         } catch (CFException e) {
-            
             log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|" + e.getResponseStatusCode() +  "|cause=" + e);
             return e.toResponse();
         }
     }
-    
+
     /**
-     * GET method for retrieving the list of attachments for a given log.
+     * Parses a single "bytes=first-last", "bytes=first-" or "bytes=-suffix"
+     * Range header. Multiple ranges, malformed headers and an If-Range that
+     * does not match <tt>etag</tt> get the whole file. A range starting at
+     * or past the end, or an empty suffix, cannot be satisfied.
      *
-     * @return
+     * @return first and last byte position, with first &gt;= length if
+     * the range cannot be satisfied, or null for the whole file
      */
-    @GET
-    @Path("{logId}/{fileName}:thumbnail")
-    public Response getThumbnail(@PathParam("logId") Long logId, @PathParam("fileName") String fileName ) {
-        OlogImpl cm = OlogImpl.getInstance();
-        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
-        Attachment result;
+    private static long[] range(HttpHeaders headers, EntityTag etag, long length) {
+        String header = headers.getRequestHeaders().getFirst("Range");
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String ifRange = headers.getRequestHeaders().getFirst("If-Range");
+        if (ifRange != null && (etag == null || !ifRange.equals(etag.toString()))) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
         try {
-            String filePath = "thumbnails/"+logId.toString();
-            result = cm.getAttachment(filePath, fileName);
-            Response r;
-            if (result == null) {
-                r = Response.status(Response.Status.NOT_FOUND).build();
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new long[]{length, length};
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
             } else {
-                r = Response.ok((Object)result.getContent()).type(result.getMimeType()).build();
+                first = Long.parseLong(spec.substring(0, dash));
+                if (first >= length) {
+                    return new long[]{first, first};
+                }
+                last = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+                if (last < first) {
+                    return null;
+                }
+                last = Math.min(last, length - 1);
             }
-            audit.info( user+"|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus());
-            return r;
-        } catch (CFException e) {
-            
-            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|" + e.getResponseStatusCode() +  "|cause=" + e);
-            return e.toResponse();
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
-    
+
+    /**
+     * Writes <tt>count</tt> bytes of an attachment or thumbnail from
+     * <tt>offset</tt>. The content is only opened once the response is
+     * being written, and closed when done.
+     */
+    private static class AttachmentOutput implements StreamingOutput {
+
+        private final AttachmentMetadata metadata;
+        private final int thumbnailSize;
+        private final long offset;
+        private final long count;
+
+        AttachmentOutput(AttachmentMetadata metadata, int thumbnailSize, long offset, long count) {
+            this.metadata = metadata;
+            this.thumbnailSize = thumbnailSize;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            Attachment attachment;
+            try {
+                attachment = thumbnailSize > 0
+                        ? AttachmentManager.findThumbnail(metadata, thumbnailSize)
+                        : AttachmentManager.findAttachment(metadata);
+            } catch (CFException e) {
+                throw new IOException(e.getMessage());
+            }
+            InputStream content = attachment.getContent();
+            try {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long n = content.skip(offset - skipped);
+                    if (n <= 0) {
+                        throw new EOFException("Attachment is shorter than its recorded size");
+                    }
+                    skipped += n;
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = count;
+                while (remaining > 0) {
+                    int n = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) {
+                        throw new EOFException("Attachment is shorter than its recorded size");
+                    }
+                    output.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                content.close();
+            }
+        }
+    }
+
     /**
      * POST method for adding a new Attachment to a log entry.
      *
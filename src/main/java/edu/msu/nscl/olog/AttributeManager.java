@@ -4,9 +4,12 @@
  */
 package edu.msu.nscl.olog;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
@@ -19,7 +22,7 @@ import javax.ws.rs.core.Response;
  */
 public class AttributeManager {
 
-    private static EntityManager em = null;
+    private static final DictionaryCache<Attribute> ids = new DictionaryCache<Attribute>("attributes", Attribute.class);
 
     private AttributeManager() {
     }
@@ -31,7 +34,7 @@ public class AttributeManager {
      * @throws CFException wrapping an SQLException
      */
     public static Set<Attribute> findAll(Property property) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Attribute> cq = cb.createQuery(Attribute.class);
         Root<Property> from = cq.from(Property.class);
@@ -43,8 +46,8 @@ public class AttributeManager {
         Predicate andPredicate = cb.and(namePredicate, pstatusPredicate, astatusPredicate);
         select.where(andPredicate);
         select.orderBy(cb.asc(attributes.get(Attribute_.name)));
-        TypedQuery<Attribute> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Attribute> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Set<Attribute> result = new HashSet<Attribute>();
             List<Attribute> rs = typedQuery.getResultList();
@@ -60,7 +63,7 @@ public class AttributeManager {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -71,7 +74,12 @@ public class AttributeManager {
      * @throws CFException wrapping an SQLException
      */
     public static Attribute findAttribute(Property property, String attributeName) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        String key = DictionaryCache.attributeKey(property.getName(), attributeName);
+        Attribute cached = ids.find(key);
+        if (cached != null) {
+            return cached;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Attribute> cq = cb.createQuery(Attribute.class);
         Root<Property> from = cq.from(Property.class);
@@ -84,8 +92,8 @@ public class AttributeManager {
         Predicate andPredicate = cb.and(pnamePredicate, anamePredicate);
         select.where(andPredicate);
         select.orderBy(cb.asc(attributes.get(Attribute_.name)));
-        TypedQuery<Attribute> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Attribute> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Attribute result = new Attribute();
             List<Attribute> rs = typedQuery.getResultList();
@@ -96,12 +104,55 @@ public class AttributeManager {
                 }
             }
 
+            ids.cache(key, result.getId());
+
+            return result;
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Finds attributes by property and attribute name, from the cache where
+     * it holds them and with one query for the properties of the rest.
+     *
+     * @param keys attribute keys, see DictionaryCache.attributeKey
+     * @return the attributes that exist, by key
+     * @throws CFException wrapping a JPA exception
+     */
+    public static Map<String, Attribute> findAttributes(Collection<String> keys) throws CFException {
+        Map<String, Attribute> result = new HashMap<String, Attribute>();
+        Set<String> propertyNames = new HashSet<String>();
+        for (String key : keys) {
+            Attribute cached = ids.find(key);
+            if (cached != null) {
+                result.put(key, cached);
+            } else {
+                propertyNames.add(key.substring(0, key.lastIndexOf('.')));
+            }
+        }
+        if (propertyNames.isEmpty()) {
+            return result;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            for (Attribute attribute : JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM Attribute a WHERE a.property.name IN :names", Attribute.class))
+                    .setParameter("names", propertyNames).getResultList()) {
+                String key = DictionaryCache.attributeKey(attribute.getProperty().getName(), attribute.getName());
+                result.put(key, attribute);
+                ids.cache(key, attribute.getId());
+            }
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -121,6 +172,7 @@ public class AttributeManager {
                 attribute.setState(State.Active);
                 property.addAttribute(attribute);
                 property = (Property) JPAUtil.update(property);
+                invalidate(property.getName(), attributeName, attribute.getId());
                 return property;
             } else {
                 Attribute newAttribute = new Attribute();
@@ -128,6 +180,7 @@ public class AttributeManager {
                 newAttribute.setState(State.Active);
                 newAttribute.setProperty(property);
                 JPAUtil.save(newAttribute);
+                invalidate(property.getName(), attributeName, newAttribute.getId());
                 newAttribute = findAttribute(property, newAttribute.getName());
                 property.addAttribute(newAttribute);
                 property = (Property) JPAUtil.update(property);
@@ -151,10 +204,19 @@ public class AttributeManager {
             Attribute attribute = findAttribute(property, attributeName);
             attribute.setState(State.Inactive);
             JPAUtil.update(attribute);
+            invalidate(property.getName(), attributeName, attribute.getId());
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
 
         }
     }
+
+    /**
+     * Drops attribute <tt>attributeName</tt> of property <tt>propertyName</tt>
+     * from the name cache, on every node.
+     */
+    static void invalidate(String propertyName, String attributeName, Long id) {
+        ids.invalidate(DictionaryCache.attributeKey(propertyName, attributeName), id);
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a base64 stream as it is read, a buffer at a time. Like
+ * DatatypeConverter.parseBase64Binary it is lenient: line breaks and other
+ * characters outside the alphabet are skipped, and a missing final padding
+ * is accepted.
+ *
+ * @author berryman
+ */
+public class Base64DecodingInputStream extends FilterInputStream {
+
+    private static final int[] DECODE = new int[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final byte[] encoded = new byte[4096];
+    // Every 4 characters make at most 3 bytes
+    private final byte[] decoded = new byte[3072];
+    private int pos = 0;
+    private int limit = 0;
+    private int quantum = 0;
+    private int count = 0;
+    private boolean eof = false;
+
+    public Base64DecodingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return decoded[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(decoded, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int step = (int) Math.min(n - skipped, limit - pos);
+            pos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Decodes input until there is output to hand out or the input ends.
+     *
+     * @return false at the end of the decoded stream
+     */
+    private boolean fill() throws IOException {
+        while (pos == limit) {
+            if (eof) {
+                return false;
+            }
+            pos = 0;
+            limit = 0;
+            int n = in.read(encoded);
+            if (n < 0) {
+                eof = true;
+                flush();
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                int c = encoded[i];
+                if (c == '=') {
+                    flush();
+                    continue;
+                }
+                int v = c >= 0 && c < DECODE.length ? DECODE[c] : -1;
+                if (v < 0) {
+                    continue;
+                }
+                quantum = (quantum << 6) | v;
+                if (++count == 4) {
+                    decoded[limit++] = (byte) (quantum >> 16);
+                    decoded[limit++] = (byte) (quantum >> 8);
+                    decoded[limit++] = (byte) quantum;
+                    quantum = 0;
+                    count = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Emits the bytes of a final, short group of characters.
+     */
+    private void flush() {
+        if (count == 2) {
+            decoded[limit++] = (byte) (quantum >> 4);
+        } else if (count == 3) {
+            decoded[limit++] = (byte) (quantum >> 10);
+            decoded[limit++] = (byte) (quantum >> 2);
+        }
+        quantum = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reclaims attachment content that is no longer referenced.
+ * <p>
+ * Attachments with the same content share it in their store, so removing
+ * an attachment only drops a reference. When AttachmentManager removes the
+ * last attachment with a given content hash it reports the content as
+ * released, which is recorded in the released_content table so that it
+ * survives a restart; every olog/blobCollectInterval seconds the content
+ * that is still unreferenced is handed to its store to delete. In a cluster
+ * sharing one store, enable it (olog/blobCollectInterval &gt; 0) on one
+ * node only.
+ *
+ * @author berryman
+ */
+public class BlobCollector {
+
+    private static final Logger log = Logger.getLogger(BlobCollector.class.getName());
+    private static final long interval = OlogConfig.getLong("olog/blobCollectInterval", 86400);
+    private static final String INSERT = "INSERT INTO released_content (content_hash, path, released)"
+            + " VALUES (?1, ?2, CURRENT_TIMESTAMP)";
+    private static final String SELECT = "SELECT id, content_hash, path FROM released_content ORDER BY id";
+    private static final String DELETE = "DELETE FROM released_content WHERE id <= ?1";
+    private static ScheduledExecutorService collector;
+
+    private BlobCollector() {
+    }
+
+    /**
+     * Records that the last reference to some content was removed.
+     *
+     * @param metadata the attachment removed last
+     */
+    public static void released(AttachmentMetadata metadata) {
+        if (metadata.getContentHash() == null) {
+            return;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        try {
+            JPAUtil.startTransaction(em);
+            em.createNativeQuery(INSERT)
+                    .setParameter(1, metadata.getContentHash())
+                    .setParameter(2, metadata.getPath())
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            log.log(Level.WARNING, "Could not record released content " + metadata.getPath(), e);
+        }
+    }
+
+    /**
+     * Schedules collection; called once the repository is open.
+     */
+    public static synchronized void start() {
+        if (interval <= 0 || collector != null) {
+            return;
+        }
+        collector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olog-blob-collector");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        collector.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    collect();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not collect unreferenced attachment content", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops collecting.
+     */
+    public static synchronized void stop() {
+        if (collector != null) {
+            collector.shutdownNow();
+            collector = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collect() throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        List<Object[]> rows = em.createNativeQuery(SELECT).getResultList();
+        em.clear();
+        if (rows.isEmpty()) {
+            return;
+        }
+        Map<AttachmentStore, Map<String, AttachmentMetadata>> byStore = new HashMap<AttachmentStore, Map<String, AttachmentMetadata>>();
+        for (Object[] row : rows) {
+            AttachmentMetadata metadata = new AttachmentMetadata();
+            metadata.setContentHash(((String) row[1]).trim());
+            metadata.setPath((String) row[2]);
+            // Uploaded again since
+            if (AttachmentManager.countReferences(metadata.getContentHash()) > 0) {
+                continue;
+            }
+            AttachmentStore store = AttachmentManager.storeFor(metadata);
+            if (!byStore.containsKey(store)) {
+                byStore.put(store, new HashMap<String, AttachmentMetadata>());
+            }
+            // Released content is collected once however often it was released
+            byStore.get(store).put(metadata.getContentHash(), metadata);
+        }
+        List<AttachmentMetadata> failed = new ArrayList<AttachmentMetadata>();
+        for (Map.Entry<AttachmentStore, Map<String, AttachmentMetadata>> entry : byStore.entrySet()) {
+            long start = System.currentTimeMillis();
+            try {
+                entry.getKey().collect(entry.getValue().values());
+                log.log(Level.INFO, "Collected {0} unreferenced attachments in {1} ms",
+                        new Object[]{entry.getValue().size(), System.currentTimeMillis() - start});
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not collect unreferenced attachment content", ex);
+                failed.addAll(entry.getValue().values());
+            }
+        }
+        Number last = (Number) rows.get(rows.size() - 1)[0];
+        try {
+            JPAUtil.startTransaction(em);
+            em.createNativeQuery(DELETE).setParameter(1, last.longValue()).executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+        // Try again next time
+        for (AttachmentMetadata metadata : failed) {
+            released(metadata);
+        }
+    }
+}
@@ -15,7 +15,7 @@ import javax.ws.rs.core.Response;
  */
 public class CFException extends Exception {
 
-    private Response.Status status;
+    private Response.StatusType status;
 
     /**
      * Creates a new CFException with the specified HTTP return code for this request,
@@ -42,6 +42,18 @@ public class CFException extends Exception {
         this.status = status;
     }
 
+    /**
+     * Creates a new CFException with an HTTP return code that has no
+     * Response.Status constant, and detail message.
+     *
+     * @param status HTTP return code
+     * @param message
+     */
+    public CFException(Response.StatusType status, String message) {
+        super(message);
+        this.status = status;
+    }
+
     private String responseMessage() {
         String msg = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\"" +
                 " \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">" +
@@ -71,7 +83,7 @@ public class CFException extends Exception {
      * @return HTTP response
      */
     public Response.Status getResponseStatusString() {
-        return status;
+        return Response.Status.fromStatusCode(status.getStatusCode());
     }
 
     /**
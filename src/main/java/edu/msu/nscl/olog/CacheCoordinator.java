@@ -0,0 +1,315 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+/**
+ * Keeps the caches of several Olog nodes sharing one database consistent.
+ * <p>
+ * A change that makes cached data stale on other nodes is recorded in the
+ * cache_events table, within the transaction making the change if there is
+ * one. Every node polls the table each olog/cacheSyncInterval seconds and
+ * applies the events written by the other nodes: the ExpiringCache entry
+ * is dropped (the whole cache for an empty key), the entity is evicted from
+ * the EclipseLink shared cache, and logs and attachments are (re)indexed
+ * in the local search index. Entities added in bulk are announced by one
+ * event for their range of ids. Because ids are assigned before commit,
+ * each poll looks back olog/cacheSyncLookback seconds and skips the events
+ * already applied.
+ * Events older than olog/cacheEventRetention seconds are deleted.
+ * <p>
+ * The journal is off unless olog/cacheSyncInterval is set (5 seconds is a
+ * good start): a single node needs none, and then changes are only applied
+ * locally, without a write per change.
+ *
+ * @author berryman
+ */
+public class CacheCoordinator {
+
+    private static final Logger log = Logger.getLogger(CacheCoordinator.class.getName());
+    private static final String node = OlogConfig.getString("olog/nodeName", defaultNodeName());
+    private static final long interval = OlogConfig.getLong("olog/cacheSyncInterval", 0) * 1000;
+    private static final long lookback = OlogConfig.getLong("olog/cacheSyncLookback", 60) * 1000;
+    private static final long retention = OlogConfig.getLong("olog/cacheEventRetention", 3600) * 1000;
+    private static final String INSERT = "INSERT INTO cache_events (node, cache_name, cache_key, entity, entity_id,"
+            + " entity_last_id, created) VALUES (?1, ?2, ?3, ?4, ?5, ?6, CURRENT_TIMESTAMP)";
+    private static final String SELECT = "SELECT id, node, cache_name, cache_key, entity, entity_id, created,"
+            + " entity_last_id FROM cache_events WHERE created >= ?1 ORDER BY id";
+    private static ScheduledExecutorService poller;
+    // Ids of the events applied within the lookback window, with their time
+    private static final Map<Long, Long> applied = new HashMap<Long, Long>();
+    private static Timestamp lastPoll;
+    private static long lastPurge;
+
+    private CacheCoordinator() {
+    }
+
+    private static String defaultNodeName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "localhost";
+        }
+        // Unique per start, so a restarted node does not skip its peers' events
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Starts polling the journal; called once the database is migrated.
+     */
+    public static synchronized void start() {
+        if (interval <= 0 || poller != null) {
+            return;
+        }
+        try {
+            lastPoll = now();
+        } catch (PersistenceException ex) {
+            log.log(Level.SEVERE, "Cache coordination disabled, cannot read cache_events", ex);
+            return;
+        } finally {
+            JPAUtil.closeEntityManager();
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olog-cache-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not read cache events", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        log.log(Level.CONFIG, "Cache coordination started on node {0}", node);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public static synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    /**
+     * Drops the entry <tt>key</tt> of the cache <tt>cacheName</tt> on this
+     * and every other node.
+     *
+     * @param cacheName ExpiringCache name
+     * @param key entry key, or null to empty the cache
+     */
+    public static void invalidate(String cacheName, String key) {
+        publish(cacheName, key, null, null);
+    }
+
+    /**
+     * Evicts an entity from the shared cache of the other nodes, whose copy
+     * may be stale after it was changed here.
+     *
+     * @param entity entity class
+     * @param id entity id
+     */
+    public static void evict(Class<?> entity, Long id) {
+        publish(null, null, entity, id);
+    }
+
+    /**
+     * Evicts the entities with ids from <tt>first</tt> to <tt>last</tt>
+     * from the shared cache of the other nodes, with a single event. Logs
+     * and attachments in the range are (re)indexed there.
+     *
+     * @param entity entity class
+     * @param first lowest id
+     * @param last highest id
+     */
+    public static void evictRange(Class<?> entity, Long first, Long last) {
+        record(null, null, entity, first, last);
+    }
+
+    /**
+     * Applies an event locally and records it for the other nodes.
+     *
+     * @param cacheName ExpiringCache name, or null
+     * @param key entry key, or null for the whole cache
+     * @param entity entity class to evict on the other nodes, or null
+     * @param id entity id, or null for every entity of the class
+     */
+    public static void publish(String cacheName, String key, Class<?> entity, Long id) {
+        if (cacheName != null) {
+            invalidateLocal(cacheName, key);
+        }
+        record(cacheName, key, entity, id, id);
+    }
+
+    private static void record(String cacheName, String key, Class<?> entity, Long id, Long lastId) {
+        if (interval <= 0) {
+            return;
+        }
+        EntityManager em = null;
+        try {
+            em = JPAUtil.getEntityManager();
+            JPAUtil.startTransaction(em);
+            em.createNativeQuery(INSERT)
+                    .setParameter(1, node)
+                    .setParameter(2, cacheName == null ? "" : cacheName)
+                    .setParameter(3, key == null ? "" : key)
+                    .setParameter(4, entity == null ? "" : entity.getSimpleName())
+                    .setParameter(5, id == null ? 0L : id)
+                    .setParameter(6, lastId == null ? 0L : lastId)
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw e;
+        }
+    }
+
+    /**
+     * @return name of this node, unique per start unless olog/nodeName is set
+     */
+    public static String getNode() {
+        return node;
+    }
+
+    /**
+     * @return the time on the database clock, so node clocks need not agree
+     */
+    static Timestamp now() {
+        EntityManager em = JPAUtil.getEntityManager();
+        Object now = em.createNativeQuery("SELECT CURRENT_TIMESTAMP").getSingleResult();
+        return new Timestamp(((java.util.Date) now).getTime());
+    }
+
+    /**
+     * Applies the events of other nodes written since the last poll (less
+     * the lookback window) and purges expired events.
+     */
+    @SuppressWarnings("unchecked")
+    private static void poll() {
+        EntityManager em = JPAUtil.getEntityManager();
+        // The database clock, so node clocks need not agree
+        Timestamp pollTime = now();
+        Timestamp since = new Timestamp(lastPoll.getTime() - lookback);
+        List<Object[]> rows = em.createNativeQuery(SELECT).setParameter(1, since).getResultList();
+        em.clear();
+        for (Object[] row : rows) {
+            Long id = ((Number) row[0]).longValue();
+            if (applied.containsKey(id)) {
+                continue;
+            }
+            applied.put(id, ((java.util.Date) row[6]).getTime());
+            if (node.equals(row[1])) {
+                continue;
+            }
+            try {
+                apply((String) row[2], (String) row[3], (String) row[4], ((Number) row[5]).longValue(),
+                        ((Number) row[7]).longValue());
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Could not apply cache event " + id, ex);
+            }
+        }
+        for (Iterator<Long> i = applied.values().iterator(); i.hasNext();) {
+            if (i.next() < since.getTime()) {
+                i.remove();
+            }
+        }
+        lastPoll = pollTime;
+        if (pollTime.getTime() - lastPurge > retention) {
+            purge(em, new Timestamp(pollTime.getTime() - retention));
+            lastPurge = pollTime.getTime();
+        }
+    }
+
+    private static void apply(String cacheName, String key, String entity, long id, long lastId) {
+        if (cacheName.length() > 0) {
+            invalidateLocal(cacheName, key.length() > 0 ? key : null);
+        }
+        if (entity.length() == 0) {
+            return;
+        }
+        Class<?> type;
+        try {
+            type = Class.forName(CacheCoordinator.class.getPackage().getName() + "." + entity);
+        } catch (ClassNotFoundException ex) {
+            log.log(Level.WARNING, "Ignoring cache event for unknown entity {0}", entity);
+            return;
+        }
+        if (id == 0) {
+            JPAUtil.getEntityManagerFactory().getCache().evict(type);
+        } else if (lastId > id) {
+            for (long i = id; i <= lastId; i++) {
+                JPAUtil.getEntityManagerFactory().getCache().evict(type, i);
+            }
+            if (type == Log.class) {
+                LogIndex.reindex(id, lastId);
+            } else if (type == AttachmentMetadata.class) {
+                LogIndex.reindexAttachments(id, lastId);
+            }
+        } else {
+            JPAUtil.getEntityManagerFactory().getCache().evict(type, id);
+            if (type == Log.class) {
+                LogIndex.reindex(id);
+            } else if (type == AttachmentMetadata.class) {
+                LogIndex.reindexAttachment(id);
+            }
+        }
+    }
+
+    private static void invalidateLocal(String cacheName, String key) {
+        @SuppressWarnings("unchecked")
+        ExpiringCache<String, ?> cache = (ExpiringCache<String, ?>) ExpiringCache.getCache(cacheName);
+        if (cache == null) {
+            return;
+        }
+        if (key == null) {
+            cache.clear();
+        } else {
+            cache.remove(key);
+        }
+    }
+
+    private static void purge(EntityManager em, Timestamp before) {
+        try {
+            JPAUtil.startTransaction(em);
+            int purged = em.createNativeQuery("DELETE FROM cache_events WHERE created < ?1")
+                    .setParameter(1, before).executeUpdate();
+            JPAUtil.finishTransacton(em);
+            log.log(Level.FINE, "Purged {0} cache events", purged);
+        } catch (PersistenceException ex) {
+            JPAUtil.transactionFailed(em);
+            log.log(Level.WARNING, "Could not purge cache events", ex);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.logging.Logger;
+import javax.persistence.PersistenceException;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Top level Jersey HTTP methods for the .../cache URL: statistics and
+ * invalidation of the service caches, for administrators. Invalidations
+ * apply to every node of the deployment.
+ *
+ * @author berryman
+ */
+@Path("/cache/")
+public class CacheResource {
+
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private SecurityContext securityContext;
+
+    private Logger audit = Logger.getLogger(this.getClass().getPackage().getName() + ".audit");
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** Creates a new instance of CacheResource */
+    public CacheResource() {
+    }
+
+    private String user() {
+        return securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+    }
+
+    private void checkAdmin() throws CFException {
+        if (!securityContext.isUserInRole("Administrator")) {
+            throw new CFException(Response.Status.FORBIDDEN,
+                    "User '" + user() + "' does not have the Administrator role.");
+        }
+    }
+
+    /**
+     * GET method for retrieving the size and hit/miss counters of all caches.
+     *
+     * @return HTTP Response
+     */
+    @GET
+    @Produces({"application/xml", "application/json"})
+    public Response list() {
+        try {
+            checkAdmin();
+            XmlCaches result = new XmlCaches();
+            for (ExpiringCache<?, ?> cache : ExpiringCache.getCaches()) {
+                result.addXmlCacheStats(cache.getStats());
+            }
+            Response r = Response.ok(result).build();
+            log.fine(user() + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus()
+                    + "|returns " + result.getCaches().size() + " caches");
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * DELETE method for emptying the cache <tt>name</tt>.
+     *
+     * @param name cache name
+     * @return HTTP Response
+     */
+    @DELETE
+    @Path("{name}")
+    public Response clear(@PathParam("name") String name) {
+        try {
+            checkAdmin();
+            invalidate(name, null);
+            Response r = Response.ok().build();
+            audit.info(user() + "|" + uriInfo.getPath() + "|DELETE|OK|" + r.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|DELETE|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * DELETE method for dropping the entry <tt>key</tt> (e.g. a user name
+     * in the groups cache) from the cache <tt>name</tt>.
+     *
+     * @param name cache name
+     * @param key entry key
+     * @return HTTP Response
+     */
+    @DELETE
+    @Path("{name}/{key}")
+    public Response remove(@PathParam("name") String name, @PathParam("key") String key) {
+        try {
+            checkAdmin();
+            invalidate(name, key);
+            Response r = Response.ok().build();
+            audit.info(user() + "|" + uriInfo.getPath() + "|DELETE|OK|" + r.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|DELETE|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    private void invalidate(String name, String key) throws CFException {
+        findCache(name);
+        try {
+            CacheCoordinator.invalidate(name, key);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    private ExpiringCache<?, ?> findCache(String name) throws CFException {
+        ExpiringCache<?, ?> cache = ExpiringCache.getCache(name);
+        if (cache == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Cache '" + name + "' does not exist.");
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+/**
+ * Name to id index of one of the dictionaries (logbooks, tags, properties,
+ * attributes), so that resolving a name costs no query.
+ * <p>
+ * Dictionary rows are never deleted, only marked Inactive, so a name keeps
+ * its id; the entity itself is read with EntityManager.find, which
+ * EclipseLink answers from its shared cache once it has been loaded. Only
+ * names that exist are cached. Entries live for olog/dictionaryCacheTTL
+ * seconds, at most olog/dictionaryCacheSize per dictionary; changes made on
+ * other nodes are applied by CacheCoordinator.
+ *
+ * @author berryman
+ */
+public class DictionaryCache<T> extends ExpiringCache<String, Long> {
+
+    private final Class<T> type;
+
+    public DictionaryCache(String name, Class<T> type) {
+        super(name, OlogConfig.getLong("olog/dictionaryCacheTTL", 3600) * 1000,
+                OlogConfig.getInt("olog/dictionaryCacheSize", 10000));
+        this.type = type;
+    }
+
+    /**
+     * Returns the entity cached under <tt>key</tt>.
+     *
+     * @param key name (for attributes, property and attribute name)
+     * @return the entity, or null if <tt>key</tt> is not cached
+     */
+    public T find(String key) {
+        Long id = get(key);
+        if (id == null) {
+            return null;
+        }
+        T entity = type.cast(JPAUtil.findByID(type, id));
+        if (entity == null) {
+            remove(key);
+        }
+        return entity;
+    }
+
+    /**
+     * Caches <tt>id</tt> under <tt>key</tt>, unless it is null.
+     *
+     * @param key name
+     * @param id entity id, may be null
+     */
+    public void cache(String key, Long id) {
+        if (id != null) {
+            put(key, id);
+        }
+    }
+
+    /**
+     * Drops <tt>key</tt> here and, through CacheCoordinator, on the other
+     * nodes, which also evict the changed entity from their shared cache.
+     *
+     * @param key name
+     * @param id id of the changed entity
+     */
+    public void invalidate(String key, Long id) {
+        CacheCoordinator.publish(getName(), key, type, id);
+    }
+
+    /**
+     * @return the cache key of attribute <tt>attributeName</tt> of property
+     * <tt>propertyName</tt>
+     */
+    public static String attributeKey(String propertyName, String attributeName) {
+        return propertyName + "." + attributeName;
+    }
+}
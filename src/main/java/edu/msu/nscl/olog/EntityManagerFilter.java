@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011 Michigan State University - Facility for Rare Isotope Beams
+ */
+package edu.msu.nscl.olog;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Request scoped unit of work: every manager called while serving a request
+ * shares the one EntityManager JPAUtil binds to the request thread, and this
+ * filter closes it once the response has been written.
+ * <p>
+ * When a read replica is configured (see JPAUtil), GET and HEAD requests for
+ * logs, logbooks, tags, properties and attachments are served from it. So
+ * that clients see their own changes despite the replication lag, a client
+ * that writes is kept on the primary for olog/readYourWritesSeconds
+ * (default 5) by a cookie. Reads are not authenticated, so a client that
+ * does not keep cookies may read from the replica right after a write.
+ *
+ * @author berryman
+ */
+public class EntityManagerFilter implements Filter {
+
+    private static final String PRIMARY_COOKIE = "olog_primary_until";
+    private static final String[] REPLICA_PATHS = {"/logs", "/logbooks", "/tags", "/properties", "/attachments"};
+    private static final int readYourWritesSeconds = OlogConfig.getInt("olog/readYourWritesSeconds", 5);
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (JPAUtil.hasReplica()) {
+            route((HttpServletRequest) request, (HttpServletResponse) response);
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            JPAUtil.closeEntityManager();
+        }
+    }
+
+    private static void route(HttpServletRequest request, HttpServletResponse response) {
+        String method = request.getMethod();
+        long now = System.currentTimeMillis();
+        if (method.equals("GET") || method.equals("HEAD")) {
+            if (isReplicated(request.getPathInfo()) && !isPinned(request, now)) {
+                JPAUtil.useReplica();
+            }
+        } else if (!method.equals("OPTIONS") && readYourWritesSeconds > 0) {
+            long until = now + readYourWritesSeconds * 1000L;
+            Cookie cookie = new Cookie(PRIMARY_COOKIE, String.valueOf(until));
+            cookie.setPath(request.getContextPath().length() > 0 ? request.getContextPath() : "/");
+            cookie.setMaxAge(readYourWritesSeconds);
+            response.addCookie(cookie);
+        }
+    }
+
+    private static boolean isReplicated(String path) {
+        if (path == null) {
+            return false;
+        }
+        for (String prefix : REPLICA_PATHS) {
+            if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the client wrote within the read-your-writes window
+     */
+    private static boolean isPinned(HttpServletRequest request, long now) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookie.getName().equals(PRIMARY_COOKIE)) {
+                    try {
+                        return Long.parseLong(cookie.getValue()) > now;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small thread safe LRU map whose entries expire a fixed time after they
+ * were stored. Caches are registered by name so they can be inspected and
+ * flushed through CacheResource.
+ *
+ * @author berryman
+ */
+public class ExpiringCache<K, V> {
+
+    private static final Map<String, ExpiringCache<?, ?>> caches = new ConcurrentHashMap<String, ExpiringCache<?, ?>>();
+    private final String name;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final LinkedHashMap<K, Expiring<V>> map;
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private long generation = 0;
+
+    private static class Expiring<V> {
+
+        final V value;
+        final long expires;
+
+        Expiring(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param name name the cache is registered under
+     * @param ttlMillis time to live of an entry, in milliseconds
+     * @param maxSize maximum number of entries; least recently used entries
+     * are evicted beyond it
+     */
+    public ExpiringCache(String name, long ttlMillis, final int maxSize) {
+        this.name = name;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, Expiring<V>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Expiring<V>> eldest) {
+                return size() > ExpiringCache.this.maxSize;
+            }
+        };
+        caches.put(name, this);
+    }
+
+    /**
+     * Returns the cache registered under <tt>name</tt>, or null.
+     */
+    public static ExpiringCache<?, ?> getCache(String name) {
+        return caches.get(name);
+    }
+
+    public static Collection<ExpiringCache<?, ?>> getCaches() {
+        return new ArrayList<ExpiringCache<?, ?>>(caches.values());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Time to live of <tt>value</tt>; override to keep some values (e.g.
+     * negative results) for a different time.
+     */
+    protected long ttlFor(V value) {
+        return ttlMillis;
+    }
+
+    /**
+     * Returns the cached value, or null if absent or expired.
+     */
+    public V get(K key) {
+        V value = lookup(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    private synchronized V lookup(K key) {
+        Expiring<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e.expires <= System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Returns the cached value, calling <tt>loader</tt> on a miss. Threads
+     * missing on the same key at the same time share one load.
+     *
+     * @param key key
+     * @param loader computes the value; null results are not cached
+     * @return the value
+     * @throws ExecutionException wrapping the loader's exception
+     */
+    public V get(K key, Callable<V> loader) throws ExecutionException {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            long gen = generation();
+            try {
+                task.run();
+                V loaded = task.get();
+                loads.incrementAndGet();
+                if (loaded != null) {
+                    put(key, loaded, gen);
+                }
+            } catch (ExecutionException e) {
+                loadFailures.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a loaded value unless the cache was invalidated while loading.
+     */
+    private synchronized void put(K key, V value, long gen) {
+        if (gen == generation) {
+            put(key, value);
+        }
+    }
+
+    public synchronized void put(K key, V value) {
+        long ttl = ttlFor(value);
+        if (ttl <= 0 || maxSize <= 0) {
+            return;
+        }
+        map.put(key, new Expiring<V>(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void remove(K key) {
+        generation++;
+        map.remove(key);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        map.clear();
+    }
+
+    /**
+     * Drops expired entries.
+     */
+    public synchronized void purge() {
+        long now = System.currentTimeMillis();
+        Iterator<Expiring<V>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * @return a snapshot of the cache size and hit/miss/load counters
+     */
+    public XmlCacheStats getStats() {
+        XmlCacheStats stats = new XmlCacheStats();
+        stats.setName(name);
+        stats.setSize(size());
+        stats.setMaxSize(maxSize);
+        stats.setTtl(ttlMillis / 1000);
+        stats.setHits(hits.get());
+        stats.setMisses(misses.get());
+        stats.setLoads(loads.get());
+        stats.setLoadFailures(loadFailures.get());
+        return stats;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps attachments as plain files under olog/attachmentStorePath, named
+ * after the SHA-256 of their content and sharded on its first two bytes:
+ * <pre>
+ * content/ab/cd/abcd...
+ * thumbnails/80/ab/cd/abcd....png
+ * </pre>
+ * Attachments with the same content thus share one file, and so do their
+ * thumbnails. Content is written to a temporary file under tmp/, forced to
+ * disk unless olog/attachmentStoreSync is false, and renamed into place,
+ * so a file under content/ is always complete.
+ *
+ * @author berryman
+ */
+public class FileAttachmentStore implements AttachmentStore {
+
+    private static final Logger log = Logger.getLogger(FileAttachmentStore.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long GRACE = 60 * 1000;
+    private static final String CONTENT = "content";
+    private static final String THUMBNAILS = "thumbnails";
+    private final File root;
+    private final boolean sync;
+
+    public FileAttachmentStore() {
+        this(new File(OlogConfig.getString("olog/attachmentStorePath", "attachments")),
+                OlogConfig.getBoolean("olog/attachmentStoreSync", true));
+    }
+
+    /**
+     * @param root directory holding the store
+     * @param sync whether to force every file to disk before it is renamed
+     * into place
+     */
+    public FileAttachmentStore(File root, boolean sync) {
+        this.root = root;
+        this.sync = sync;
+    }
+
+    @Override
+    public boolean holds(String path) {
+        return path.startsWith(CONTENT + "/");
+    }
+
+    @Override
+    public void put(AttachmentMetadata metadata, InputStream content) throws IOException {
+        MessageDigest digest = AttachmentManager.newDigest();
+        File tmp = createTempFile();
+        long size = 0;
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel channel = out.getChannel();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = content.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                    size += n;
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            } finally {
+                out.close();
+            }
+            String hash = AttachmentManager.toHex(digest.digest());
+            String path = shard(CONTENT, hash);
+            moveIntoPlace(tmp, new File(root, path), false);
+            metadata.setFileSize(size);
+            metadata.setContentHash(hash);
+            metadata.setPath(path);
+            metadata.setThumbnail(hasThumbnails(hash));
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                log.log(Level.WARNING, "Could not delete {0}", tmp);
+            }
+        }
+    }
+
+    @Override
+    public Attachment get(AttachmentMetadata metadata) throws IOException {
+        return open(new File(root, metadata.getPath()), metadata.getFileName(), metadata.getMimeType());
+    }
+
+    @Override
+    public void putThumbnails(AttachmentMetadata metadata, String mimeType, Map<Integer, byte[]> thumbnails)
+            throws IOException {
+        String type = mimeType.substring(mimeType.indexOf('/') + 1);
+        for (Map.Entry<Integer, byte[]> thumbnail : thumbnails.entrySet()) {
+            File target = new File(root, shard(THUMBNAILS + "/" + thumbnail.getKey(), metadata.getContentHash()) + "." + type);
+            File tmp = createTempFile();
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    ByteBuffer bb = ByteBuffer.wrap(thumbnail.getValue());
+                    while (bb.hasRemaining()) {
+                        out.getChannel().write(bb);
+                    }
+                    if (sync) {
+                        out.getChannel().force(true);
+                    }
+                } finally {
+                    out.close();
+                }
+                File previous = thumbnail(metadata.getContentHash(), thumbnail.getKey());
+                if (previous != null && !previous.equals(target)) {
+                    delete(previous);
+                }
+                moveIntoPlace(tmp, target, true);
+            } finally {
+                if (tmp.exists() && !tmp.delete()) {
+                    log.log(Level.WARNING, "Could not delete {0}", tmp);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Attachment getThumbnail(AttachmentMetadata metadata, int size) throws IOException {
+        File file = thumbnail(metadata.getContentHash(), size);
+        if (file == null) {
+            throw new FileNotFoundException("No thumbnail of size " + size + " for " + metadata.getPath());
+        }
+        String name = file.getName();
+        return open(file, metadata.getFileName(), "image/" + name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Content is named after its hash, so there is nothing to remove until
+     * no attachment refers to it.
+     */
+    @Override
+    public void remove(AttachmentMetadata metadata) throws IOException {
+    }
+
+    @Override
+    public void collect(Collection<AttachmentMetadata> released) throws IOException {
+        long recent = System.currentTimeMillis() - GRACE;
+        for (AttachmentMetadata metadata : released) {
+            File file = new File(root, shard(CONTENT, metadata.getContentHash()));
+            if (file.lastModified() > recent) {
+                // Uploaded again while it was being released
+                continue;
+            }
+            delete(file);
+            for (int size : ThumbnailWorker.getSizes()) {
+                File thumbnail = thumbnail(metadata.getContentHash(), size);
+                if (thumbnail != null) {
+                    delete(thumbnail);
+                }
+            }
+        }
+    }
+
+    /**
+     * Full text search is left to LogIndex.
+     */
+    @Override
+    public List<Long> search(String searchTerm) throws IOException {
+        return new ArrayList<Long>();
+    }
+
+    private boolean hasThumbnails(String hash) {
+        for (int size : ThumbnailWorker.getSizes()) {
+            if (thumbnail(hash, size) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the thumbnail file of some content, whatever its image type,
+     * or null if there is none
+     */
+    private File thumbnail(final String hash, int size) {
+        File dir = new File(root, shard(THUMBNAILS + "/" + size, hash)).getParentFile();
+        File[] files = dir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(hash + ".");
+            }
+        });
+        return files == null || files.length == 0 ? null : files[0];
+    }
+
+    /**
+     * @return path of the file for <tt>hash</tt> under <tt>dir</tt>
+     */
+    private static String shard(String dir, String hash) {
+        return dir + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+    }
+
+    private File createTempFile() throws IOException {
+        File tmp = new File(root, "tmp");
+        if (!tmp.isDirectory() && !tmp.mkdirs() && !tmp.isDirectory()) {
+            throw new IOException("Cannot create " + tmp);
+        }
+        return File.createTempFile("upload", null, tmp);
+    }
+
+    /**
+     * Renames a complete temporary file to its final name. Content that is
+     * there already is the same, since names are hashes; it is only touched,
+     * so that a concurrent collect leaves it alone.
+     *
+     * @param replace whether an existing file is replaced
+     */
+    private static void moveIntoPlace(File tmp, File target, boolean replace) throws IOException {
+        File dir = target.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (!replace && target.exists()) {
+            target.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        if (tmp.renameTo(target)) {
+            return;
+        }
+        // rename() only replaces an existing file on some platforms
+        if (!replace || !target.delete() || !tmp.renameTo(target)) {
+            if (!target.exists()) {
+                throw new IOException("Cannot rename " + tmp + " to " + target);
+            }
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    private static Attachment open(File file, String fileName, String mimeType) throws IOException {
+        Attachment attachment = new Attachment();
+        attachment.setFileName(fileName);
+        attachment.setMimeType(mimeType);
+        attachment.setContent(new FileInputStream(file));
+        attachment.setFileSize(file.length());
+        attachment.setFile(file);
+        return attachment;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Determines the group membership from /etc/group style files, in process.
+ * <p>
+ * The group file (olog/groupFile, default /etc/group) gives the secondary
+ * groups; the passwd file (olog/passwdFile, default /etc/passwd), if
+ * readable, gives each user's primary group, as the 'id' command would.
+ * Both are parsed into a user to groups index that is replaced as a whole
+ * when either file's modification time changes. Select it with
+ * olog/userManager = edu.msu.nscl.olog.GroupFileUserManager.
+ *
+ * @author berryman
+ */
+public class GroupFileUserManager extends UserManager {
+
+    private static final Logger log = Logger.getLogger(GroupFileUserManager.class.getName());
+
+    private static final File groupFile = new File(OlogConfig.getString("olog/groupFile", "/etc/group"));
+    private static final File passwdFile = new File(OlogConfig.getString("olog/passwdFile", "/etc/passwd"));
+    private static final long checkInterval = OlogConfig.getLong("olog/groupFileCheckInterval", 5) * 1000;
+
+    private volatile Index index = new Index(Collections.<String, Set<String>>emptyMap(), -1, -1, 0);
+
+    /**
+     * Immutable snapshot of the files.
+     */
+    private static class Index {
+
+        final Map<String, Set<String>> groups;
+        final long groupModified;
+        final long passwdModified;
+        final long checked;
+
+        Index(Map<String, Set<String>> groups, long groupModified, long passwdModified, long checked) {
+            this.groups = groups;
+            this.groupModified = groupModified;
+            this.passwdModified = passwdModified;
+            this.checked = checked;
+        }
+    }
+
+    public GroupFileUserManager() {
+        current();
+    }
+
+    @Override
+    protected Set<String> getGroups(Principal user) {
+        Set<String> groups = current().groups.get(user.getName());
+        if (groups == null) {
+            return Collections.emptySet();
+        }
+        return groups;
+    }
+
+    /**
+     * Returns the index, reloading it first if a file changed since the
+     * last check (checks are at most every olog/groupFileCheckInterval
+     * seconds).
+     */
+    private Index current() {
+        Index i = index;
+        long now = System.currentTimeMillis();
+        if (now - i.checked < checkInterval) {
+            return i;
+        }
+        synchronized (this) {
+            i = index;
+            if (now - i.checked < checkInterval) {
+                return i;
+            }
+            long groupModified = groupFile.lastModified();
+            long passwdModified = passwdFile.lastModified();
+            if (groupModified == i.groupModified && passwdModified == i.passwdModified) {
+                index = new Index(i.groups, groupModified, passwdModified, now);
+            } else {
+                try {
+                    index = new Index(load(), groupModified, passwdModified, now);
+                    log.log(Level.CONFIG, "Loaded groups of {0} users from {1}",
+                            new Object[]{index.groups.size(), groupFile});
+                } catch (IOException ex) {
+                    // Keep serving the previous snapshot
+                    log.log(Level.WARNING, "Could not read " + groupFile, ex);
+                    index = new Index(i.groups, i.groupModified, i.passwdModified, now);
+                }
+            }
+            return index;
+        }
+    }
+
+    private static Map<String, Set<String>> load() throws IOException {
+        Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+        Map<String, String> gidNames = new HashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(groupFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // name:password:gid:user1,user2,...
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(":", -1);
+                if (fields.length < 4) {
+                    continue;
+                }
+                gidNames.put(fields[2], fields[0]);
+                for (String member : fields[3].split(",")) {
+                    member = member.trim();
+                    if (member.length() > 0) {
+                        addGroup(groups, member, fields[0]);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (passwdFile.canRead()) {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(passwdFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // name:password:uid:gid:...
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split(":", -1);
+                    if (fields.length < 4) {
+                        continue;
+                    }
+                    String primary = gidNames.get(fields[3]);
+                    if (primary != null) {
+                        addGroup(groups, fields[0], primary);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : groups.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(groups);
+    }
+
+    private static void addGroup(Map<String, Set<String>> groups, String user, String group) {
+        Set<String> userGroups = groups.get(user);
+        if (userGroups == null) {
+            userGroups = new HashSet<String>();
+            groups.put(user, userGroups);
+        }
+        userGroups.add(group);
+    }
+}
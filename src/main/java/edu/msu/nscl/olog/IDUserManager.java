@@ -5,7 +5,6 @@
  */
 package edu.msu.nscl.olog;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,20 +45,13 @@ public class IDUserManager extends UserManager {
         if (in == null)
             throw new NullPointerException();
         try {
-            BufferedInputStream bis = new BufferedInputStream(in);
             ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            try {
-                int result = bis.read();
-                while (result != -1) {
-                    byte b = (byte) result;
-                    buf.write(b);
-                    result = bis.read();
-                }
-                return buf.toString();
-            } finally {
-                bis.close();
-                buf.close();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                buf.write(buffer, 0, n);
             }
+            return buf.toString();
         } finally {
             in.close();
         }
@@ -9,6 +9,13 @@ import java.io.File;
 import java.lang.Boolean;
 import java.lang.String;
 import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jcr.Repository;
@@ -26,8 +33,79 @@ import org.apache.jackrabbit.j2ee.RepositoryAccessServlet;
 
 public class JCRUtil extends OlogContextListener {
     private static Repository repository;
-    private static Session session;
     private static final String WEBINF = "WEB-INF";
+    private static final long sessionTimeout = OlogConfig.getLong("olog/jcrSessionTimeout", 30) * 1000;
+    private static final SessionPool readers = new SessionPool(OlogConfig.getInt("olog/jcrReadSessions", 8));
+    private static final SessionPool writers = new SessionPool(OlogConfig.getInt("olog/jcrWriteSessions", 4));
+    private static final Map<Session, SessionPool> owners = Collections.synchronizedMap(new IdentityHashMap<Session, SessionPool>());
+
+    /**
+     * Bounded pool of admin sessions. A session is used by one thread at a
+     * time; it is logged in on first use and kept for reuse afterwards.
+     */
+    private static class SessionPool {
+
+        private final Semaphore permits;
+        private final BlockingQueue<Session> idle = new LinkedBlockingQueue<Session>();
+
+        SessionPool(int size) {
+            permits = new Semaphore(size, true);
+        }
+
+        Session acquire() throws RepositoryException {
+            try {
+                if (!permits.tryAcquire(sessionTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new RepositoryException("Timed out waiting for a repository session");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException(e);
+            }
+            try {
+                Session s = idle.poll();
+                while (s != null && !s.isLive()) {
+                    owners.remove(s);
+                    s = idle.poll();
+                }
+                if (s == null) {
+                    s = repository.login(new SimpleCredentials("admin", new char[0]));
+                    owners.put(s, this);
+                }
+                return s;
+            } catch (RepositoryException e) {
+                permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void release(Session s) {
+            try {
+                if (s.isLive()) {
+                    // Drop whatever a failed request left unsaved
+                    s.refresh(false);
+                    idle.offer(s);
+                } else {
+                    owners.remove(s);
+                }
+            } catch (RepositoryException e) {
+                owners.remove(s);
+                s.logout();
+            } finally {
+                permits.release();
+            }
+        }
+
+        void close() {
+            Session s;
+            while ((s = idle.poll()) != null) {
+                owners.remove(s);
+                s.logout();
+            }
+        }
+    }
 
     /**
      * Create an instance of JCRUtil
@@ -61,11 +139,7 @@ public class JCRUtil extends OlogContextListener {
             }
             RepositoryConfig config = RepositoryConfig.create(xml, dir);
             repository = RepositoryImpl.create(config);
-            
-            SimpleCredentials adminCred = new 
-            SimpleCredentials("admin", new char[0]); 
-            session = repository.login(adminCred);
-            
+
         } catch (RepositoryException ex) {
             Logger.getLogger(JCRUtil.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -76,9 +150,51 @@ public class JCRUtil extends OlogContextListener {
         return repository;
     }
     
-    public static Session getSession() {
+    /**
+     * Takes a session for reading from the reader pool, waiting up to
+     * olog/jcrSessionTimeout seconds for one to become free.
+     *
+     * @return session to hand back with release()
+     * @throws RepositoryException if no session could be had
+     */
+    public static Session getReadSession() throws RepositoryException {
+        return readers.acquire();
+    }
+
+    /**
+     * Takes a session for writing from the writer pool, so a save() only
+     * ever persists the changes of the request holding the session.
+     *
+     * @return session to hand back with release()
+     * @throws RepositoryException if no session could be had
+     */
+    public static Session getWriteSession() throws RepositoryException {
+        return writers.acquire();
+    }
 
-        return session;
+    /**
+     * Returns a session to its pool, discarding unsaved changes.
+     *
+     * @param s session, may be null
+     */
+    public static void release(Session s) {
+        if (s == null) {
+            return;
+        }
+        SessionPool pool = owners.get(s);
+        if (pool != null) {
+            pool.release(s);
+        } else {
+            s.logout();
+        }
+    }
+
+    /**
+     * Logs out the idle sessions of both pools.
+     */
+    public static void closeSessions() {
+        readers.close();
+        writers.close();
     }
     
 
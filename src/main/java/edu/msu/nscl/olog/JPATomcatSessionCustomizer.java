@@ -1,22 +1,49 @@
 package edu.msu.nscl.olog;
 
+import java.util.logging.Logger;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NameNotFoundException;
 
 import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.DatabaseLogin;
 import org.eclipse.persistence.sessions.JNDIConnector;
 import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
 
 /**
  * Tomcat requires java:/comp/env/ prefix for JNDI datasource but not Glassfish.
  * So this class, try to connect to given datasource, and if it doesn't work it
  * add the prefix to jndi lookup name.
- * 
+ *
+ * It then tunes the session from the service settings (see OlogConfig):
+ * <ul>
+ * <li>olog/jdbcBatchSize: statements per JDBC batch write, 0 to write one
+ * by one (default from persistence.xml)</li>
+ * <li>olog/jdbcStatementCacheSize: prepared statements cached per
+ * connection, 0 for none (default). Statements are only reused while
+ * EclipseLink holds the connection, so this needs olog/jdbcInternalPool;
+ * with the container pool use the statement cache of the datasource.</li>
+ * <li>olog/jdbcFetchSize: rows per round trip of read queries (default 100,
+ * applied by JPAUtil.readOnly)</li>
+ * <li>olog/jdbcInternalPool: keep connections in EclipseLink pools taken
+ * from the datasource, instead of returning them to the container after
+ * each use (default false), sized by olog/jdbcPoolMin and olog/jdbcPoolMax
+ * for writes and olog/jdbcReadPoolMin and olog/jdbcReadPoolMax for
+ * reads</li>
+ * </ul>
+ * The resulting settings are logged at startup.
  */
 public class JPATomcatSessionCustomizer implements SessionCustomizer {
 
+	private static final Logger log = Logger.getLogger(JPATomcatSessionCustomizer.class.getName());
+
+	static final int fetchSize = OlogConfig.getInt("olog/jdbcFetchSize", 100);
+
 	public void customize(Session session) throws Exception {
+		session.getEventManager().addListener(new ReadOnlyConnectionListener());
+
 		JNDIConnector connector = null;
 		Context context = null;
 		try {
@@ -46,5 +73,62 @@ public class JPATomcatSessionCustomizer implements SessionCustomizer {
 				context.close();
 			}
 		}
+
+		tune(session);
+	}
+
+	private void tune(Session session) {
+		if (!(session.getLogin() instanceof DatabaseLogin)) {
+			return;
+		}
+		DatabaseLogin login = (DatabaseLogin) session.getLogin();
+
+		int batchSize = OlogConfig.getInt("olog/jdbcBatchSize",
+				login.shouldUseBatchWriting() ? login.getMaxBatchWritingSize() : 0);
+		login.setUsesBatchWriting(batchSize > 1);
+		if (batchSize > 1) {
+			login.setUsesJDBCBatchWriting(true);
+			login.setMaxBatchWritingSize(batchSize);
+		}
+
+		int statementCacheSize = OlogConfig.getInt("olog/jdbcStatementCacheSize", 0);
+		login.setShouldCacheAllStatements(statementCacheSize > 0);
+		if (statementCacheSize > 0) {
+			login.setShouldBindAllParameters(true);
+			login.setStatementCacheSize(statementCacheSize);
+		}
+
+		StringBuilder report = new StringBuilder();
+		report.append("JDBC batch size ").append(batchSize > 1 ? batchSize : 0)
+				.append(", statement cache ").append(statementCacheSize)
+				.append(", fetch size ").append(fetchSize);
+
+		if (OlogConfig.getBoolean("olog/jdbcInternalPool", false)
+				&& session instanceof ServerSession) {
+			ServerSession server = (ServerSession) session;
+			login.setUsesExternalConnectionPooling(false);
+			size(server.getDefaultConnectionPool(), "olog/jdbcPoolMin", "olog/jdbcPoolMax");
+			size(server.getReadConnectionPool(), "olog/jdbcReadPoolMin", "olog/jdbcReadPoolMax");
+			report.append(", internal pools: write ")
+					.append(server.getDefaultConnectionPool().getMinNumberOfConnections()).append('-')
+					.append(server.getDefaultConnectionPool().getMaxNumberOfConnections())
+					.append(", read ")
+					.append(server.getReadConnectionPool().getMinNumberOfConnections()).append('-')
+					.append(server.getReadConnectionPool().getMaxNumberOfConnections());
+		} else {
+			report.append(", container pool");
+			if (statementCacheSize > 0) {
+				log.warning("olog/jdbcStatementCacheSize has no effect without olog/jdbcInternalPool");
+			}
+		}
+		log.info(report.toString());
+	}
+
+	private static void size(ConnectionPool pool, String minName, String maxName) {
+		int max = Math.max(1, OlogConfig.getInt(maxName, pool.getMaxNumberOfConnections()));
+		int min = Math.min(max, Math.max(0, OlogConfig.getInt(minName, pool.getMinNumberOfConnections())));
+		pool.setMaxNumberOfConnections(max);
+		pool.setMinNumberOfConnections(min);
+		pool.setInitialNumberOfConnections(min);
 	}
-}
\ No newline at end of file
+}
@@ -4,6 +4,8 @@
  */
 package edu.msu.nscl.olog;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.persistence.*;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -14,6 +16,8 @@ import javax.persistence.criteria.Join;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
 import org.apache.log4j.Logger;
+import org.eclipse.persistence.config.PessimisticLock;
+import org.eclipse.persistence.config.QueryHints;
 
 /**
  *
@@ -22,8 +26,19 @@ import org.apache.log4j.Logger;
 public class JPAUtil {
 
     private static final EntityManagerFactory factory;
+    private static final EntityManagerFactory replica;
     private static volatile long aliasCount = 0;
     private static final Logger logger = Logger.getLogger(edu.msu.nscl.olog.JPAUtil.class);
+    private static final ThreadLocal<EntityManager> entityManager = new ThreadLocal<EntityManager>();
+    private static final ThreadLocal<Boolean> useReplica = new ThreadLocal<Boolean>();
+    private static final ThreadLocal<List<Runnable>> afterCommit = new ThreadLocal<List<Runnable>>();
+    private static final ThreadLocal<Integer> depth = new ThreadLocal<Integer>() {
+
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
 
     static {
         try {
@@ -33,33 +48,262 @@ public class JPAUtil {
             logger.error("Initial SessionFactory creation failed", ex);
             throw new ExceptionInInitializerError(ex);
         }
+        replica = createReplica();
+    }
+
+    /**
+     * Opens the read-only unit olog_ro if its datasource jdbc/olog_ro is
+     * bound, logging in at once so that an unreachable replica leaves reads
+     * on the primary rather than failing them.
+     *
+     * @return the replica factory, or null
+     */
+    private static EntityManagerFactory createReplica() {
+        if (OlogConfig.lookup("jdbc/olog_ro") == null) {
+            return null;
+        }
+        EntityManagerFactory ro = null;
+        try {
+            ro = Persistence.createEntityManagerFactory("olog_ro");
+            ro.createEntityManager().close();
+            logger.info("Routing reads to the replica jdbc/olog_ro");
+            return ro;
+        } catch (Throwable ex) {
+            logger.error("Cannot open the replica jdbc/olog_ro, reading from the primary", ex);
+            if (ro != null && ro.isOpen()) {
+                ro.close();
+            }
+            return null;
+        }
     }
 
     public static EntityManagerFactory getEntityManagerFactory() {
         return factory;
     }
 
+    /**
+     * @return whether a read replica is configured
+     */
+    public static boolean hasReplica() {
+        return replica != null;
+    }
+
+    /**
+     * Routes the EntityManager the current thread opens next to the read
+     * replica, if there is one, until closeEntityManager(). Only for units
+     * of work that do not write, such as GET requests (see
+     * EntityManagerFilter).
+     */
+    public static void useReplica() {
+        if (replica != null) {
+            useReplica.set(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Closes the primary and replica factories.
+     */
+    public static void close() {
+        if (replica != null) {
+            replica.close();
+        }
+        factory.close();
+    }
+
+    /**
+     * Returns the EntityManager bound to the current thread, opening and
+     * binding a new one if none exists yet. Within a servlet request the
+     * EntityManager is closed by EntityManagerFilter; any other thread that
+     * calls this must call closeEntityManager() when done.
+     * <p>
+     * The flush mode is COMMIT: queries issued by one manager while another
+     * has pending changes (e.g. LogManager.create looking up logbooks) must
+     * not flush a half-built entity.
+     *
+     * @return the EntityManager of the current unit of work
+     */
+    public static EntityManager getEntityManager() {
+        EntityManager em = entityManager.get();
+        if (em == null || !em.isOpen()) {
+            em = (useReplica.get() != null ? replica : factory).createEntityManager();
+            em.setFlushMode(FlushModeType.COMMIT);
+            entityManager.set(em);
+            depth.set(0);
+        }
+        return em;
+    }
+
+    /**
+     * Closes the EntityManager bound to the current thread, rolling back
+     * any transaction left open, and unbinds it; the thread's next
+     * EntityManager is on the primary again.
+     */
+    public static void closeEntityManager() {
+        EntityManager em = entityManager.get();
+        entityManager.remove();
+        depth.remove();
+        useReplica.remove();
+        afterCommit.remove();
+        if (em != null && em.isOpen()) {
+            try {
+                EntityTransaction tx = em.getTransaction();
+                if (tx.isActive()) {
+                    logger.warn("Rolling back transaction left open at end of unit of work");
+                    tx.rollback();
+                }
+            } finally {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a (possibly nested) unit of work on <tt>em</tt>. Only the
+     * outermost call begins the transaction, so managers can call each other
+     * while sharing the request's EntityManager. Nested in a read-only unit
+     * of work, which has none, it begins one; the outermost finish commits
+     * it.
+     *
+     * @param em Entity Manager
+     */
     public static void startTransaction(EntityManager em) {
-        em.getTransaction().begin();
+        int level = depth.get();
+        EntityTransaction tx = em.getTransaction();
+        if (!tx.isActive()) {
+            tx.begin();
+        }
+        depth.set(level + 1);
     }
 
+    /**
+     * Finishes a unit of work started with startTransaction. The outermost
+     * call commits and clears the persistence context, so entities handed
+     * back to callers are detached just like they were when every manager
+     * call used (and closed) its own EntityManager. If a nested unit of
+     * work failed, the outermost call rolls back instead and throws.
+     *
+     * @param em Entity Manager
+     * @throws RollbackException if a nested unit of work failed
+     */
     public static void finishTransacton(EntityManager em) {
+        int level = depth.get() - 1;
+        if (level > 0) {
+            depth.set(level);
+            return;
+        }
+        depth.set(0);
         if (em.isOpen()) {
             EntityTransaction tx = em.getTransaction();
+            if (tx.isActive() && tx.getRollbackOnly()) {
+                afterCommit.remove();
+                tx.rollback();
+                em.clear();
+                throw new RollbackException("A nested unit of work failed; the transaction was rolled back");
+            }
             if (tx.isActive()) {
-                em.getTransaction().commit();
+                tx.commit();
+            }
+            em.clear();
+        }
+        runAfterCommit();
+    }
+
+    /**
+     * Runs <tt>action</tt> once the outermost unit of work on the current
+     * thread has committed, e.g. to index what it wrote; it is dropped if
+     * the unit of work fails. Outside a unit of work it runs at once.
+     *
+     * @param action what to do after the commit
+     */
+    public static void afterCommit(Runnable action) {
+        if (depth.get() == 0) {
+            action.run();
+            return;
+        }
+        List<Runnable> actions = afterCommit.get();
+        if (actions == null) {
+            actions = new ArrayList<Runnable>();
+            afterCommit.set(actions);
+        }
+        actions.add(action);
+    }
+
+    private static void runAfterCommit() {
+        List<Runnable> actions = afterCommit.get();
+        afterCommit.remove();
+        if (actions == null) {
+            return;
+        }
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.warn("Action after commit failed", e);
             }
-            em.close();
         }
     }
 
+    /**
+     * Starts a (possibly nested) read-only unit of work on <tt>em</tt>. No
+     * transaction is begun, so queries run on EclipseLink's read connection
+     * pool (set read-only by ReadOnlyConnectionListener) without the begin
+     * and commit round trips. Nested inside a write unit of work the reads
+     * simply join the active transaction.
+     *
+     * @param em Entity Manager
+     */
+    public static void startReadOnly(EntityManager em) {
+        depth.set(depth.get() + 1);
+    }
+
+    /**
+     * Finishes a unit of work started with startReadOnly; the outermost call
+     * commits what writes nested in it did, and clears the persistence
+     * context.
+     *
+     * @param em Entity Manager
+     */
+    public static void finishReadOnly(EntityManager em) {
+        finishTransacton(em);
+    }
+
+    /**
+     * Applies the read query hint profile to <tt>query</tt>.
+     *
+     * @param query query used by a read path
+     * @return the same query
+     */
+    public static <T> TypedQuery<T> readOnly(TypedQuery<T> query) {
+        query.setHint(QueryHints.JDBC_FETCH_SIZE, JPATomcatSessionCustomizer.fetchSize);
+        query.setHint(QueryHints.PESSIMISTIC_LOCK, PessimisticLock.NoLock);
+        return query;
+    }
+
+    /**
+     * Ends a unit of work that failed. A nested call only marks the
+     * transaction rollback-only and unwinds one level, leaving the outer
+     * unit of work to its caller; the outermost call rolls back and clears
+     * the persistence context.
+     *
+     * @param em Entity Manager
+     */
     public static void transactionFailed(EntityManager em) {
-        if (em.isOpen()) {
+        int level = Math.max(depth.get() - 1, 0);
+        depth.set(level);
+        if (level > 0) {
+            if (em != null && em.isOpen() && em.getTransaction().isActive()) {
+                em.getTransaction().setRollbackOnly();
+            }
+            return;
+        }
+        afterCommit.remove();
+        if (em != null && em.isOpen()) {
             EntityTransaction tx = em.getTransaction();
 
             if (tx != null && tx.isActive()) {
                 tx.rollback();
             }
+            em.clear();
         }
     }
 
@@ -67,7 +311,7 @@ public class JPAUtil {
         EntityManager em = null;
 
         try {
-            em = JPAUtil.getEntityManagerFactory().createEntityManager();
+            em = JPAUtil.getEntityManager();
             JPAUtil.startTransaction(em);
             em.persist(o);
             JPAUtil.finishTransacton(em);
@@ -82,7 +326,7 @@ public class JPAUtil {
         EntityManager em = null;
 
         try {
-            em = JPAUtil.getEntityManagerFactory().createEntityManager();
+            em = JPAUtil.getEntityManager();
             JPAUtil.startTransaction(em);
             o = em.merge(o);
             JPAUtil.finishTransacton(em);
@@ -98,7 +342,7 @@ public class JPAUtil {
         EntityManager em = null;
 
         try {
-            em = JPAUtil.getEntityManagerFactory().createEntityManager();
+            em = JPAUtil.getEntityManager();
             JPAUtil.startTransaction(em);
 
             Query query = em.createQuery("UPDATE " + type.getName() + " c  SET c.state= edu.msu.nscl.olog.State.Inactive  WHERE c.id = " + id.toString());
@@ -116,10 +360,10 @@ public class JPAUtil {
         EntityManager em = null;
 
         try {
-            em = JPAUtil.getEntityManagerFactory().createEntityManager();
-            JPAUtil.startTransaction(em);
+            em = JPAUtil.getEntityManager();
+            JPAUtil.startReadOnly(em);
             Object o = em.find(type, id);
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
 
             return o;
 
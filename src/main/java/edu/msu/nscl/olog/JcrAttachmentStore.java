@@ -0,0 +1,359 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import javax.jcr.*;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitValue;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.data.FileDataStore;
+
+/**
+ * Keeps attachments in the Jackrabbit repository: an nt:file node per
+ * attachment under a folder named after the entry id, and the thumbnails
+ * of each size under thumbnailFolder. Attachments with the same content
+ * refer to the same binary value, which the data store garbage collector
+ * deletes once no node refers to it.
+ *
+ * @author berryman
+ */
+public class JcrAttachmentStore implements AttachmentStore {
+
+    /**
+     * Returns the repository folder holding the thumbnails of one size of
+     * an entry: thumbnails/entry id for the default size, as it always was,
+     * thumbnails_size/entry id for the others.
+     *
+     * @param logId entry id
+     * @param size thumbnail size
+     * @return path relative to the root node
+     */
+    public static String thumbnailFolder(Long logId, int size) {
+        if (size == ThumbnailWorker.getDefaultSize()) {
+            return "thumbnails/" + logId.toString();
+        }
+        return "thumbnails_" + size + "/" + logId.toString();
+    }
+
+    @Override
+    public boolean holds(String path) {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public void put(AttachmentMetadata metadata, InputStream content) throws IOException {
+        Session session = null;
+        try {
+            session = session(true);
+            ValueFactory valueFactory = session.getValueFactory();
+            Node rn = session.getRootNode();
+            Long logId = metadata.getEntryId();
+            String fileName = metadata.getFileName();
+
+            Node folderNode;
+
+            if (rn.hasNode(logId.toString())) {
+                folderNode = rn.getNode(logId.toString());
+                if (!folderNode.isNodeType(JcrConstants.NT_FOLDER)) {
+                    folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
+                }
+            } else {
+                folderNode = rn.addNode(logId.toString(), JcrConstants.NT_FOLDER);
+            }
+            Node fileNode = folderNode.addNode(fileName, JcrConstants.NT_FILE);
+            Node resNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+            resNode.setProperty(JcrConstants.JCR_MIMETYPE, metadata.getMimeType());
+            resNode.setProperty(JcrConstants.JCR_ENCODING, "");
+
+            DigestInputStream digestStream = new DigestInputStream(content, AttachmentManager.newDigest());
+            Binary binFile = valueFactory.createBinary(digestStream);
+            metadata.setFileSize(binFile.getSize());
+            metadata.setContentHash(AttachmentManager.toHex(digestStream.getMessageDigest().digest()));
+            metadata.setPath(fileNode.getPath());
+
+            AttachmentMetadata original;
+            try {
+                original = AttachmentManager.findByContent(metadata.getContentHash(), metadata.getFileSize());
+            } catch (CFException ex) {
+                // Store the content again rather than fail the upload
+                original = null;
+            }
+            if (original != null && holds(original.getPath())
+                    && rn.hasNode(relative(original.getPath()) + "/" + JcrConstants.JCR_CONTENT)) {
+                // Refer to the content already stored instead of storing it again
+                Node originalRes = rn.getNode(relative(original.getPath()) + "/" + JcrConstants.JCR_CONTENT);
+                resNode.setProperty(JcrConstants.JCR_DATA, originalRes.getProperty(JcrConstants.JCR_DATA).getValue());
+                metadata.setThumbnail(original.getThumbnail()
+                        && shareThumbnails(rn, original, logId, fileName));
+            } else {
+                resNode.setProperty(JcrConstants.JCR_DATA, binFile);
+            }
+            binFile.dispose();
+            session.save();
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        } finally {
+            JCRUtil.release(session);
+        }
+    }
+
+    @Override
+    public Attachment get(AttachmentMetadata metadata) throws IOException {
+        return open(metadata.getEntryId().toString(), metadata.getFileName());
+    }
+
+    @Override
+    public void putThumbnails(AttachmentMetadata metadata, String mimeType, Map<Integer, byte[]> thumbnails)
+            throws IOException {
+        Session session = null;
+        try {
+            session = session(true);
+            ValueFactory valueFactory = session.getValueFactory();
+            Node rn = session.getRootNode();
+            for (Map.Entry<Integer, byte[]> thumbnail : thumbnails.entrySet()) {
+                Node tfolderNode = folder(rn, thumbnailFolder(metadata.getEntryId(), thumbnail.getKey()));
+                if (tfolderNode.hasNode(metadata.getFileName())) {
+                    tfolderNode.getNode(metadata.getFileName()).remove();
+                }
+                Node tfileNode = tfolderNode.addNode(metadata.getFileName(), JcrConstants.NT_FILE);
+                Node tresNode = tfileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+                tresNode.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
+                tresNode.setProperty(JcrConstants.JCR_ENCODING, "");
+                Binary binThumbnail = valueFactory.createBinary(new ByteArrayInputStream(thumbnail.getValue()));
+                tresNode.setProperty(JcrConstants.JCR_DATA, binThumbnail);
+                binThumbnail.dispose();
+            }
+            session.save();
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        } finally {
+            JCRUtil.release(session);
+        }
+    }
+
+    @Override
+    public Attachment getThumbnail(AttachmentMetadata metadata, int size) throws IOException {
+        return open(thumbnailFolder(metadata.getEntryId(), size), metadata.getFileName());
+    }
+
+    @Override
+    public void remove(AttachmentMetadata metadata) throws IOException {
+        Session session = null;
+        try {
+            session = session(true);
+            Node rn = session.getRootNode();
+            Long logId = metadata.getEntryId();
+            String fileName = metadata.getFileName();
+            Node folderNode = rn.getNode(logId.toString());
+            Node contentNode = folderNode.getNode(fileName);
+            contentNode.remove();
+            for (int size : ThumbnailWorker.getSizes()) {
+                String thumbnailPath = thumbnailFolder(logId, size) + "/" + fileName;
+                if (rn.hasNode(thumbnailPath)) {
+                    rn.getNode(thumbnailPath).remove();
+                }
+            }
+            session.save();
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        } finally {
+            JCRUtil.release(session);
+        }
+    }
+
+    /**
+     * Runs the data store garbage collector, which finds the unreferenced
+     * binaries itself.
+     */
+    @Override
+    public void collect(Collection<AttachmentMetadata> released) throws IOException {
+        if (released.isEmpty() || !(JCRUtil.getRepository() instanceof RepositoryImpl)) {
+            return;
+        }
+        try {
+            org.apache.jackrabbit.api.management.DataStoreGarbageCollector gc =
+                    ((RepositoryImpl) JCRUtil.getRepository()).createDataStoreGarbageCollector();
+            try {
+                gc.mark();
+                gc.sweep();
+            } finally {
+                gc.close();
+            }
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public List<Long> search(String searchTerm) throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        if (JCRUtil.getRepository() == null) {
+            return ids;
+        }
+        Session session = null;
+        try {
+            session = session(false);
+            Workspace workspace = session.getWorkspace();
+            QueryManager qm = workspace.getQueryManager();
+            Query query = qm.createQuery("//element(*, nt:file)[jcr:contains(jcr:content, '" + searchTerm + "')]", Query.XPATH);
+            QueryResult qr = query.execute();
+            NodeIterator ni = qr.getNodes();
+            while (ni.hasNext()) {
+                Node node = ni.nextNode();
+                Node parent = node.getParent();
+                String name = parent.getName();
+                ids.add(Long.valueOf(name));
+            }
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        } finally {
+            JCRUtil.release(session);
+        }
+        return ids;
+    }
+
+    /**
+     * Opens a file for reading. The content stream stays valid until it is
+     * closed, which also releases the binary. When the repository keeps
+     * the content in its FileDataStore, the file is handed out as well, so
+     * it can be sent without copying.
+     */
+    private static Attachment open(String filePath, String fileName) throws IOException {
+        Session session = null;
+        Attachment attachment = new Attachment();
+        try {
+            session = session(false);
+            Node rn = session.getRootNode();
+            Node folderNode = rn.getNode(filePath);
+            Node contentNode = folderNode.getNode(fileName).getNode(JcrConstants.JCR_CONTENT);
+            javax.jcr.Property dataProperty = contentNode.getProperty(JcrConstants.JCR_DATA);
+            javax.jcr.Property mimeProperty = contentNode.getProperty(JcrConstants.JCR_MIMETYPE);
+
+            attachment.setFileName(fileName);
+            attachment.setMimeType(mimeProperty.getString());
+            attachment.setFileSize(dataProperty.getLength());
+            Value value = dataProperty.getValue();
+            attachment.setFile(dataStoreFile(value, dataProperty.getLength()));
+
+            final Binary bin = value.getBinary();
+            attachment.setContent(new FilterInputStream(bin.getStream()) {
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        bin.dispose();
+                    }
+                }
+            });
+        } catch (RepositoryException ex) {
+            throw failed(ex);
+        } finally {
+            // The content stream reads from the data store, not the session
+            JCRUtil.release(session);
+        }
+        return attachment;
+    }
+
+    /**
+     * Locates the file holding a binary value in the repository's
+     * FileDataStore, which stores each record under its identifier, split
+     * into three levels of directories.
+     *
+     * @return the file, or null if the value is not in a FileDataStore
+     */
+    private static File dataStoreFile(Value value, long length) {
+        if (!(value instanceof JackrabbitValue) || !(JCRUtil.getRepository() instanceof RepositoryImpl)) {
+            return null;
+        }
+        DataStore store = ((RepositoryImpl) JCRUtil.getRepository()).getDataStore();
+        String id = ((JackrabbitValue) value).getContentIdentity();
+        if (!(store instanceof FileDataStore) || id == null || id.length() < 6) {
+            return null;
+        }
+        File file = new File(((FileDataStore) store).getPath(),
+                id.substring(0, 2) + File.separator + id.substring(2, 4) + File.separator
+                + id.substring(4, 6) + File.separator + id);
+        return file.isFile() && file.length() == length ? file : null;
+    }
+
+    /**
+     * Gives a new attachment the thumbnails of an attachment with the same
+     * content.
+     *
+     * @return false if the original is missing a thumbnail of some size
+     */
+    private static boolean shareThumbnails(Node rn, AttachmentMetadata original, Long logId, String fileName)
+            throws RepositoryException {
+        for (int size : ThumbnailWorker.getSizes()) {
+            if (!rn.hasNode(thumbnailFolder(original.getEntryId(), size) + "/" + original.getFileName())) {
+                return false;
+            }
+        }
+        for (int size : ThumbnailWorker.getSizes()) {
+            Node originalRes = rn.getNode(thumbnailFolder(original.getEntryId(), size) + "/"
+                    + original.getFileName() + "/" + JcrConstants.JCR_CONTENT);
+            Node tfolderNode = folder(rn, thumbnailFolder(logId, size));
+            if (tfolderNode.hasNode(fileName)) {
+                tfolderNode.getNode(fileName).remove();
+            }
+            Node tresNode = tfolderNode.addNode(fileName, JcrConstants.NT_FILE)
+                    .addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+            tresNode.setProperty(JcrConstants.JCR_MIMETYPE, originalRes.getProperty(JcrConstants.JCR_MIMETYPE).getString());
+            tresNode.setProperty(JcrConstants.JCR_ENCODING, "");
+            tresNode.setProperty(JcrConstants.JCR_DATA, originalRes.getProperty(JcrConstants.JCR_DATA).getValue());
+        }
+        return true;
+    }
+
+    /**
+     * @return an absolute repository path made relative to the root node
+     */
+    private static String relative(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static Node folder(Node rn, String path) throws RepositoryException {
+        Node node = rn;
+        for (String name : path.split("/")) {
+            if (node.hasNode(name)) {
+                node = node.getNode(name);
+            } else {
+                node = node.addNode(name, JcrConstants.NT_FOLDER);
+            }
+        }
+        return node;
+    }
+
+    private static Session session(boolean write) throws RepositoryException, IOException {
+        if (JCRUtil.getRepository() == null) {
+            throw new IOException("The repository is not open (olog/jcrEnabled)");
+        }
+        return write ? JCRUtil.getWriteSession() : JCRUtil.getReadSession();
+    }
+
+    private static IOException failed(RepositoryException ex) {
+        IOException e = ex instanceof PathNotFoundException
+                ? new FileNotFoundException(ex.getMessage()) : new IOException(ex.getMessage());
+        e.initCause(ex);
+        return e;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.*;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A background export or import of log entries, run by JobRunner, with the
+ * progress it has made. An export writes the directory <tt>path</tt> under
+ * olog/exportPath one part at a time, <tt>position</tt> being the last
+ * entry id exported; an import reads such a directory, <tt>position</tt>
+ * being the number of parts imported. A job resumes from there.
+ * <p>
+ * The node queueing or running a job keeps its <tt>heartbeat</tt> fresh;
+ * another node only takes a pending job over once the heartbeat is stale.
+ *
+ * @author berryman
+ */
+@Entity
+@Table(name = "jobs")
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name = "job")
+public class Job implements Serializable {
+
+    public enum Type {
+
+        Export, Import
+    }
+
+    public enum Status {
+
+        Queued, Running, Done, Failed, Cancelled
+    }
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+    @Enumerated(EnumType.STRING)
+    @Column(name = "type", nullable = false)
+    private Type type;
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false)
+    private Status status;
+    @Column(name = "owner", nullable = false, length = 50)
+    private String owner;
+    @Column(name = "logbook", length = 45)
+    private String logbook;
+    @Column(name = "path", nullable = false, length = 250)
+    private String path;
+    @Column(name = "position", nullable = false)
+    private long position;
+    @Column(name = "parts", nullable = false)
+    private int parts;
+    @Column(name = "entries", nullable = false)
+    private long entries;
+    @Column(name = "attachments", nullable = false)
+    private long attachments;
+    @Column(name = "skipped", nullable = false)
+    private long skipped;
+    @Column(name = "total")
+    private Long total;
+    @Column(name = "message", length = 1000)
+    private String message;
+    @Column(name = "node", length = 64)
+    private String node;
+    @Column(name = "heartbeat")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date heartbeat;
+    @Column(name = "created", nullable = false, updatable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+    @Column(name = "modified", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date modified;
+
+    @PrePersist
+    @PreUpdate
+    public void setUpdated() {
+        modified = new Date();
+        if (created == null) {
+            created = modified;
+        }
+    }
+
+    /**
+     * Creates a new instance of Job
+     */
+    public Job() {
+    }
+
+    /**
+     * @param type export or import
+     * @param owner user who started the job
+     * @param logbook logbook to export, or null for all
+     * @param path directory under olog/exportPath
+     */
+    public Job(Type type, String owner, String logbook, String path) {
+        this.type = type;
+        this.status = Status.Queued;
+        this.owner = owner;
+        this.logbook = logbook;
+        this.path = path;
+    }
+
+    @XmlAttribute
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    @XmlAttribute
+    public Type getType() {
+        return type;
+    }
+
+    @XmlAttribute
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    @XmlAttribute
+    public String getOwner() {
+        return owner;
+    }
+
+    @XmlAttribute
+    public String getLogbook() {
+        return logbook;
+    }
+
+    /**
+     * @return directory of the export, under olog/exportPath
+     */
+    @XmlAttribute
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return where the job resumes: the last entry id exported, or the
+     * number of parts imported
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    /**
+     * @return number of parts written or read
+     */
+    @XmlAttribute
+    public int getParts() {
+        return parts;
+    }
+
+    public void setParts(int parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @return number of entries exported or imported
+     */
+    @XmlAttribute
+    public long getEntries() {
+        return entries;
+    }
+
+    public void setEntries(long entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return number of attachments exported or imported
+     */
+    @XmlAttribute
+    public long getAttachments() {
+        return attachments;
+    }
+
+    public void setAttachments(long attachments) {
+        this.attachments = attachments;
+    }
+
+    /**
+     * @return number of entries not imported because a different entry has
+     * their id
+     */
+    @XmlAttribute
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return number of entries to export or import, if known
+     */
+    @XmlAttribute
+    public Long getTotal() {
+        return total;
+    }
+
+    public void setTotal(Long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return why the job failed
+     */
+    @XmlElement
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return node that queued or runs the job
+     */
+    @XmlAttribute
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    /**
+     * @return when the node last showed it still holds the job
+     */
+    @XmlAttribute
+    public Date getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(Date heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    @XmlAttribute
+    public Date getCreated() {
+        return created;
+    }
+
+    @XmlAttribute
+    public Date getModified() {
+        return modified;
+    }
+
+    /**
+     * @return whether the job is still to run, or running
+     */
+    public boolean isPending() {
+        return status == Status.Queued || status == Status.Running;
+    }
+}
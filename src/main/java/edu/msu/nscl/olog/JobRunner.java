@@ -0,0 +1,495 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Runs export and import jobs, one at a time, on the olog-jobs thread.
+ * Exports are written to, and imports read from, directories under
+ * olog/exportPath. A job records its progress after every part, with an
+ * update that only applies while it is still running here, so a job
+ * cancelled or taken over meanwhile stops at its next part. Failed or
+ * cancelled jobs resume from their last part when asked to.
+ * <p>
+ * Several nodes may share the jobs table. A node claims a job with a
+ * single update that records its name and a heartbeat, and refreshes the
+ * heartbeat of the jobs it holds every olog/jobHeartbeatInterval seconds
+ * (default 30). Jobs left pending by a node that stopped are taken over
+ * by the first node to check once their heartbeat is older than
+ * olog/jobHeartbeatTimeout seconds (default 300); a node restarted with
+ * the same olog/nodeName resumes its own jobs at once.
+ *
+ * @author berryman
+ */
+public class JobRunner {
+
+    private static final Logger log = Logger.getLogger(JobRunner.class.getName());
+    private static final File root = new File(OlogConfig.getString("olog/exportPath", "exports"));
+    private static final int MAX_MESSAGE = 1000;
+    private static final long heartbeatInterval = OlogConfig.getLong("olog/jobHeartbeatInterval", 30) * 1000;
+    private static final long heartbeatTimeout = OlogConfig.getLong("olog/jobHeartbeatTimeout", 300) * 1000;
+    private static final Map<Long, Future<?>> running = new ConcurrentHashMap<Long, Future<?>>();
+    private static ExecutorService executor;
+    private static ScheduledExecutorService heartbeat;
+
+    private JobRunner() {
+    }
+
+    /**
+     * Starts running jobs, resuming those left pending.
+     */
+    public static synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olog-jobs");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olog-jobs-heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    beat();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not check jobs", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the heartbeat of the jobs this node holds, and takes over
+     * the pending jobs of nodes that stopped.
+     */
+    private static void beat() throws CFException {
+        Timestamp now = CacheCoordinator.now();
+        if (!running.isEmpty()) {
+            EntityManager em = JPAUtil.getEntityManager();
+            JPAUtil.startTransaction(em);
+            try {
+                em.createQuery("UPDATE Job j SET j.heartbeat = :now WHERE j.id IN :ids AND j.node = :node")
+                        .setParameter("now", now)
+                        .setParameter("ids", new ArrayList<Long>(running.keySet()))
+                        .setParameter("node", CacheCoordinator.getNode())
+                        .executeUpdate();
+                JPAUtil.finishTransacton(em);
+            } catch (PersistenceException e) {
+                JPAUtil.transactionFailed(em);
+                throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                        "JPA exception: " + e);
+            }
+        }
+        for (Job job : findResumable(new Timestamp(now.getTime() - heartbeatTimeout))) {
+            if (!running.containsKey(job.getId())) {
+                log.log(Level.INFO, "Resuming {0} job {1} of node {2}",
+                        new Object[]{job.getType(), job.getId(), job.getNode()});
+                schedule(job.getId());
+            }
+        }
+    }
+
+    /**
+     * Stops running jobs; they resume at the next start.
+     */
+    public static synchronized void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            running.clear();
+        }
+    }
+
+    /**
+     * @param job a job
+     * @return directory the job writes or reads
+     */
+    public static File directory(Job job) {
+        return new File(root, job.getPath());
+    }
+
+    /**
+     * Queues an export of the entries in a logbook, to a new directory
+     * export-<i>id</i>.
+     *
+     * @param owner user starting it
+     * @param logbook logbook name, or null for all entries
+     * @return the job
+     * @throws CFException NOT_FOUND if there is no such logbook
+     */
+    public static Job export(String owner, String logbook) throws CFException {
+        if (logbook != null && LogbookManager.findLogbook(logbook) == null) {
+            throw new CFException(Response.Status.NOT_FOUND,
+                    "Logbook " + logbook + " does not exist.");
+        }
+        Job job = new Job(Job.Type.Export, owner, logbook, "");
+        hold(job);
+        save(job);
+        job.setPath("export-" + job.getId());
+        try {
+            job = (Job) JPAUtil.update(job);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+        schedule(job.getId());
+        return job;
+    }
+
+    /**
+     * Queues an import of an export.
+     *
+     * @param owner user starting it
+     * @param path directory of the export, under olog/exportPath
+     * @return the job
+     * @throws CFException BAD_REQUEST if there is no such directory
+     */
+    public static Job importFrom(String owner, String path) throws CFException {
+        if (path == null || !path.matches("[\\w-][\\w.-]*") || !new File(root, path).isDirectory()) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "No export " + path + " in " + root);
+        }
+        Job job = new Job(Job.Type.Import, owner, null, path);
+        hold(job);
+        save(job);
+        schedule(job.getId());
+        return job;
+    }
+
+    /**
+     * Cancels a queued or running job.
+     *
+     * @param id job id
+     * @return the job
+     * @throws CFException NOT_FOUND if there is no such job, CONFLICT if it
+     * is not pending
+     */
+    public static Job cancel(Long id) throws CFException {
+        if (!setStatus(id, Job.Status.Cancelled, null, Job.Status.Queued, Job.Status.Running)) {
+            throw notPending(id);
+        }
+        Future<?> future = running.remove(id);
+        if (future != null) {
+            future.cancel(true);
+        }
+        return find(id);
+    }
+
+    /**
+     * Queues a failed or cancelled job again, to go on from its last part.
+     *
+     * @param id job id
+     * @return the job
+     * @throws CFException NOT_FOUND if there is no such job, CONFLICT if it
+     * is pending or done
+     */
+    public static Job resume(Long id) throws CFException {
+        if (!claim(id, Job.Status.Queued, Job.Status.Failed, Job.Status.Cancelled)) {
+            throw notPending(id);
+        }
+        schedule(id);
+        return find(id);
+    }
+
+    /**
+     * Records the progress of a running job.
+     *
+     * @param job the job
+     * @return false if the job is no longer running, having been cancelled
+     * @throws CFException wrapping a JPA exception
+     */
+    static boolean checkpoint(Job job) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            int updated = em.createQuery("UPDATE Job j SET j.position = :position, j.parts = :parts,"
+                    + " j.entries = :entries, j.attachments = :attachments, j.skipped = :skipped,"
+                    + " j.total = :total, j.modified = :modified"
+                    + " WHERE j.id = :id AND j.status = :running AND j.node = :node")
+                    .setParameter("position", job.getPosition())
+                    .setParameter("parts", job.getParts())
+                    .setParameter("entries", job.getEntries())
+                    .setParameter("attachments", job.getAttachments())
+                    .setParameter("skipped", job.getSkipped())
+                    .setParameter("total", job.getTotal())
+                    .setParameter("modified", new Date())
+                    .setParameter("id", job.getId())
+                    .setParameter("running", Job.Status.Running)
+                    .setParameter("node", CacheCoordinator.getNode())
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+            return updated == 1;
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    /**
+     * @param id job id
+     * @return the job, or null
+     */
+    public static Job find(Long id) throws CFException {
+        try {
+            return (Job) JPAUtil.findByID(Job.class, id);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    /**
+     * @return all jobs, latest first
+     */
+    public static Jobs findAll() throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            Jobs result = new Jobs();
+            result.setJobs(JPAUtil.readOnly(em.createQuery(
+                    "SELECT j FROM Job j ORDER BY j.id DESC", Job.class)).getResultList());
+            return result;
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * @return pending jobs held by this node, or whose heartbeat is older
+     * than <tt>before</tt>
+     */
+    private static List<Job> findResumable(Timestamp before) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            return JPAUtil.readOnly(em.createQuery(
+                    "SELECT j FROM Job j WHERE j.status IN :pending AND (j.node = :node"
+                    + " OR j.heartbeat IS NULL OR j.heartbeat < :before) ORDER BY j.id", Job.class))
+                    .setParameter("pending", Arrays.asList(Job.Status.Queued, Job.Status.Running))
+                    .setParameter("node", CacheCoordinator.getNode())
+                    .setParameter("before", before)
+                    .getResultList();
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Marks a new job as held by this node.
+     */
+    private static void hold(Job job) throws CFException {
+        try {
+            job.setNode(CacheCoordinator.getNode());
+            job.setHeartbeat(CacheCoordinator.now());
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    /**
+     * Sets the status of a job, and makes this node hold it, if it is in one
+     * of <tt>from</tt>. A pending job is only taken from another node whose
+     * heartbeat is stale.
+     *
+     * @return whether it was
+     */
+    private static boolean claim(Long id, Job.Status status, Job.Status... from) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            Timestamp now = CacheCoordinator.now();
+            int updated = em.createQuery("UPDATE Job j SET j.status = :status, j.message = NULL,"
+                    + " j.node = :node, j.heartbeat = :now, j.modified = :modified"
+                    + " WHERE j.id = :id AND j.status IN :from AND (j.status NOT IN :pending"
+                    + " OR j.node = :node OR j.heartbeat IS NULL OR j.heartbeat < :stale)")
+                    .setParameter("status", status)
+                    .setParameter("node", CacheCoordinator.getNode())
+                    .setParameter("now", now)
+                    .setParameter("modified", new Date())
+                    .setParameter("id", id)
+                    .setParameter("from", Arrays.asList(from))
+                    .setParameter("pending", Arrays.asList(Job.Status.Queued, Job.Status.Running))
+                    .setParameter("stale", new Timestamp(now.getTime() - heartbeatTimeout))
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+            return updated == 1;
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    /**
+     * Ends a job this node runs.
+     *
+     * @return whether it was still running here
+     */
+    private static boolean finish(Long id, Job.Status status, String message) throws CFException {
+        if (message != null && message.length() > MAX_MESSAGE) {
+            message = message.substring(0, MAX_MESSAGE);
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            int updated = em.createQuery("UPDATE Job j SET j.status = :status, j.message = :message,"
+                    + " j.modified = :modified WHERE j.id = :id AND j.status = :running AND j.node = :node")
+                    .setParameter("status", status)
+                    .setParameter("message", message)
+                    .setParameter("modified", new Date())
+                    .setParameter("id", id)
+                    .setParameter("running", Job.Status.Running)
+                    .setParameter("node", CacheCoordinator.getNode())
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+            return updated == 1;
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    private static void save(Job job) throws CFException {
+        try {
+            JPAUtil.save(job);
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    /**
+     * Sets the status of a job, if it is in one of <tt>from</tt>.
+     *
+     * @return whether it was
+     */
+    private static boolean setStatus(Long id, Job.Status status, String message, Job.Status... from)
+            throws CFException {
+        if (message != null && message.length() > MAX_MESSAGE) {
+            message = message.substring(0, MAX_MESSAGE);
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            int updated = em.createQuery("UPDATE Job j SET j.status = :status, j.message = :message,"
+                    + " j.modified = :modified WHERE j.id = :id AND j.status IN :from")
+                    .setParameter("status", status)
+                    .setParameter("message", message)
+                    .setParameter("modified", new Date())
+                    .setParameter("id", id)
+                    .setParameter("from", Arrays.asList(from))
+                    .executeUpdate();
+            JPAUtil.finishTransacton(em);
+            return updated == 1;
+        } catch (PersistenceException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
+    private static CFException notPending(Long id) throws CFException {
+        Job job = find(id);
+        if (job == null) {
+            return new CFException(Response.Status.NOT_FOUND,
+                    "Job " + id + " does not exist.");
+        }
+        return new CFException(Response.Status.CONFLICT,
+                "Job " + id + " is " + job.getStatus() + ".");
+    }
+
+    private static synchronized void schedule(final Long id) {
+        if (executor == null) {
+            // Picked up at the next start
+            return;
+        }
+        running.put(id, executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    JobRunner.run(id);
+                } finally {
+                    running.remove(id);
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }));
+    }
+
+    private static void run(Long id) {
+        try {
+            if (!claim(id, Job.Status.Running, Job.Status.Queued, Job.Status.Running)) {
+                // Cancelled while queued, or held by another node
+                return;
+            }
+            Job job = find(id);
+            long start = System.currentTimeMillis();
+            boolean done = job.getType() == Job.Type.Export ? new LogExport(job).run() : new LogImport(job).run();
+            if (done && finish(id, Job.Status.Done, null)) {
+                log.log(Level.INFO, "{0} job {1} done in {2} ms: {3} entries, {4} attachments, {5} skipped",
+                        new Object[]{job.getType(), id, System.currentTimeMillis() - start,
+                            job.getEntries(), job.getAttachments(), job.getSkipped()});
+            }
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "Job " + id + " failed", ex);
+            try {
+                finish(id, Job.Status.Failed, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            } catch (CFException e) {
+                log.log(Level.WARNING, "Could not record the failure of job " + id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Jobs (collection) object that can be represented as XML/JSON in payload data.
+ *
+ * @author berryman
+ */
+@XmlRootElement(name = "jobs")
+public class Jobs {
+
+    private Collection<Job> jobs = new ArrayList<Job>();
+
+    /** Creates a new instance of Jobs. */
+    public Jobs() {
+    }
+
+    /**
+     * Returns a collection of Job.
+     *
+     * @return a collection of Job
+     */
+    @XmlElement(name = "job")
+    public Collection<Job> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Sets the collection of jobs.
+     *
+     * @param items new job collection
+     */
+    public void setJobs(Collection<Job> items) {
+        this.jobs = items;
+    }
+
+    /**
+     * Adds a job to the job collection.
+     *
+     * @param item the Job to add
+     */
+    public void addJob(Job item) {
+        this.jobs.add(item);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.logging.Logger;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Top level Jersey HTTP methods for the .../jobs URL: bulk export and import
+ * of log entries, for administrators. Jobs run in the background; their
+ * status and progress are read back from .../jobs/<i>id</i>.
+ *
+ * @author berryman
+ */
+@Path("/jobs/")
+public class JobsResource {
+
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private SecurityContext securityContext;
+
+    private Logger audit = Logger.getLogger(this.getClass().getPackage().getName() + ".audit");
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** Creates a new instance of JobsResource */
+    public JobsResource() {
+    }
+
+    private String user() {
+        return securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+    }
+
+    private void checkAdmin() throws CFException {
+        if (!securityContext.isUserInRole("Administrator")) {
+            throw new CFException(Response.Status.FORBIDDEN,
+                    "User '" + user() + "' does not have the Administrator role.");
+        }
+    }
+
+    /**
+     * GET method for retrieving all jobs, latest first.
+     *
+     * @return HTTP Response
+     */
+    @GET
+    @Produces({"application/xml", "application/json"})
+    public Response list() {
+        try {
+            checkAdmin();
+            Jobs result = JobRunner.findAll();
+            Response r = Response.ok(result).build();
+            log.fine(user() + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus()
+                    + "|returns " + result.getJobs().size() + " jobs");
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * GET method for retrieving the status and progress of the job <tt>id</tt>.
+     *
+     * @param id job id
+     * @return HTTP Response
+     */
+    @GET
+    @Path("{id}")
+    @Produces({"application/xml", "application/json"})
+    public Response read(@PathParam("id") Long id) {
+        try {
+            checkAdmin();
+            Job result = JobRunner.find(id);
+            if (result == null) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Job " + id + " does not exist.");
+            }
+            Response r = Response.ok(result).build();
+            log.fine(user() + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus()
+                    + "|" + result.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * POST method for starting an export of the entries in <tt>logbook</tt>,
+     * or of all entries.
+     *
+     * @param logbook logbook name
+     * @return HTTP Response, 202 with the location of the job
+     */
+    @POST
+    @Path("export")
+    @Produces({"application/xml", "application/json"})
+    public Response export(@QueryParam("logbook") String logbook) {
+        try {
+            checkAdmin();
+            Job result = JobRunner.export(user(), logbook);
+            Response r = accepted(result);
+            audit.info(user() + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus()
+                    + "|job " + result.getId() + "|logbook=" + logbook);
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|POST|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * POST method for starting an import of the export in the directory
+     * <tt>path</tt> under olog/exportPath.
+     *
+     * @param path export directory name
+     * @return HTTP Response, 202 with the location of the job
+     */
+    @POST
+    @Path("import")
+    @Produces({"application/xml", "application/json"})
+    public Response importFrom(@QueryParam("path") String path) {
+        try {
+            checkAdmin();
+            Job result = JobRunner.importFrom(user(), path);
+            Response r = accepted(result);
+            audit.info(user() + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus()
+                    + "|job " + result.getId() + "|path=" + path);
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|POST|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * POST method for resuming the failed or cancelled job <tt>id</tt> from
+     * its last completed part.
+     *
+     * @param id job id
+     * @return HTTP Response
+     */
+    @POST
+    @Path("{id}")
+    @Produces({"application/xml", "application/json"})
+    public Response resume(@PathParam("id") Long id) {
+        try {
+            checkAdmin();
+            Job result = JobRunner.resume(id);
+            Response r = accepted(result);
+            audit.info(user() + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|POST|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    /**
+     * DELETE method for cancelling the queued or running job <tt>id</tt>.
+     * Its completed parts are kept, and it can be resumed.
+     *
+     * @param id job id
+     * @return HTTP Response
+     */
+    @DELETE
+    @Path("{id}")
+    @Produces({"application/xml", "application/json"})
+    public Response cancel(@PathParam("id") Long id) {
+        try {
+            checkAdmin();
+            Job result = JobRunner.cancel(id);
+            Response r = Response.ok(result).build();
+            audit.info(user() + "|" + uriInfo.getPath() + "|DELETE|OK|" + r.getStatus());
+            return r;
+        } catch (CFException e) {
+            log.warning(user() + "|" + uriInfo.getPath() + "|DELETE|ERROR|"
+                    + e.getResponseStatusCode() + "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
+    private Response accepted(Job job) {
+        return Response.status(Response.Status.ACCEPTED).entity(job)
+                .location(uriInfo.getBaseUriBuilder().path(JobsResource.class)
+                .path(String.valueOf(job.getId())).build())
+                .build();
+    }
+}
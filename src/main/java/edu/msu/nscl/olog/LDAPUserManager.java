@@ -8,7 +8,19 @@ package edu.msu.nscl.olog;
 
 import java.security.Principal;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Resource;
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -18,14 +30,27 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 /**
  * Owner (group) membership management: LDAP connection and binding.
+ * <p>
+ * Connections are opened with the environment of the JNDI LDAP resource
+ * and kept in a bounded pool (olog/ldapPoolSize); a connection idle for
+ * longer than olog/ldapValidateAfter seconds is checked before reuse and
+ * one that fails is closed instead of returned. Memberships of users seen
+ * within olog/ldapRefreshWindow seconds are re-read in the background every
+ * olog/ldapRefreshInterval seconds, so active users never wait on the
+ * directory.
  *
  * @author Ralph Lange <Ralph.Lange@helmholtz-berlin.de>
  */
 public class LDAPUserManager extends UserManager {
-    private ThreadLocal<DirContext> ctx = new ThreadLocal<DirContext>();
+    private static final Logger log = Logger.getLogger(LDAPUserManager.class.getName());
     private static final String ldapResourceName = "OlogGroups";
 
     /**
@@ -38,43 +63,208 @@ public class LDAPUserManager extends UserManager {
      */
     @Resource(name="ldapGroupTargetField") protected String groupTargetField = "cn";
 
+    /**
+     * DN (relative to the resource's provider URL) under which group entries
+     * are searched
+     */
+    @Resource(name="ldapGroupSearchBase") protected String searchBase = OlogConfig.getString("olog/ldapGroupSearchBase", "");
+
+    private final int pageSize = OlogConfig.getInt("olog/ldapPageSize", 500);
+    private final long validateAfter = OlogConfig.getLong("olog/ldapValidateAfter", 60) * 1000;
+    private final long borrowTimeout = OlogConfig.getLong("olog/ldapTimeout", 10) * 1000;
+    private final long refreshWindow = OlogConfig.getLong("olog/ldapRefreshWindow", 600) * 1000;
+    private final Semaphore permits = new Semaphore(OlogConfig.getInt("olog/ldapPoolSize", 8), true);
+    private final BlockingQueue<PooledContext> idle = new LinkedBlockingQueue<PooledContext>();
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<String, Long>();
+    private volatile Hashtable<?, ?> environment;
+
+    private static class PooledContext {
+
+        final LdapContext ctx;
+        long lastUsed;
+
+        PooledContext(LdapContext ctx) {
+            this.ctx = ctx;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
 
-    private DirContext getJndiContext() {
-        DirContext dirctx = this.ctx.get();
-        if (dirctx == null) {
+    public LDAPUserManager() {
+        long refreshInterval = OlogConfig.getLong("olog/ldapRefreshInterval", 60);
+        if (refreshInterval > 0) {
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "olog-ldap-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            refresher.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    refresh();
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private Hashtable<?, ?> getEnvironment() throws NamingException {
+        Hashtable<?, ?> env = environment;
+        if (env == null) {
+            DirContext dirctx;
             try {
                 Context initCtx = new InitialContext();
                 dirctx = (DirContext) initCtx.lookup(ldapResourceName);
-                this.ctx.set(dirctx);
             } catch (NamingException e ) {
                 throw new IllegalStateException("Cannot find JNDI LDAP resource '"
                         + ldapResourceName + "'", e);
             }
+            env = dirctx.getEnvironment();
+            environment = env;
+        }
+        return env;
+    }
+
+    private PooledContext borrow() throws NamingException {
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new NamingException("Timed out waiting for an LDAP connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NamingException("Interrupted waiting for an LDAP connection");
+        }
+        try {
+            PooledContext pc;
+            while ((pc = idle.poll()) != null) {
+                if (System.currentTimeMillis() - pc.lastUsed < validateAfter || isValid(pc.ctx)) {
+                    return pc;
+                }
+                close(pc.ctx);
+            }
+            return new PooledContext(new InitialLdapContext(getEnvironment(), null));
+        } catch (NamingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledContext pc, boolean healthy) {
+        try {
+            if (healthy) {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.offer(pc);
+            } else {
+                close(pc.ctx);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean isValid(LdapContext ctx) {
+        try {
+            ctx.setRequestControls(null);
+            ctx.getAttributes(searchBase, new String[]{"objectClass"});
+            return true;
+        } catch (NamingException e) {
+            log.log(Level.FINE, "Dropping stale LDAP connection", e);
+            return false;
+        }
+    }
+
+    private static void close(LdapContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
         }
-        return dirctx;
+    }
+
+    @Override
+    protected void userSeen(String userName) {
+        lastSeen.put(userName, System.currentTimeMillis());
     }
 
     @Override
     protected Set<String> getGroups(Principal user) {
         try {
-            Set<String> groups = new HashSet<String>();
-            DirContext dirctx = getJndiContext();
+            return search(user.getName());
+        } catch (Exception e) {
+                throw new IllegalStateException("Error while retrieving group information for user '"
+                        + user.getName() + "'", e);
+        }
+    }
+
+    private Set<String> search(String userName) throws Exception {
+        Set<String> groups = new HashSet<String>();
+        PooledContext pc = borrow();
+        boolean healthy = false;
+        try {
+            LdapContext ctx = pc.ctx;
             SearchControls ctrls = new SearchControls();
             ctrls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            ctrls.setReturningAttributes(new String[]{groupTargetField});
 
-            String searchfilter = "(" + memberUidField + "=" + user.getName() + ")";
-            NamingEnumeration<SearchResult> result = dirctx.search("", searchfilter, ctrls);
-
-            while (result.hasMore()) {
-                Attribute att = result.next().getAttributes().get(groupTargetField);
-                if (att != null) {
-                    groups.add((String)att.get());
+            // The user name is passed as a filter argument, which escapes it
+            String searchfilter = "(" + memberUidField + "={0})";
+            ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, Control.NONCRITICAL)});
+            byte[] cookie;
+            do {
+                NamingEnumeration<SearchResult> result = ctx.search(searchBase, searchfilter, new Object[]{userName}, ctrls);
+                try {
+                    while (result.hasMore()) {
+                        Attribute att = result.next().getAttributes().get(groupTargetField);
+                        if (att != null) {
+                            groups.add((String) att.get());
+                        }
+                    }
+                } finally {
+                    result.close();
                 }
-            }
+                cookie = null;
+                Control[] controls = ctx.getResponseControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        }
+                    }
+                }
+                if (cookie != null && cookie.length > 0) {
+                    ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+                }
+            } while (cookie != null && cookie.length > 0);
+            ctx.setRequestControls(null);
+            healthy = true;
             return groups;
-        } catch (Exception e) {
-                throw new IllegalStateException("Error while retrieving group information for user '"
-                        + user.getName() + "'", e);
+        } finally {
+            release(pc, healthy);
+        }
+    }
+
+    /**
+     * Re-reads the memberships of recently seen users into the group cache,
+     * and forgets users not seen within the refresh window.
+     */
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+            if (now - entry.getValue() > refreshWindow) {
+                lastSeen.remove(entry.getKey());
+                continue;
+            }
+            try {
+                cacheGroups(entry.getKey(), search(entry.getKey()));
+            } catch (Exception e) {
+                // Leave the cached entry to expire normally
+                log.log(Level.WARNING, "Could not refresh groups of user " + entry.getKey(), e);
+            }
         }
     }
 }
@@ -260,6 +260,21 @@ public class Log implements Serializable, Comparable<Log> {
         }
     }
 
+    /**
+     * Setter for log created date, kept by LogImport; the entry sets its own
+     * when it is persisted.
+     *
+     * @param createdDate created date of the entry
+     */
+    public void setCreatedDate(Date createdDate) {
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            newEntry.addLog(this);
+            this.entry = newEntry;
+        }
+        entry.setCreatedDate(createdDate);
+    }
+
     /**
      * Getter for log source IP.
      *
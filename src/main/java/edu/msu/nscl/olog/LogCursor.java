@@ -0,0 +1,83 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Position of a log in the search order (entry created date descending,
+ * entry id descending, log id ascending), handed to clients as an opaque
+ * <tt>after</tt> token for keyset pagination.
+ *
+ * @author berryman
+ */
+public class LogCursor {
+
+    private final Date createdDate;
+    private final Long entryId;
+    private final Long logId;
+
+    public LogCursor(Date createdDate, Long entryId, Long logId) {
+        this.createdDate = createdDate;
+        this.entryId = entryId;
+        this.logId = logId;
+    }
+
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public Long getLogId() {
+        return logId;
+    }
+
+    /**
+     * Decodes a cursor token produced by toString().
+     *
+     * @param token cursor token
+     * @return the cursor
+     * @throws CFException BAD_REQUEST if the token is malformed
+     */
+    public static LogCursor parse(String token) throws CFException {
+        try {
+            String s = token.replace('-', '+').replace('_', '/');
+            while (s.length() % 4 != 0) {
+                s += "=";
+            }
+            String[] parts = new String(DatatypeConverter.parseBase64Binary(s), "UTF-8").split(",");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException();
+            }
+            return new LogCursor(new Date(Long.parseLong(parts[0])),
+                    Long.valueOf(parts[1]), Long.valueOf(parts[2]));
+        } catch (Exception e) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Invalid cursor: " + token);
+        }
+    }
+
+    /**
+     * Encodes the cursor as a URL safe token.
+     *
+     * @return cursor token
+     */
+    @Override
+    public String toString() {
+        String s = createdDate.getTime() + "," + entryId + "," + logId;
+        try {
+            return DatatypeConverter.printBase64Binary(s.getBytes("UTF-8"))
+                    .replace('+', '-').replace('/', '_').replace("=", "");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import com.sun.jersey.api.json.JSONMarshaller;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Exports log entries, with every version and their attachments, to the
+ * directory of an export Job, for LogImport to load elsewhere:
+ * <pre>
+ * entries-00000.ndjson.gz    one log version per line, as in a log search
+ * attachments-00000.tar      content of the attachments of those entries
+ * ...
+ * manifest.properties        written last: entries, attachments and parts
+ * </pre>
+ * Each part holds olog/exportPartSize entries in id order. The lines of an
+ * entry are consecutive, oldest version first, and its attachments are in
+ * the tar as <tt>entryId/n</tt>, n being their position in the attachments
+ * of its last line. A part is written under a temporary name and renamed
+ * once complete, so a stopped export resumes with the part it was writing.
+ *
+ * @author berryman
+ */
+public class LogExport {
+
+    static final String ENTRIES = "entries-";
+    static final String ENTRIES_SUFFIX = ".ndjson.gz";
+    static final String ATTACHMENTS = "attachments-";
+    static final String ATTACHMENTS_SUFFIX = ".tar";
+    static final String MANIFEST = "manifest.properties";
+    static final String TMP_SUFFIX = ".tmp";
+    private static final Logger log = Logger.getLogger(LogExport.class.getName());
+    private static final int partSize = OlogConfig.getInt("olog/exportPartSize", 10000);
+    private static final int BATCH_SIZE = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Job job;
+    private final File dir;
+
+    /**
+     * @param job export job, resumed from its position
+     */
+    public LogExport(Job job) {
+        this.job = job;
+        this.dir = JobRunner.directory(job);
+    }
+
+    /**
+     * Exports the remaining parts.
+     *
+     * @return false if the job was stopped or cancelled before the end
+     * @throws IOException if the export could not be written
+     * @throws CFException if the logs could not be read
+     */
+    public boolean run() throws IOException, CFException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (job.getTotal() == null) {
+            job.setTotal(LogManager.countEntries(job.getLogbook()));
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Long> ids = LogManager.findEntryIds(job.getLogbook(), job.getPosition(), partSize);
+            if (ids.isEmpty()) {
+                writeManifest();
+                return true;
+            }
+            if (!writePart(ids) || !JobRunner.checkpoint(job)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static String partName(int part) {
+        return String.format("%05d", part);
+    }
+
+    /**
+     * Writes one part and advances the job past it.
+     *
+     * @return false if stopped midway
+     */
+    private boolean writePart(List<Long> ids) throws IOException, CFException {
+        String part = partName(job.getParts());
+        File entriesFile = new File(dir, ENTRIES + part + ENTRIES_SUFFIX);
+        File attachmentsFile = new File(dir, ATTACHMENTS + part + ATTACHMENTS_SUFFIX);
+        File entriesTmp = new File(dir, entriesFile.getName() + TMP_SUFFIX);
+        File attachmentsTmp = new File(dir, attachmentsFile.getName() + TMP_SUFFIX);
+        long entries = 0;
+        long attachments = 0;
+        Writer lines = null;
+        TarOutputStream tar = null;
+        try {
+            lines = new OutputStreamWriter(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(entriesTmp), BUFFER_SIZE)), "UTF-8");
+            tar = new TarOutputStream(new BufferedOutputStream(new FileOutputStream(attachmentsTmp), BUFFER_SIZE));
+            JSONMarshaller marshaller = LogsWriter.getLineContext().createJSONMarshaller();
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                List<Log> logs = LogManager.findVersions(ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())));
+                for (int j = 0; j < logs.size(); j++) {
+                    Log l = logs.get(j);
+                    marshaller.marshallToJSON(l, lines);
+                    lines.write('\n');
+                    if (j + 1 == logs.size() || !logs.get(j + 1).getEntryId().equals(l.getEntryId())) {
+                        entries++;
+                        attachments += writeAttachments(tar, l);
+                    }
+                }
+            }
+            lines.close();
+            tar.close();
+        } catch (JAXBException e) {
+            throw new IOException("Could not write log: " + e);
+        } finally {
+            IOUtils.closeQuietly(lines);
+            IOUtils.closeQuietly(tar);
+        }
+        rename(entriesTmp, entriesFile);
+        rename(attachmentsTmp, attachmentsFile);
+        job.setPosition(ids.get(ids.size() - 1));
+        job.setParts(job.getParts() + 1);
+        job.setEntries(job.getEntries() + entries);
+        job.setAttachments(job.getAttachments() + attachments);
+        return true;
+    }
+
+    /**
+     * Writes the attachments of an entry to the tar.
+     *
+     * @param l last version of the entry
+     * @return number of attachments written
+     */
+    private static int writeAttachments(TarOutputStream tar, Log l) throws IOException, CFException {
+        int written = 0;
+        int n = 0;
+        for (XmlAttachment attachment : l.getXmlAttachments()) {
+            String name = l.getEntryId() + "/" + n++;
+            AttachmentMetadata metadata = AttachmentManager.findMetadata(l.getEntryId(), attachment.getFileName());
+            if (metadata == null) {
+                continue;
+            }
+            InputStream in;
+            try {
+                in = AttachmentManager.findAttachment(metadata).getContent();
+            } catch (CFException e) {
+                if (e.getResponseStatusCode() != Response.Status.NOT_FOUND.getStatusCode()) {
+                    throw e;
+                }
+                log.log(Level.WARNING, "Not exporting missing attachment {0}", metadata.getPath());
+                continue;
+            }
+            try {
+                tar.putNextEntry(name, metadata.getFileSize(), metadata.getCreated().getTime());
+                IOUtils.copyLarge(in, tar);
+                tar.closeEntry();
+            } finally {
+                in.close();
+            }
+            written++;
+        }
+        return written;
+    }
+
+    private void writeManifest() throws IOException {
+        Properties manifest = new Properties();
+        if (job.getLogbook() != null) {
+            manifest.setProperty("logbook", job.getLogbook());
+        }
+        manifest.setProperty("entries", String.valueOf(job.getEntries()));
+        manifest.setProperty("attachments", String.valueOf(job.getAttachments()));
+        manifest.setProperty("parts", String.valueOf(job.getParts()));
+        File tmp = new File(dir, MANIFEST + TMP_SUFFIX);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            manifest.store(out, "olog export " + job.getId());
+        } finally {
+            out.close();
+        }
+        rename(tmp, new File(dir, MANIFEST));
+    }
+
+    /**
+     * Renames a completed file into place, replacing a copy from an earlier
+     * run of the same part.
+     */
+    private static void rename(File tmp, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Cannot rename " + tmp + " to " + target);
+        }
+    }
+}
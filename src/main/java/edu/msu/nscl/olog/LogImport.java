@@ -0,0 +1,617 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import com.sun.jersey.api.json.JSONUnmarshaller;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Loads an export written by LogExport, from the directory of an import
+ * Job, keeping the ids and created dates of the entries.
+ * <p>
+ * Each batch of olog/importBatchSize entries is written in one transaction
+ * of batched JDBC inserts: the entries, their logs, logbooks, tags and
+ * properties, and the attachments, whose content is put in the
+ * AttachmentStore just before. Logbooks, tags and properties are matched by
+ * name and must exist. An entry whose id is taken by an entry created at
+ * the same time is taken as imported already, by an earlier run of the
+ * same part; otherwise it is skipped, and counted as such. The job resumes
+ * with the part it was reading. Attachments get their thumbnails from
+ * ThumbnailWorker. The logs and attachments of each batch are added to the
+ * search index, and announced to the other nodes with one CacheCoordinator
+ * event each for their range of ids.
+ * <p>
+ * Entries created on the server during an import may take ids the import
+ * needs, so imports are best run before the server is opened to users.
+ *
+ * @author berryman
+ */
+public class LogImport {
+
+    private static final int batchSize = OlogConfig.getInt("olog/importBatchSize", 500);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Created dates kept in DATETIME columns lose their milliseconds
+    private static final long CREATED_SLACK = 1000;
+    private static final String INSERT_ENTRY = "INSERT INTO entries (id, created) VALUES (?, ?)";
+    private static final String INSERT_LOG = "INSERT INTO logs (modified, source, owner, level, state, description, entry_id)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_LOGBOOK = "INSERT INTO logs_logbooks (log_id, logbook_id) VALUES (?, ?)";
+    private static final String INSERT_ATTRIBUTE = "INSERT INTO logs_attributes (log_id, attribute_id, value, grouping_num)"
+            + " VALUES (?, ?, ?, ?)";
+    private static final String INSERT_ATTACHMENT = "INSERT INTO attachments (entry_id, file_name, mime_type, file_size,"
+            + " thumbnail, thumbnail_pending, thumbnail_attempts, content_hash, path, created)"
+            + " VALUES (?, ?, ?, ?, ?, ?, 0, ?, ?, ?)";
+    private final Job job;
+    private final File dir;
+    private final Map<String, Long> logbookIds = new HashMap<String, Long>();
+    private final Map<String, Long> tagIds = new HashMap<String, Long>();
+    private final Map<String, Long> attributeIds = new HashMap<String, Long>();
+    private JSONUnmarshaller unmarshaller;
+    private TarInputStream tar;
+    private String member;
+    private long entries;
+    private long attachments;
+    private long skipped;
+
+    /**
+     * @param job import job, resumed from its position
+     */
+    public LogImport(Job job) {
+        this.job = job;
+        this.dir = JobRunner.directory(job);
+    }
+
+    /**
+     * Imports the remaining parts.
+     *
+     * @return false if the job was stopped or cancelled before the end
+     * @throws IOException if the export could not be read
+     * @throws CFException if the entries could not be written
+     */
+    public boolean run() throws IOException, CFException {
+        Properties manifest = new Properties();
+        File manifestFile = new File(dir, LogExport.MANIFEST);
+        if (!manifestFile.isFile()) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    dir + " does not hold a complete export");
+        }
+        InputStream in = new FileInputStream(manifestFile);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+        int parts = Integer.parseInt(manifest.getProperty("parts"));
+        job.setTotal(Long.valueOf(manifest.getProperty("entries")));
+        try {
+            unmarshaller = LogsWriter.getLineContext().createJSONUnmarshaller();
+        } catch (JAXBException e) {
+            throw new IOException("Cannot read logs: " + e);
+        }
+        while (job.getPosition() < parts) {
+            if (!readPart(LogExport.partName((int) job.getPosition()))) {
+                return false;
+            }
+            job.setPosition(job.getPosition() + 1);
+            job.setParts(job.getParts() + 1);
+            job.setEntries(job.getEntries() + entries);
+            job.setAttachments(job.getAttachments() + attachments);
+            job.setSkipped(job.getSkipped() + skipped);
+            if (!JobRunner.checkpoint(job)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Imports one part.
+     *
+     * @return false if stopped midway
+     */
+    private boolean readPart(String part) throws IOException, CFException {
+        entries = 0;
+        attachments = 0;
+        skipped = 0;
+        BufferedReader lines = null;
+        try {
+            lines = new BufferedReader(new InputStreamReader(new GZIPInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, LogExport.ENTRIES + part + LogExport.ENTRIES_SUFFIX)),
+                    BUFFER_SIZE)), "UTF-8"));
+            tar = new TarInputStream(new BufferedInputStream(new FileInputStream(
+                    new File(dir, LogExport.ATTACHMENTS + part + LogExport.ATTACHMENTS_SUFFIX)), BUFFER_SIZE));
+            member = tar.getNextEntry();
+            List<List<Log>> batch = new ArrayList<List<Log>>();
+            List<Log> versions = null;
+            String line;
+            int number = 0;
+            while ((line = lines.readLine()) != null) {
+                number++;
+                if (line.length() == 0) {
+                    continue;
+                }
+                Log l;
+                try {
+                    l = unmarshaller.unmarshalFromJSON(new StringReader(line), Log.class);
+                } catch (JAXBException e) {
+                    throw new IOException("Line " + number + " of part " + part + " is not a log: " + e);
+                }
+                if (versions == null || !versions.get(0).getEntryId().equals(l.getEntryId())) {
+                    if (batch.size() == batchSize) {
+                        importBatch(batch);
+                        batch.clear();
+                        if (Thread.currentThread().isInterrupted()) {
+                            return false;
+                        }
+                    }
+                    versions = new ArrayList<Log>();
+                    batch.add(versions);
+                }
+                versions.add(l);
+            }
+            importBatch(batch);
+            return true;
+        } finally {
+            IOUtils.closeQuietly(lines);
+            IOUtils.closeQuietly(tar);
+            tar = null;
+        }
+    }
+
+    /**
+     * Imports the entries of a batch, each given as its versions.
+     */
+    private void importBatch(List<List<Log>> batch) throws IOException, CFException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<Long>(batch.size());
+        for (List<Log> versions : batch) {
+            ids.add(versions.get(0).getEntryId());
+        }
+        Map<Long, Date> existing = findEntries(ids);
+        List<List<Log>> imported = new ArrayList<List<Log>>();
+        Set<Long> importedIds = new HashSet<Long>();
+        for (List<Log> versions : batch) {
+            Date created = existing.get(versions.get(0).getEntryId());
+            if (created == null) {
+                imported.add(versions);
+                importedIds.add(versions.get(0).getEntryId());
+            } else if (Math.abs(created.getTime() - versions.get(0).getCreatedDate().getTime()) < CREATED_SLACK) {
+                entries++;
+            } else {
+                skipped++;
+            }
+        }
+        resolve(imported);
+
+        List<AttachmentMetadata> stored = new ArrayList<AttachmentMetadata>();
+        try {
+            for (List<Log> versions : batch) {
+                stored.addAll(readAttachments(versions, importedIds.contains(versions.get(0).getEntryId())));
+            }
+            insert(imported, stored);
+        } catch (IOException e) {
+            released(stored);
+            throw e;
+        } catch (CFException e) {
+            released(stored);
+            throw e;
+        }
+        entries += imported.size();
+        attachments += stored.size();
+        if (imported.isEmpty()) {
+            return;
+        }
+        List<Log> logs = new ArrayList<Log>();
+        for (List<Log> versions : imported) {
+            logs.addAll(versions);
+        }
+        LogIndex.addAll(logs);
+        CacheCoordinator.evictRange(Log.class, minId(logs), maxId(logs));
+        if (!stored.isEmpty()) {
+            List<AttachmentMetadata> inserted = findAttachments(importedIds);
+            LogIndex.addAttachments(inserted);
+            Long first = null;
+            Long last = null;
+            for (AttachmentMetadata metadata : inserted) {
+                first = first == null ? metadata.getId() : Math.min(first, metadata.getId());
+                last = last == null ? metadata.getId() : Math.max(last, metadata.getId());
+            }
+            if (first != null) {
+                CacheCoordinator.evictRange(AttachmentMetadata.class, first, last);
+            }
+        }
+    }
+
+    private static Long minId(List<Log> logs) {
+        long min = Long.MAX_VALUE;
+        for (Log l : logs) {
+            min = Math.min(min, l.getId());
+        }
+        return min;
+    }
+
+    private static Long maxId(List<Log> logs) {
+        long max = Long.MIN_VALUE;
+        for (Log l : logs) {
+            max = Math.max(max, l.getId());
+        }
+        return max;
+    }
+
+    private static void released(List<AttachmentMetadata> stored) {
+        for (AttachmentMetadata metadata : stored) {
+            BlobCollector.released(metadata);
+        }
+    }
+
+    /**
+     * @return created date of the entries that exist already, by id
+     */
+    private static Map<Long, Date> findEntries(List<Long> ids) throws CFException {
+        Map<Long, Date> result = new HashMap<Long, Date>();
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            List<Object[]> rows = JPAUtil.readOnly(em.createQuery(
+                    "SELECT e.id, e.createdDate FROM Entry e WHERE e.id IN :ids", Object[].class))
+                    .setParameter("ids", ids).getResultList();
+            for (Object[] row : rows) {
+                result.put((Long) row[0], (Date) row[1]);
+            }
+            return result;
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * @return the attachments of the entries, with their ids
+     */
+    private static List<AttachmentMetadata> findAttachments(Collection<Long> entryIds) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            return JPAUtil.readOnly(em.createQuery(
+                    "SELECT a FROM AttachmentMetadata a WHERE a.entryId IN :ids", AttachmentMetadata.class))
+                    .setParameter("ids", entryIds).getResultList();
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Looks up the ids of the logbooks, tags and attributes the entries
+     * refer to that were not seen in an earlier batch.
+     */
+    private void resolve(List<List<Log>> imported) throws CFException {
+        Set<String> logbookNames = new HashSet<String>();
+        Set<String> tagNames = new HashSet<String>();
+        Set<String> propertyNames = new HashSet<String>();
+        for (List<Log> versions : imported) {
+            for (Log l : versions) {
+                for (Logbook logbook : l.getLogbooks()) {
+                    if (!logbookIds.containsKey(logbook.getName())) {
+                        logbookNames.add(logbook.getName());
+                    }
+                }
+                for (Tag tag : l.getTags()) {
+                    if (!tagIds.containsKey(tag.getName())) {
+                        tagNames.add(tag.getName());
+                    }
+                }
+                for (XmlProperty property : l.getXmlProperties()) {
+                    for (String attribute : property.getAttributes().keySet()) {
+                        if (!attributeIds.containsKey(property.getName() + "." + attribute)) {
+                            propertyNames.add(property.getName());
+                        }
+                    }
+                }
+            }
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            if (!logbookNames.isEmpty()) {
+                for (Logbook logbook : JPAUtil.readOnly(em.createQuery(
+                        "SELECT l FROM Logbook l WHERE l.name IN :names", Logbook.class)).setParameter("names", logbookNames).getResultList()) {
+                    logbookIds.put(logbook.getName(), logbook.getId());
+                }
+            }
+            if (!tagNames.isEmpty()) {
+                for (Tag tag : JPAUtil.readOnly(em.createQuery(
+                        "SELECT t FROM Tag t WHERE t.name IN :names", Tag.class)).setParameter("names", tagNames).getResultList()) {
+                    tagIds.put(tag.getName(), tag.getId());
+                }
+            }
+            if (!propertyNames.isEmpty()) {
+                for (Attribute attribute : JPAUtil.readOnly(em.createQuery(
+                        "SELECT a FROM Attribute a WHERE a.property.name IN :names", Attribute.class)).setParameter("names", propertyNames).getResultList()) {
+                    attributeIds.put(attribute.getProperty().getName() + "." + attribute.getName(), attribute.getId());
+                }
+            }
+        } catch (PersistenceException e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+        for (String name : logbookNames) {
+            if (!logbookIds.containsKey(name)) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Logbook " + name + " does not exist; create it and resume the import.");
+            }
+        }
+        for (String name : tagNames) {
+            if (!tagIds.containsKey(name)) {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Tag " + name + " does not exist; create it and resume the import.");
+            }
+        }
+        for (List<Log> versions : imported) {
+            for (Log l : versions) {
+                for (XmlProperty property : l.getXmlProperties()) {
+                    for (String attribute : property.getAttributes().keySet()) {
+                        if (!attributeIds.containsKey(property.getName() + "." + attribute)) {
+                            throw new CFException(Response.Status.NOT_FOUND,
+                                    "Property " + property.getName() + " attribute " + attribute
+                                    + " does not exist; create it and resume the import.");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the attachments of an entry from the tar, which lists them in
+     * the order of the entries.
+     *
+     * @param versions versions of the entry
+     * @param keep whether to store them, or skip them
+     * @return the attachments stored
+     */
+    private List<AttachmentMetadata> readAttachments(List<Log> versions, boolean keep) throws IOException {
+        List<AttachmentMetadata> result = new ArrayList<AttachmentMetadata>();
+        Long entryId = versions.get(0).getEntryId();
+        List<XmlAttachment> listed = new ArrayList<XmlAttachment>(versions.get(versions.size() - 1).getXmlAttachments());
+        while (member != null) {
+            int slash = member.indexOf('/');
+            long memberEntry;
+            int index;
+            try {
+                memberEntry = Long.parseLong(member.substring(0, slash));
+                index = Integer.parseInt(member.substring(slash + 1));
+            } catch (RuntimeException e) {
+                // Not an attachment, such as a directory
+                member = tar.getNextEntry();
+                continue;
+            }
+            if (memberEntry > entryId) {
+                break;
+            }
+            if (memberEntry == entryId && keep && index < listed.size()) {
+                XmlAttachment attachment = listed.get(index);
+                AttachmentMetadata metadata = new AttachmentMetadata();
+                metadata.setEntryId(entryId);
+                metadata.setFileName(attachment.getFileName());
+                metadata.setMimeType(attachment.getContentType() != null
+                        ? attachment.getContentType() : "application/octet-stream");
+                // The tar is read on after the content
+                AttachmentManager.getStore().put(metadata, new CloseShieldInputStream(tar));
+                metadata.setThumbnailPending(!metadata.getThumbnail() && ThumbnailWorker.supports(metadata.getFileName()));
+                metadata.setCreated(new Date());
+                result.add(metadata);
+            }
+            member = tar.getNextEntry();
+        }
+        return result;
+    }
+
+    /**
+     * Inserts the entries and attachments in one transaction.
+     */
+    private void insert(List<List<Log>> imported, List<AttachmentMetadata> stored) throws CFException {
+        if (imported.isEmpty()) {
+            return;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            Connection connection = em.unwrap(Connection.class);
+            List<Long> ids = new ArrayList<Long>();
+            PreparedStatement statement = connection.prepareStatement(INSERT_ENTRY);
+            try {
+                for (List<Log> versions : imported) {
+                    Log first = versions.get(0);
+                    ids.add(first.getEntryId());
+                    statement.setLong(1, first.getEntryId());
+                    statement.setTimestamp(2, new Timestamp(first.getCreatedDate().getTime()));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            if (connection.getMetaData().getDatabaseProductName().toLowerCase().contains("postgres")) {
+                // Explicit ids do not advance the sequence
+                Statement setval = connection.createStatement();
+                try {
+                    setval.execute("SELECT setval(pg_get_serial_sequence('entries', 'id'), (SELECT MAX(id) FROM entries))");
+                } finally {
+                    setval.close();
+                }
+            }
+            statement = connection.prepareStatement(INSERT_LOG);
+            try {
+                for (List<Log> versions : imported) {
+                    for (Log l : versions) {
+                        Date modified = l.getModifiedDate() != null ? l.getModifiedDate() : l.getCreatedDate();
+                        statement.setTimestamp(1, new Timestamp(modified.getTime()));
+                        statement.setString(2, l.getSource() != null ? l.getSource() : "");
+                        statement.setString(3, l.getOwner());
+                        statement.setString(4, (l.getLevel() != null ? l.getLevel() : Level.Info).name());
+                        statement.setString(5, (l.getState() != null ? l.getState() : State.Active).name());
+                        statement.setString(6, l.getDescription());
+                        statement.setLong(7, l.getEntryId());
+                        statement.addBatch();
+                    }
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            setLogIds(connection, ids, imported);
+            statement = connection.prepareStatement(INSERT_LOGBOOK);
+            try {
+                for (List<Log> versions : imported) {
+                    for (Log l : versions) {
+                        for (Logbook logbook : l.getLogbooks()) {
+                            statement.setLong(1, l.getId());
+                            statement.setLong(2, logbookIds.get(logbook.getName()));
+                            statement.addBatch();
+                        }
+                        for (Tag tag : l.getTags()) {
+                            statement.setLong(1, l.getId());
+                            statement.setLong(2, tagIds.get(tag.getName()));
+                            statement.addBatch();
+                        }
+                    }
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            statement = connection.prepareStatement(INSERT_ATTRIBUTE);
+            try {
+                for (List<Log> versions : imported) {
+                    for (Log l : versions) {
+                        Set<LogAttribute> logattrs = new HashSet<LogAttribute>();
+                        long i = 0;
+                        for (XmlProperty property : l.getXmlProperties()) {
+                            for (Map.Entry<String, String> attribute : property.getAttributes().entrySet()) {
+                                statement.setLong(1, l.getId());
+                                statement.setLong(2, attributeIds.get(property.getName() + "." + attribute.getKey()));
+                                statement.setString(3, attribute.getValue());
+                                statement.setLong(4, i);
+                                statement.addBatch();
+                                // For the search index
+                                LogAttribute logattr = new LogAttribute();
+                                logattr.setValue(attribute.getValue());
+                                logattrs.add(logattr);
+                            }
+                            i++;
+                        }
+                        l.setAttributes(logattrs);
+                    }
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            statement = connection.prepareStatement(INSERT_ATTACHMENT);
+            try {
+                for (AttachmentMetadata metadata : stored) {
+                    statement.setLong(1, metadata.getEntryId());
+                    statement.setString(2, metadata.getFileName());
+                    statement.setString(3, metadata.getMimeType());
+                    statement.setLong(4, metadata.getFileSize());
+                    statement.setBoolean(5, metadata.getThumbnail());
+                    statement.setBoolean(6, metadata.getThumbnailPending());
+                    statement.setString(7, metadata.getContentHash());
+                    statement.setString(8, metadata.getPath());
+                    statement.setTimestamp(9, new Timestamp(metadata.getCreated().getTime()));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            JPAUtil.finishTransacton(em);
+        } catch (SQLException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Could not import entries " + imported.get(0).get(0).getEntryId() + " and on. " + e);
+        } catch (RuntimeException e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Could not import entries " + imported.get(0).get(0).getEntryId() + " and on. " + e);
+        }
+    }
+
+    /**
+     * Sets the generated ids on the inserted logs, which were inserted in
+     * the order of their entries and versions.
+     */
+    private static void setLogIds(Connection connection, Collection<Long> entryIds, List<List<Log>> imported)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT id, entry_id FROM logs WHERE entry_id IN (");
+        for (int i = 0; i < entryIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ORDER BY entry_id, id");
+        Map<Long, List<Long>> logIds = new HashMap<Long, List<Long>>();
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try {
+            int n = 1;
+            for (Long entryId : entryIds) {
+                statement.setLong(n++, entryId);
+            }
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                Long entryId = rs.getLong(2);
+                if (!logIds.containsKey(entryId)) {
+                    logIds.put(entryId, new ArrayList<Long>());
+                }
+                logIds.get(entryId).add(rs.getLong(1));
+            }
+            rs.close();
+        } finally {
+            statement.close();
+        }
+        for (List<Log> versions : imported) {
+            List<Long> ids = logIds.get(versions.get(0).getEntryId());
+            for (int i = 0; i < versions.size(); i++) {
+                versions.get(i).setId(ids.get(i));
+            }
+        }
+    }
+}
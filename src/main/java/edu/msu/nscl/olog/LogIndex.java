@@ -0,0 +1,664 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.ws.rs.core.Response;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.apache.tika.Tika;
+import org.eclipse.persistence.config.QueryHints;
+
+/**
+ * Embedded Lucene full-text index of logs (description, owner, logbook and
+ * tag names, property values) and of the text of their attachments.
+ * <p>
+ * The index lives in the directory named by olog/searchIndexPath (default
+ * "olog-index") and is kept up to date by LogManager.create and
+ * AttachmentManager. An empty index is rebuilt from the database and the
+ * attachment store in the background at startup, and an existing one is
+ * brought up to date with the logs written after the last one it holds;
+ * until the index is ready, or if olog/searchIndex is false, searches fall
+ * back to SQL LIKE and the repository's own full-text query.
+ *
+ * @author berryman
+ */
+public class LogIndex {
+
+    private static final Logger log = Logger.getLogger(LogIndex.class.getName());
+    private static final Version VERSION = Version.LUCENE_36;
+    private static final String TEXT = "text";
+    private static final String LOG = "log";
+    private static final String ENTRY = "entry";
+    private static final String ATTACHMENT = "attachment";
+    private static final String ATTACHMENT_ID = "attachmentId";
+    private static final int REINDEX_BATCH_SIZE = 500;
+    private static final int pageSize = OlogConfig.getInt("olog/searchPageSize", 5000);
+    private static final int maxHits = OlogConfig.getInt("olog/searchMaxHits", 10000);
+    private static final int maxAttachmentText = OlogConfig.getInt("olog/searchMaxAttachmentText", 1024 * 1024);
+    private static final Analyzer analyzer = new StandardAnalyzer(VERSION);
+    private static IndexWriter writer;
+    private static SearcherManager searcherManager;
+    private static ExecutorService executor;
+    private static volatile boolean ready = false;
+
+    private LogIndex() {
+    }
+
+    /**
+     * Result of a full-text search: matching logs, and entries with a
+     * matching attachment, best match first.
+     */
+    public static class Hits {
+
+        private final Set<Long> logIds = new LinkedHashSet<Long>();
+        private final Set<Long> entryIds = new LinkedHashSet<Long>();
+
+        public Set<Long> getLogIds() {
+            return logIds;
+        }
+
+        public Set<Long> getEntryIds() {
+            return entryIds;
+        }
+
+        public boolean isEmpty() {
+            return logIds.isEmpty() && entryIds.isEmpty();
+        }
+    }
+
+    /**
+     * Opens the index, starting a rebuild if it is empty, or else the
+     * indexing of the logs it is missing.
+     */
+    public static synchronized void open() {
+        if (!OlogConfig.getBoolean("olog/searchIndex", true)) {
+            return;
+        }
+        String path = OlogConfig.getString("olog/searchIndexPath", "olog-index");
+        try {
+            IndexWriterConfig config = new IndexWriterConfig(VERSION, analyzer);
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            writer = new IndexWriter(FSDirectory.open(new File(path)), config);
+            searcherManager = new SearcherManager(writer, true, null);
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "olog-index");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            if (writer.numDocs() == 0) {
+                executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        rebuild();
+                    }
+                });
+            } else {
+                executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        catchUp();
+                    }
+                });
+            }
+            log.log(Level.INFO, "Opened search index {0}", path);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Could not open search index " + path, ex);
+            writer = null;
+        }
+    }
+
+    public static synchronized void close() {
+        ready = false;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        try {
+            if (searcherManager != null) {
+                searcherManager.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not close search index", ex);
+        }
+        searcherManager = null;
+        writer = null;
+    }
+
+    /**
+     * @return whether searches can be answered from the index
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Searches the index. The term uses the same wildcards (* and ?) as the
+     * search parameter of the log query; several words must all match.
+     * Every hit is returned, read olog/searchPageSize at a time, unless
+     * there are more than olog/searchMaxHits.
+     *
+     * @param term search term
+     * @return matching logs and entries, or null if there are too many
+     * @throws CFException if the term cannot be parsed or the search fails
+     */
+    public static Hits search(String term) throws CFException {
+        Hits hits = new Hits();
+        SearcherManager manager = searcherManager;
+        if (manager == null) {
+            return hits;
+        }
+        try {
+            QueryParser parser = new QueryParser(VERSION, TEXT, analyzer);
+            parser.setAllowLeadingWildcard(true);
+            parser.setDefaultOperator(QueryParser.AND_OPERATOR);
+            Query query = parser.parse(toQuery(term));
+            manager.maybeRefresh();
+            IndexSearcher searcher = manager.acquire();
+            try {
+                TopDocs docs = searcher.search(query, pageSize);
+                if (docs.totalHits > maxHits) {
+                    return null;
+                }
+                int read = 0;
+                while (docs.scoreDocs.length > 0) {
+                    for (ScoreDoc sd : docs.scoreDocs) {
+                        Document doc = searcher.doc(sd.doc);
+                        if (doc.get(LOG) != null) {
+                            hits.getLogIds().add(Long.valueOf(doc.get(LOG)));
+                        } else {
+                            hits.getEntryIds().add(Long.valueOf(doc.get(ENTRY)));
+                        }
+                    }
+                    read += docs.scoreDocs.length;
+                    if (read >= docs.totalHits) {
+                        break;
+                    }
+                    docs = searcher.searchAfter(docs.scoreDocs[docs.scoreDocs.length - 1], query, pageSize);
+                }
+            } finally {
+                manager.release(searcher);
+            }
+            return hits;
+        } catch (ParseException ex) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Invalid search: " + term + ", " + ex.getMessage());
+        } catch (IOException ex) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "Search index exception: " + ex);
+        }
+    }
+
+    /**
+     * Escapes everything but the wildcards of the log query syntax.
+     */
+    private static String toQuery(String term) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : term.trim().split("\\s+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            sb.append(QueryParser.escape(word).replace("\\*", "*").replace("\\?", "?")).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Adds (or replaces) a log in the index.
+     *
+     * @param l log with its logbooks, tags and attributes
+     */
+    public static void add(Log l) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.updateDocument(new Term(LOG, l.getId().toString()), toDocument(l));
+            writer.commit();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not index log " + l.getId(), ex);
+        }
+    }
+
+    /**
+     * Adds (or replaces) many logs in the index, with a single commit.
+     *
+     * @param logs logs with their logbooks, tags and attributes
+     */
+    public static void addAll(Collection<Log> logs) {
+        if (writer == null || logs.isEmpty()) {
+            return;
+        }
+        try {
+            for (Log l : logs) {
+                writer.updateDocument(new Term(LOG, l.getId().toString()), toDocument(l));
+            }
+            writer.commit();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not index " + logs.size() + " logs", ex);
+        }
+    }
+
+    /**
+     * Reads a log written by another node and adds it to the index.
+     *
+     * @param logId log id
+     */
+    public static void reindex(Long logId) {
+        if (writer == null) {
+            return;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            Log l = em.find(Log.class, logId);
+            if (l != null) {
+                add(l);
+            }
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Reads the logs with ids from <tt>first</tt> to <tt>last</tt>, written
+     * by another node, and adds them to the index with a single commit.
+     *
+     * @param first lowest log id
+     * @param last highest log id
+     */
+    public static void reindex(Long first, Long last) {
+        if (writer == null) {
+            return;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            indexLogs(em, first - 1, last);
+            writer.commit();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not index logs " + first + " to " + last, ex);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    private static Document toDocument(Log l) {
+        Document doc = new Document();
+        doc.add(new Field(LOG, l.getId().toString(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        if (l.getEntryId() != null) {
+            doc.add(new Field(ENTRY, l.getEntryId().toString(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        }
+        addText(doc, l.getDescription());
+        addText(doc, l.getOwner());
+        for (Logbook logbook : l.getLogbooks()) {
+            addText(doc, logbook.getName());
+        }
+        for (Tag tag : l.getTags()) {
+            addText(doc, tag.getName());
+        }
+        if (l.getAttributes() != null) {
+            for (LogAttribute attribute : l.getAttributes()) {
+                addText(doc, attribute.getValue());
+            }
+        }
+        return doc;
+    }
+
+    private static void addText(Document doc, String text) {
+        if (text != null) {
+            doc.add(new Field(TEXT, text, Field.Store.NO, Field.Index.ANALYZED));
+        }
+    }
+
+    /**
+     * Queues the text extraction and indexing of an attachment.
+     *
+     * @param entryId entry the attachment belongs to
+     * @param fileName attachment file name
+     */
+    public static void addAttachment(final Long entryId, final String fileName) {
+        ExecutorService e = executor;
+        if (writer == null || e == null) {
+            return;
+        }
+        e.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    AttachmentMetadata metadata = AttachmentManager.findMetadata(entryId, fileName);
+                    if (metadata != null) {
+                        indexAttachment(AttachmentManager.findAttachment(metadata), metadata);
+                        writer.commit();
+                    }
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not index attachment " + entryId + "/" + fileName, ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the text extraction and indexing of many attachments, with a
+     * single commit.
+     *
+     * @param attachments attachments with their ids
+     */
+    public static void addAttachments(final List<AttachmentMetadata> attachments) {
+        ExecutorService e = executor;
+        if (writer == null || e == null || attachments.isEmpty()) {
+            return;
+        }
+        e.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (AttachmentMetadata metadata : attachments) {
+                        try {
+                            indexAttachment(AttachmentManager.findAttachment(metadata), metadata);
+                        } catch (CFException ex) {
+                            log.log(Level.WARNING, "Could not index attachment " + metadata.getPath(), ex);
+                        }
+                    }
+                    writer.commit();
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Could not index " + attachments.size() + " attachments", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the indexing of the attachments with ids from <tt>first</tt>
+     * to <tt>last</tt>, added by another node.
+     *
+     * @param first lowest attachment id
+     * @param last highest attachment id
+     */
+    public static void reindexAttachments(final Long first, final Long last) {
+        ExecutorService e = executor;
+        if (writer == null || e == null) {
+            return;
+        }
+        e.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    indexAttachmentsAfter(first - 1, last);
+                    writer.commit();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not index attachments " + first + " to " + last, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the indexing of an attachment added or removed by another node.
+     *
+     * @param id attachment id
+     */
+    public static void reindexAttachment(final Long id) {
+        ExecutorService e = executor;
+        if (writer == null || e == null) {
+            return;
+        }
+        e.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                EntityManager em = JPAUtil.getEntityManager();
+                try {
+                    AttachmentMetadata metadata = em.find(AttachmentMetadata.class, id);
+                    if (metadata == null) {
+                        writer.deleteDocuments(new Term(ATTACHMENT_ID, id.toString()));
+                    } else {
+                        indexAttachment(AttachmentManager.findAttachment(metadata), metadata);
+                    }
+                    writer.commit();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not index attachment " + id, ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        });
+    }
+
+    public static void removeAttachment(Long entryId, String fileName) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.deleteDocuments(new Term(ATTACHMENT, entryId + "/" + fileName));
+            writer.commit();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not remove attachment " + entryId + "/" + fileName, ex);
+        }
+    }
+
+    private static void indexAttachment(Attachment attachment, AttachmentMetadata metadata) throws IOException {
+        String text;
+        InputStream in = attachment.getContent();
+        try {
+            Tika tika = new Tika();
+            tika.setMaxStringLength(maxAttachmentText);
+            text = tika.parseToString(in);
+        } catch (Exception ex) {
+            // Formats without a parser are indexed by name only
+            text = "";
+        } finally {
+            in.close();
+        }
+        String name = metadata.getEntryId() + "/" + metadata.getFileName();
+        Document doc = new Document();
+        doc.add(new Field(ATTACHMENT, name, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(ATTACHMENT_ID, metadata.getId().toString(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(ENTRY, metadata.getEntryId().toString(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        addText(doc, attachment.getFileName());
+        addText(doc, text);
+        writer.updateDocument(new Term(ATTACHMENT, name), doc);
+    }
+
+    /**
+     * Indexes the logs and attachments added after the last ones in the
+     * index, e.g. by other nodes while this one was down.
+     */
+    private static void catchUp() {
+        long start = System.currentTimeMillis();
+        try {
+            Long last = lastId(LOG);
+            int indexed = indexLogsAfter(last);
+            Long lastAttachment = lastId(ATTACHMENT_ID);
+            int attachments = indexAttachmentsAfter(lastAttachment, Long.MAX_VALUE);
+            writer.commit();
+            ready = true;
+            log.log(Level.INFO, "Search index caught up with {0} logs after log {1} and {2} attachments"
+                    + " after attachment {3} in {4} ms",
+                    new Object[]{indexed, last, attachments, lastAttachment, System.currentTimeMillis() - start});
+        } catch (Exception ex) {
+            log.log(Level.SEVERE, "Could not bring search index up to date", ex);
+        }
+    }
+
+    /**
+     * @param field LOG or ATTACHMENT_ID
+     * @return highest log or attachment id in the index
+     */
+    private static Long lastId(String field) throws IOException {
+        long last = 0;
+        IndexReader reader = IndexReader.open(writer, true);
+        try {
+            TermEnum terms = reader.terms(new Term(field, ""));
+            try {
+                do {
+                    Term term = terms.term();
+                    if (term == null || !term.field().equals(field)) {
+                        break;
+                    }
+                    last = Math.max(last, Long.parseLong(term.text()));
+                } while (terms.next());
+            } finally {
+                terms.close();
+            }
+        } finally {
+            reader.close();
+        }
+        return last;
+    }
+
+    /**
+     * Indexes the logs with an id above <tt>last</tt>, without committing.
+     *
+     * @return number of logs indexed
+     */
+    private static int indexLogsAfter(Long last) throws IOException {
+        try {
+            return indexLogs(JPAUtil.getEntityManager(), last, Long.MAX_VALUE);
+        } finally {
+            JPAUtil.closeEntityManager();
+        }
+    }
+
+    /**
+     * Indexes the logs with an id above <tt>after</tt>, up to
+     * <tt>last</tt>, without committing.
+     *
+     * @return number of logs indexed
+     */
+    private static int indexLogs(EntityManager em, Long after, Long last) throws IOException {
+        int indexed = 0;
+        while (true) {
+            TypedQuery<Log> query = JPAUtil.readOnly(em.createQuery(
+                    "SELECT l FROM Log l WHERE l.id > :after AND l.id <= :last ORDER BY l.id", Log.class));
+            query.setParameter("after", after);
+            query.setParameter("last", last);
+            query.setMaxResults(REINDEX_BATCH_SIZE);
+            query.setHint(QueryHints.BATCH, "l.logbooks");
+            query.setHint(QueryHints.BATCH, "l.tags");
+            query.setHint(QueryHints.BATCH, "l.attributes");
+            List<Log> logs = query.getResultList();
+            if (logs.isEmpty()) {
+                break;
+            }
+            for (Log l : logs) {
+                writer.updateDocument(new Term(LOG, l.getId().toString()), toDocument(l));
+                after = l.getId();
+            }
+            indexed += logs.size();
+            em.clear();
+        }
+        return indexed;
+    }
+
+    /**
+     * Indexes the attachments with an id above <tt>after</tt>, up to
+     * <tt>last</tt>, without committing.
+     *
+     * @return number of attachments indexed
+     */
+    private static int indexAttachmentsAfter(Long after, Long last) throws IOException, CFException {
+        int indexed = 0;
+        try {
+            while (after < last) {
+                List<AttachmentMetadata> attachments = AttachmentManager.findAfter(after, REINDEX_BATCH_SIZE);
+                if (attachments.isEmpty()) {
+                    break;
+                }
+                for (AttachmentMetadata metadata : attachments) {
+                    after = metadata.getId();
+                    if (after > last) {
+                        break;
+                    }
+                    try {
+                        indexAttachment(AttachmentManager.findAttachment(metadata), metadata);
+                        indexed++;
+                    } catch (CFException ex) {
+                        log.log(Level.WARNING, "Could not index attachment " + metadata.getPath(), ex);
+                    }
+                }
+            }
+        } finally {
+            JPAUtil.closeEntityManager();
+        }
+        return indexed;
+    }
+
+    /**
+     * Indexes every log and every attachment in the database.
+     */
+    private static void rebuild() {
+        long start = System.currentTimeMillis();
+        log.info("Rebuilding search index");
+        try {
+            indexLogsAfter(0L);
+            indexAttachmentsAfter(0L, Long.MAX_VALUE);
+            writer.commit();
+            ready = true;
+            log.log(Level.INFO, "Search index rebuilt in {0} ms", System.currentTimeMillis() - start);
+        } catch (Exception ex) {
+            log.log(Level.SEVERE, "Could not rebuild search index", ex);
+            try {
+                // Leave the index empty so the next startup rebuilds it
+                writer.deleteAll();
+                writer.commit();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not clear search index", e);
+            }
+        }
+    }
+}
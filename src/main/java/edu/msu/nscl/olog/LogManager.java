@@ -6,13 +6,31 @@ package edu.msu.nscl.olog;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import java.io.Closeable;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
 import javax.sound.midi.SysexMessage;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import org.eclipse.persistence.config.BatchFetchType;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.config.ResultSetConcurrency;
+import org.eclipse.persistence.config.ResultSetType;
+import org.eclipse.persistence.queries.ReportQueryResult;
+import org.eclipse.persistence.queries.ScrollableCursor;
 
 /**
  *
@@ -20,7 +38,18 @@ import javax.ws.rs.core.Response;
  */
 public class LogManager {
 
-    private static EntityManager em = null;
+    private static final int IN_LIST_SIZE = 500;
+    private static final int batchSize = OlogConfig.getInt("olog/bulkBatchSize", 100);
+    private static final int streamBatchSize = OlogConfig.getInt("olog/logStreamBatchSize", 100);
+    private static final ExpiringCache<String, Long> countCache = new ExpiringCache<String, Long>("logCount",
+            OlogConfig.getLong("olog/countCacheTTL", 60) * 1000,
+            OlogConfig.getInt("olog/countCacheSize", 1000));
+    // Qualified, as Level here is the log entry level
+    private static final java.util.logging.Logger logger = java.util.logging.Logger.getLogger(LogManager.class.getName());
+    // Fills countCache off the request path; searches already being counted
+    // are not queued again, and when the queue is full the count is skipped
+    private static final Set<String> counting = Collections.synchronizedSet(new HashSet<String>());
+    private static ExecutorService counter;
 
     private LogManager() {
     }
@@ -32,7 +61,7 @@ public class LogManager {
      * @throws CFException wrapping an SQLException
      */
     public static Logs findAll() throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Log> cq = cb.createQuery(Log.class);
         Root<Log> from = cq.from(Log.class);
@@ -40,8 +69,8 @@ public class LogManager {
         Predicate statusPredicate = cb.equal(from.get(Log_.state), State.Active);
         select.where(statusPredicate);
         select.orderBy(cb.desc(from.get(Log_.modifiedDate)));
-        TypedQuery<Log> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Log> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Logs result = new Logs();
             List<Log> rs = typedQuery.getResultList();
@@ -58,14 +87,28 @@ public class LogManager {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
 
     public static Logs findLog(MultivaluedMap<String, String> matches) throws CFException {
+        return findLog(matches, false);
+    }
+
+    /**
+     * Finds logs matching a search.
+     *
+     * @param matches search parameters
+     * @param stream whether to read the logs while they are written out,
+     * olog/logStreamBatchSize at a time, instead of before returning
+     * @return the matching logs
+     * @throws CFException wrapping an SQLException
+     */
+    public static Logs findLog(MultivaluedMap<String, String> matches, boolean stream) throws CFException {
 
 
         List<String> log_patterns = new ArrayList();        
+        List<String> search_terms = new ArrayList<String>();
         List<String> id_patterns = new ArrayList();
         List<String> tag_matches = new ArrayList();
         List<String> tag_patterns = new ArrayList();
@@ -78,22 +121,22 @@ public class LogManager {
         Multimap<String, String> value_patterns = ArrayListMultimap.create();
         Boolean empty = false;
         Boolean history = false;
+        Boolean scroll = false;
 
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<Log> cq = cb.createQuery(Log.class);
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
         Root<Log> from = cq.from(Log.class);
+        // The entry is the only join of the outer query (it holds the sort
+        // key); filters on collections are EXISTS subqueries, so each log is
+        // one row and no DISTINCT is needed
         Join<Log, Entry> entry = from.join(Log_.entry, JoinType.LEFT);
-        SetJoin<Log, Tag> tags = from.join(Log_.tags, JoinType.LEFT);
-        SetJoin<Log, Logbook> logbooks = from.join(Log_.logbooks, JoinType.LEFT);
-        Join<Attribute, Property> property = from.join(Log_.attributes, JoinType.LEFT).join(LogAttribute_.attribute, JoinType.LEFT).join(Attribute_.property, JoinType.LEFT);
-        Join<LogAttribute, Attribute> attribute = from.join(Log_.attributes, JoinType.LEFT).join(LogAttribute_.attribute, JoinType.LEFT);
-        Join<Log, LogAttribute> logAttribute = from.join(Log_.attributes, JoinType.LEFT);
 
         for (Map.Entry<String, List<String>> match : matches.entrySet()) {
             String key = match.getKey().toLowerCase();
             Collection<String> matchesValues = match.getValue();
             if (key.equals("search")) {
+                search_terms.addAll(matchesValues);
                 for (String m : matchesValues) {
                     if (m.contains("?") || m.contains("*")) {
                         if (m.contains("\\?") || m.contains("\\*")) {
@@ -182,6 +225,10 @@ public class LogManager {
                 paginate_matches.putAll(key, match.getValue());
             } else if (key.equals("limit")) {
                 paginate_matches.putAll(key, match.getValue());
+            } else if (key.equals("after")) {
+                paginate_matches.putAll(key, match.getValue());
+            } else if (key.equals("count")) {
+                paginate_matches.putAll(key, match.getValue());
             } else if (key.equals("start")) {
                 date_matches.putAll(key, match.getValue());
             } else if (key.equals("end")) {
@@ -190,6 +237,9 @@ public class LogManager {
                 empty = true;
             } else if (key.equals("history")){                
                 history = true;
+            } else if (key.equals("stream")) {
+                // Only a lazily read result can be scrolled
+                scroll = stream && Boolean.valueOf(match.getValue().iterator().next());
             } else {
                 Collection<String> cleanedMatchesValues = new HashSet<String>();
                 for (String m : matchesValues) {
@@ -212,27 +262,51 @@ public class LogManager {
         
         //cb.or() causes an error in eclipselink with p1 as first argument
         Predicate tagPredicate = cb.disjunction();
-        if (!tag_matches.isEmpty()) {
-            tagPredicate = cb.or(tags.get(Tag_.name).in(tag_matches), tagPredicate);
-        }
-        for (String s : tag_patterns) {
-            tagPredicate = cb.or(cb.like(tags.get(Tag_.name), s), tagPredicate);
+        if (!tag_matches.isEmpty() || !tag_patterns.isEmpty()) {
+            Subquery<Long> sq = cq.subquery(Long.class);
+            Root<Log> sl = sq.from(Log.class);
+            SetJoin<Log, Tag> tags = sl.join(Log_.tags);
+            Predicate matchPredicate = cb.disjunction();
+            if (!tag_matches.isEmpty()) {
+                matchPredicate = cb.or(tags.get(Tag_.name).in(tag_matches), matchPredicate);
+            }
+            for (String s : tag_patterns) {
+                matchPredicate = cb.or(cb.like(tags.get(Tag_.name), s), matchPredicate);
+            }
+            sq.select(sl.get(Log_.id)).where(cb.equal(sl.get(Log_.id), from.get(Log_.id)), matchPredicate);
+            tagPredicate = cb.exists(sq);
         }
 
         Predicate logbookPredicate = cb.disjunction();
-        if (!logbook_matches.isEmpty()) {
-            logbookPredicate = cb.and(logbookPredicate, logbooks.get(Logbook_.name).in(logbook_matches));
-        }
-        for (String s : logbook_patterns) {
-            logbookPredicate = cb.and(logbookPredicate, cb.like(logbooks.get(Logbook_.name), s));
+        if (!logbook_matches.isEmpty() || !logbook_patterns.isEmpty()) {
+            Subquery<Long> sq = cq.subquery(Long.class);
+            Root<Log> sl = sq.from(Log.class);
+            SetJoin<Log, Logbook> logbooks = sl.join(Log_.logbooks);
+            Predicate matchPredicate = cb.equal(sl.get(Log_.id), from.get(Log_.id));
+            if (!logbook_matches.isEmpty()) {
+                matchPredicate = cb.and(matchPredicate, logbooks.get(Logbook_.name).in(logbook_matches));
+            }
+            for (String s : logbook_patterns) {
+                matchPredicate = cb.and(matchPredicate, cb.like(logbooks.get(Logbook_.name), s));
+            }
+            sq.select(sl.get(Log_.id)).where(matchPredicate);
+            logbookPredicate = cb.exists(sq);
         }
 
         Predicate propertyPredicate = cb.disjunction();
-        if (!property_matches.isEmpty()) {
-            propertyPredicate = cb.and(propertyPredicate, property.get(Property_.name).in(property_matches));
-        }
-        for (String s : property_patterns) {
-            propertyPredicate = cb.and(propertyPredicate, cb.like(property.get(Property_.name), s));
+        if (!property_matches.isEmpty() || !property_patterns.isEmpty()) {
+            Subquery<Long> sq = cq.subquery(Long.class);
+            Root<LogAttribute> la = sq.from(LogAttribute.class);
+            Join<Attribute, Property> property = la.join(LogAttribute_.attribute).join(Attribute_.property);
+            Predicate matchPredicate = cb.equal(la.get(LogAttribute_.log), from);
+            if (!property_matches.isEmpty()) {
+                matchPredicate = cb.and(matchPredicate, property.get(Property_.name).in(property_matches));
+            }
+            for (String s : property_patterns) {
+                matchPredicate = cb.and(matchPredicate, cb.like(property.get(Property_.name), s));
+            }
+            sq.select(la.get(LogAttribute_.id)).where(matchPredicate);
+            propertyPredicate = cb.exists(sq);
         }
 
         Predicate propertyAttributePredicate = cb.disjunction();
@@ -240,10 +314,15 @@ public class LogManager {
             // Key is coming in as property.attribute
             List<String> group = Arrays.asList(match.getKey().split("\\."));
             if (group.size() == 2) {
-                propertyAttributePredicate = cb.and(propertyAttributePredicate,
-                        cb.like(logAttribute.get(LogAttribute_.value),
-                        match.getValue()), property.get(Property_.name).in(group.get(0),
-                        attribute.get(Attribute_.name).in(group.get(1))));
+                Subquery<Long> sq = cq.subquery(Long.class);
+                Root<LogAttribute> la = sq.from(LogAttribute.class);
+                Join<LogAttribute, Attribute> attribute = la.join(LogAttribute_.attribute);
+                Join<Attribute, Property> property = attribute.join(Attribute_.property);
+                sq.select(la.get(LogAttribute_.id)).where(cb.equal(la.get(LogAttribute_.log), from),
+                        cb.like(la.get(LogAttribute_.value), match.getValue()),
+                        cb.equal(property.get(Property_.name), group.get(0)),
+                        cb.equal(attribute.get(Attribute_.name), group.get(1)));
+                propertyAttributePredicate = cb.and(propertyAttributePredicate, cb.exists(sq));
             }
         }
 
@@ -253,12 +332,34 @@ public class LogManager {
         }
         
         Predicate searchPredicate = cb.disjunction();
+        Set<Long> logIds = new HashSet<Long>();
+        Set<Long> entryIds = new HashSet<Long>();
+        boolean indexed = !search_terms.isEmpty() && LogIndex.isReady();
+        for (String s : search_terms) {
+            if (!indexed) {
+                break;
+            }
+            LogIndex.Hits hits = LogIndex.search(s);
+            if (hits == null) {
+                // Too many hits to list, search the table instead
+                indexed = false;
+            } else {
+                logIds.addAll(hits.getLogIds());
+                entryIds.addAll(hits.getEntryIds());
+            }
+        }
+        if (indexed) {
+            searchPredicate = in(cb, from.get(Log_.id), logIds, searchPredicate);
+            searchPredicate = in(cb, entry.get(Entry_.id), entryIds, searchPredicate);
+            if (logIds.isEmpty() && entryIds.isEmpty()) {
+                // Nothing matched; ids are never null
+                searchPredicate = cb.isNull(from.get(Log_.id));
+            }
+            log_patterns.clear();
+        }
         for (String s : log_patterns) {
             searchPredicate = cb.or(cb.like(from.get(Log_.description), s), searchPredicate);
-            List<Long> ids = AttachmentManager.findAll(s);
-            if (!ids.isEmpty()) {
-                searchPredicate = cb.or(entry.get(Entry_.id).in(ids), searchPredicate);
-            }
+            searchPredicate = in(cb, entry.get(Entry_.id), AttachmentManager.findAll(s), searchPredicate);
         }
 
         Predicate datePredicate = cb.disjunction();
@@ -293,7 +394,6 @@ public class LogManager {
             }
         }
 
-        cq.distinct(true);
         Predicate statusPredicate = cb.disjunction();
         if(history){
             statusPredicate = cb.or(cb.equal(from.get(Log_.state), State.Active), cb.equal(from.get(Log_.state), State.Inactive));            
@@ -302,86 +402,581 @@ public class LogManager {
         }
         Predicate finalPredicate = cb.and(statusPredicate, logbookPredicate, tagPredicate, propertyPredicate, propertyAttributePredicate, datePredicate, searchPredicate, idPredicate);
         cq.where(finalPredicate);
-        cq.orderBy(cb.desc(entry.get(Entry_.createdDate)));
-        TypedQuery<Log> typedQuery = em.createQuery(cq);
+        // Phase one selects only the ids and sort keys of the page
+        cq.multiselect(from.get(Log_.id), entry.get(Entry_.createdDate), entry.get(Entry_.id));
+        cq.orderBy(cb.desc(entry.get(Entry_.createdDate)), cb.desc(entry.get(Entry_.id)), cb.asc(from.get(Log_.id)));
 
-        if (!paginate_matches.isEmpty()) {
-            String page = null, limit = null;
-            for (Map.Entry<String, Collection<String>> match : paginate_matches.asMap().entrySet()) {
-                if (match.getKey().toLowerCase().equals("limit")) {
-                    limit = match.getValue().iterator().next();
-                }
-                if (match.getKey().toLowerCase().equals("page")) {
-                    page = match.getValue().iterator().next();
-                }
+        String page = null, limit = null, after = null, count = null;
+        for (Map.Entry<String, Collection<String>> match : paginate_matches.asMap().entrySet()) {
+            if (match.getKey().toLowerCase().equals("limit")) {
+                limit = match.getValue().iterator().next();
             }
-            if (limit != null && page != null) {
-                Integer offset = Integer.valueOf(page) * Integer.valueOf(limit) - Integer.valueOf(limit);
-                typedQuery.setFirstResult(offset);
-                typedQuery.setMaxResults(Integer.valueOf(limit));
+            if (match.getKey().toLowerCase().equals("page")) {
+                page = match.getValue().iterator().next();
+            }
+            if (match.getKey().toLowerCase().equals("after")) {
+                after = match.getValue().iterator().next();
+            }
+            if (match.getKey().toLowerCase().equals("count")) {
+                count = match.getValue().iterator().next().toLowerCase();
             }
         }
+        if (count == null && scroll) {
+            // Counting would read every match before the first is streamed
+            count = "none";
+        } else if (count == null) {
+            // The exact count costs as much as the page itself
+            count = (limit != null && !empty) ? "estimate" : "exact";
+        } else if (!count.equals("none") && !count.equals("exact") && !count.equals("estimate")) {
+            throw new CFException(Response.Status.BAD_REQUEST,
+                    "Invalid count: " + count + ", expected none, exact or estimate");
+        }
 
-        JPAUtil.startTransaction(em);
+        JPAUtil.startReadOnly(em);
 
         try {
             Logs result = new Logs();
 
-            result.setCount(JPAUtil.count(em, cq));
+            String countKey = countKey(matches);
+            // Built before the seek predicate is added: counts all matches
+            CriteriaQuery<Long> countQuery = JPAUtil.countCriteria(em, cq);
+            Long total = null;
+            if (count.equals("exact") && (limit != null || after != null || empty || scroll)) {
+                total = em.createQuery(countQuery).getSingleResult();
+            } else if (count.equals("estimate")) {
+                total = countCache.get(countKey);
+            }
             if (empty) {
+                result.setCount(total);
                 return result;
             }
 
-            List<Log> rs = typedQuery.getResultList();
-            Map<Long, Integer> versionMap = new HashMap<Long, Integer>();
+            if (after != null) {
+                // Seek past the last row of the previous page instead of
+                // skipping rows, so every page is an index range scan on
+                // entries (created, id)
+                LogCursor cursor = LogCursor.parse(after);
+                Path<Date> created = entry.get(Entry_.createdDate);
+                Path<Long> entryId = entry.get(Entry_.id);
+                Predicate seekPredicate = cb.or(cb.lessThan(created, cursor.getCreatedDate()),
+                        cb.and(cb.equal(created, cursor.getCreatedDate()),
+                        cb.or(cb.lessThan(entryId, cursor.getEntryId()),
+                        cb.and(cb.equal(entryId, cursor.getEntryId()),
+                        cb.greaterThan(from.get(Log_.id), cursor.getLogId())))));
+                cq.where(finalPredicate, seekPredicate);
+            }
+            TypedQuery<Tuple> typedQuery = JPAUtil.readOnly(em.createQuery(cq));
+            if (limit != null && after != null) {
+                typedQuery.setMaxResults(Integer.valueOf(limit));
+            } else if (limit != null && page != null) {
+                Integer offset = Integer.valueOf(page) * Integer.valueOf(limit) - Integer.valueOf(limit);
+                typedQuery.setFirstResult(offset);
+                typedQuery.setMaxResults(Integer.valueOf(limit));
+            }
+            if (scroll) {
+                if (count.equals("estimate") && total == null) {
+                    countLater(countKey, matches);
+                }
+                if (!count.equals("none")) {
+                    result.setCount(total);
+                }
+                typedQuery.setHint(QueryHints.SCROLLABLE_CURSOR, HintValues.TRUE);
+                typedQuery.setHint(QueryHints.RESULT_SET_TYPE, ResultSetType.ForwardOnly);
+                typedQuery.setHint(QueryHints.RESULT_SET_CONCURRENCY, ResultSetConcurrency.ReadOnly);
+                // The cursor is the single result; read through Query so it
+                // is not cast to Tuple
+                Query cursorQuery = typedQuery;
+                result.streamFrom(new LogScroll((ScrollableCursor) cursorQuery.getSingleResult()));
+                return result;
+            }
 
-            if (rs != null) {
-                Iterator<Log> iterator = rs.iterator();
-                while (iterator.hasNext()) {
-                    Log log = iterator.next();
-                    Entry e = log.getEntry();
-                    int version;
-                    if(versionMap.containsKey(e.getId())){
-                        version = versionMap.get(e.getId())+1;
-                    }else{
-                        version = 1;
-                    }                    
-                    log.setVersion(String.valueOf(version));
-                    versionMap.put(e.getId(), version);
-                    
-                    log.setXmlAttachments(AttachmentManager.findAll(log.getEntryId()).getAttachments());
-                    Iterator<LogAttribute> iter = log.getAttributes().iterator();
-                    Set<XmlProperty> xmlProperties = new HashSet<XmlProperty>();
-                    while (iter.hasNext()) {
-                        XmlProperty xmlProperty = new XmlProperty();
-                        Map<String, String> map = new HashMap<String, String>();
-                        LogAttribute logattr = iter.next();
-                        Attribute attr = logattr.getAttribute();
-                        xmlProperty.setName(attr.getProperty().getName());
-                        xmlProperty.setId(attr.getProperty().getId());
-                        for (XmlProperty prevXmlProperty : xmlProperties) {
-                            if (prevXmlProperty.getId().equals(xmlProperty.getId())) {
-                                map = prevXmlProperty.getAttributes();
-                            }
-                        }
-                        map.put(attr.getName(), logattr.getValue());
-                        xmlProperty.setAttributes(map);
-                        xmlProperties.add(xmlProperty);
+            List<Long> ids = new ArrayList<Long>();
+            List<Tuple> rows = typedQuery.getResultList();
+            for (Tuple row : rows) {
+                ids.add(row.get(0, Long.class));
+            }
+            if (limit == null && after == null) {
+                // All matches were read, so the exact count is free
+                total = Long.valueOf(rows.size());
+            } else if (count.equals("estimate") && total == null) {
+                int offset = page != null && limit != null ? (Integer.valueOf(page) - 1) * Integer.valueOf(limit) : 0;
+                if (after == null && limit != null && rows.size() < Integer.valueOf(limit)
+                        && (!rows.isEmpty() || offset == 0)) {
+                    // A short page without a cursor is the end of the results;
+                    // an empty page past the end says nothing about the count
+                    total = Long.valueOf(offset + rows.size());
+                    countCache.put(countKey, total);
+                } else {
+                    // No count this time; later pages get it from the cache
+                    countLater(countKey, matches);
+                }
+            }
+            if (!count.equals("none")) {
+                result.setCount(total);
+            }
+            if (limit != null && !rows.isEmpty() && rows.size() == Integer.valueOf(limit)) {
+                Tuple last = rows.get(rows.size() - 1);
+                result.setNext(new LogCursor(last.get(1, Date.class), last.get(2, Long.class),
+                        last.get(0, Long.class)).toString());
+            }
+            if (stream) {
+                result.streamFrom(new LogStream(ids));
+                return result;
+            }
+            List<Log> rs = fetchLogs(em, ids);
+            decorate(rs, new HashMap<Long, Integer>());
+            for (Log log : rs) {
+                result.addLog(log);
+            }
+
+            return result;
+        } catch (CFException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Queues an exact count of the matches of a search for countCache, so
+     * that an estimate never waits for a full count.
+     */
+    private static void countLater(final String countKey, MultivaluedMap<String, String> matches) {
+        if (!counting.add(countKey)) {
+            return;
+        }
+        final MultivaluedMap<String, String> countMatches = new MultivaluedMapImpl();
+        for (Map.Entry<String, List<String>> match : matches.entrySet()) {
+            String key = match.getKey().toLowerCase();
+            if (!key.equals("page") && !key.equals("limit") && !key.equals("after")
+                    && !key.equals("count") && !key.equals("empty")) {
+                countMatches.put(match.getKey(), new ArrayList<String>(match.getValue()));
+            }
+        }
+        countMatches.putSingle("empty", "true");
+        countMatches.putSingle("count", "exact");
+        try {
+            counter().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        countCache.put(countKey, findLog(countMatches).getCount());
+                    } catch (Exception ex) {
+                        logger.log(java.util.logging.Level.WARNING, "Could not count logs matching " + countKey, ex);
+                    } finally {
+                        counting.remove(countKey);
+                        JPAUtil.closeEntityManager();
                     }
-                    log.setXmlProperties(xmlProperties);
-                    result.addLog(log);
                 }
+            });
+        } catch (RejectedExecutionException ex) {
+            counting.remove(countKey);
+        }
+    }
+
+    private static synchronized ExecutorService counter() {
+        if (counter == null) {
+            counter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(OlogConfig.getInt("olog/countQueueSize", 100)),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "olog-count");
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+        }
+        return counter;
+    }
+
+    /**
+     * Normalizes the filter part of a search (everything but paging and
+     * count parameters) into a key for the estimated count cache.
+     */
+    private static String countKey(MultivaluedMap<String, String> matches) {
+        SortedMap<String, List<String>> filter = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> match : matches.entrySet()) {
+            String key = match.getKey().toLowerCase();
+            if (key.equals("page") || key.equals("limit") || key.equals("after")
+                    || key.equals("count") || key.equals("empty")) {
+                continue;
+            }
+            List<String> values = filter.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                filter.put(key, values);
+            }
+            values.addAll(match.getValue());
+            Collections.sort(values);
+        }
+        return filter.toString();
+    }
+
+    /**
+     * Adds <tt>path IN ids</tt> to a disjunction, one IN list per
+     * IN_LIST_SIZE ids.
+     */
+    private static Predicate in(CriteriaBuilder cb, Expression<Long> path, Collection<Long> ids, Predicate predicate) {
+        List<Long> list = new ArrayList<Long>(ids);
+        for (int i = 0; i < list.size(); i += IN_LIST_SIZE) {
+            predicate = cb.or(path.in(list.subList(i, Math.min(i + IN_LIST_SIZE, list.size()))), predicate);
+        }
+        return predicate;
+    }
+
+    /**
+     * Phase two of a log search: loads the logs with the given ids, fetching
+     * their entries with a join and their logbooks, tags and attributes in
+     * one batch query per association, instead of lazily per log.
+     *
+     * @param em Entity Manager
+     * @param ids log ids, in result order
+     * @return the logs, in the order of <tt>ids</tt>
+     */
+    private static List<Log> fetchLogs(EntityManager em, List<Long> ids) {
+        Map<Long, Log> logs = new HashMap<Long, Log>();
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+            List<Long> chunk = ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size()));
+            CriteriaQuery<Log> cq = cb.createQuery(Log.class);
+            Root<Log> from = cq.from(Log.class);
+            from.alias("l");
+            cq.select(from).where(from.get(Log_.id).in(chunk));
+            TypedQuery<Log> query = JPAUtil.readOnly(em.createQuery(cq));
+            query.setHint(QueryHints.FETCH, "l.entry");
+            query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+            query.setHint(QueryHints.BATCH, "l.logbooks");
+            query.setHint(QueryHints.BATCH, "l.tags");
+            query.setHint(QueryHints.BATCH, "l.attributes");
+            query.setHint(QueryHints.BATCH, "l.attributes.attribute");
+            query.setHint(QueryHints.BATCH, "l.attributes.attribute.property");
+            for (Log log : query.getResultList()) {
+                logs.put(log.getId(), log);
+            }
+        }
+        List<Log> result = new ArrayList<Log>(ids.size());
+        for (Long id : ids) {
+            Log log = logs.get(id);
+            if (log != null) {
+                result.add(log);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the ids of the entries with a version in a logbook, in id order.
+     *
+     * @param logbook logbook name, or null for all entries
+     * @param after only ids greater than this
+     * @param max maximum number of ids
+     * @return entry ids
+     * @throws CFException wrapping a JPA exception
+     */
+    static List<Long> findEntryIds(String logbook, long after, int max) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            TypedQuery<Long> query;
+            if (logbook == null) {
+                query = em.createQuery("SELECT e.id FROM Entry e WHERE e.id > :after ORDER BY e.id", Long.class);
+            } else {
+                query = em.createQuery("SELECT DISTINCT l.entry.id FROM Log l JOIN l.logbooks b"
+                        + " WHERE b.name = :logbook AND l.entry.id > :after ORDER BY l.entry.id", Long.class);
+                query.setParameter("logbook", logbook);
             }
+            return JPAUtil.readOnly(query).setParameter("after", after).setMaxResults(max).getResultList();
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
 
+    /**
+     * Counts the entries with a version in a logbook.
+     *
+     * @param logbook logbook name, or null for all entries
+     * @return number of entries
+     * @throws CFException wrapping a JPA exception
+     */
+    static long countEntries(String logbook) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            TypedQuery<Long> query;
+            if (logbook == null) {
+                query = em.createQuery("SELECT COUNT(e) FROM Entry e", Long.class);
+            } else {
+                query = em.createQuery("SELECT COUNT(DISTINCT l.entry.id) FROM Log l JOIN l.logbooks b"
+                        + " WHERE b.name = :logbook", Long.class);
+                query.setParameter("logbook", logbook);
+            }
+            return query.getSingleResult();
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Loads every version, active or not, of some entries, decorated as
+     * search results are.
+     *
+     * @param entryIds entry ids
+     * @return the logs, by entry id and then in the order they were written
+     * @throws CFException wrapping a JPA exception
+     */
+    static List<Log> findVersions(Collection<Long> entryIds) throws CFException {
+        List<Log> result = new ArrayList<Log>();
+        if (entryIds.isEmpty()) {
+            return result;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            List<Long> ids = new ArrayList<Long>(entryIds);
+            for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+                TypedQuery<Log> query = JPAUtil.readOnly(em.createQuery(
+                        "SELECT l FROM Log l WHERE l.entry.id IN :ids ORDER BY l.entry.id, l.id", Log.class));
+                query.setParameter("ids", ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size())));
+                query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+                query.setHint(QueryHints.BATCH, "l.logbooks");
+                query.setHint(QueryHints.BATCH, "l.tags");
+                query.setHint(QueryHints.BATCH, "l.attributes");
+                query.setHint(QueryHints.BATCH, "l.attributes.attribute");
+                query.setHint(QueryHints.BATCH, "l.attributes.attribute.property");
+                result.addAll(query.getResultList());
+            }
+            decorate(result, new HashMap<Long, Integer>());
             return result;
+        } catch (CFException e) {
+            throw e;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Sets the version, attachments and properties of loaded logs.
+     *
+     * @param logs logs, in result order
+     * @param versionMap last version seen of each entry, carried over when
+     * logs are decorated in batches
+     */
+    private static void decorate(List<Log> logs, Map<Long, Integer> versionMap) throws CFException {
+        Map<Long, XmlAttachments> attachments = AttachmentManager.findAll(entryIds(logs));
+        for (Log log : logs) {
+            Entry e = log.getEntry();
+            int version;
+            if (versionMap.containsKey(e.getId())) {
+                version = versionMap.get(e.getId()) + 1;
+            } else {
+                version = 1;
+            }
+            log.setVersion(String.valueOf(version));
+            versionMap.put(e.getId(), version);
+
+            log.setXmlAttachments(attachments.get(e.getId()).getAttachments());
+            log.setXmlProperties(toXmlProperties(log));
+        }
+    }
+
+    /**
+     * The logs of a search, loaded olog/logStreamBatchSize at a time as they
+     * are iterated. Each batch is read in its own read-only scope, whose end
+     * detaches it, so only the batch being written out is held. A log
+     * removed after the search is skipped.
+     */
+    private static class LogStream implements Iterable<Log> {
+
+        private final List<Long> ids;
+
+        LogStream(List<Long> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public Iterator<Log> iterator() {
+            return new Iterator<Log>() {
+
+                private final Map<Long, Integer> versionMap = new HashMap<Long, Integer>();
+                private Iterator<Log> batch = Collections.<Log>emptyList().iterator();
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (!batch.hasNext() && next < ids.size()) {
+                        List<Long> batchIds = ids.subList(next, Math.min(next + streamBatchSize, ids.size()));
+                        next += batchIds.size();
+                        batch = load(batchIds, versionMap).iterator();
+                    }
+                    return batch.hasNext();
+                }
+
+                @Override
+                public Log next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return batch.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private static List<Log> load(List<Long> ids, Map<Long, Integer> versionMap) {
+            EntityManager em = JPAUtil.getEntityManager();
+            JPAUtil.startReadOnly(em);
+            try {
+                List<Log> logs = fetchLogs(em, ids);
+                decorate(logs, versionMap);
+                return logs;
+            } catch (CFException e) {
+                // The response is already being written
+                throw new WebApplicationException(e, e.getResponseStatusCode());
+            } finally {
+                JPAUtil.finishReadOnly(em);
+            }
         }
     }
 
+    /**
+     * The logs of a streamed search (stream=true), read from a forward-only
+     * cursor over the matching ids and loaded olog/logStreamBatchSize at a
+     * time, so neither the ids nor the logs are held whole; results are
+     * ordered by entry, so only the version of the last entry is kept. It
+     * can be iterated once, and closing it, or reading it to the end,
+     * releases the cursor and its connection.
+     */
+    private static class LogScroll implements Iterable<Log>, Closeable {
+
+        private final ScrollableCursor cursor;
+        private final Map<Long, Integer> versionMap = new HashMap<Long, Integer>();
+        private Iterator<Log> batch = Collections.<Log>emptyList().iterator();
+        private boolean closed;
+        private final Iterator<Log> iterator = new Iterator<Log>() {
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && !closed) {
+                    List<Long> ids = new ArrayList<Long>(streamBatchSize);
+                    while (ids.size() < streamBatchSize && cursor.hasNext()) {
+                        ids.add(rowId(cursor.next()));
+                    }
+                    if (ids.size() < streamBatchSize) {
+                        close();
+                    }
+                    List<Log> logs = LogStream.load(ids, versionMap);
+                    if (!logs.isEmpty()) {
+                        Long last = logs.get(logs.size() - 1).getEntryId();
+                        Integer version = versionMap.get(last);
+                        versionMap.clear();
+                        versionMap.put(last, version);
+                    }
+                    batch = logs.iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public Log next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        LogScroll(ScrollableCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Iterator<Log> iterator() {
+            return iterator;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                cursor.close();
+            }
+        }
+
+        /**
+         * EclipseLink hands out cursor rows of a tuple query unconverted.
+         */
+        private static Long rowId(Object row) {
+            if (row instanceof Tuple) {
+                return ((Tuple) row).get(0, Long.class);
+            } else if (row instanceof ReportQueryResult) {
+                return (Long) ((ReportQueryResult) row).getResults().get(0);
+            } else {
+                return (Long) ((Object[]) row)[0];
+            }
+        }
+    }
+
+    private static Set<Long> entryIds(Collection<Log> logs) {
+        Set<Long> ids = new LinkedHashSet<Long>();
+        for (Log log : logs) {
+            ids.add(log.getEntryId());
+        }
+        return ids;
+    }
+
+    /**
+     * Groups the attribute values of a log by property.
+     *
+     * @param log log with its attributes loaded
+     * @return XmlProperties of the log
+     */
+    private static Set<XmlProperty> toXmlProperties(Log log) {
+        Iterator<LogAttribute> iter = log.getAttributes().iterator();
+        Set<XmlProperty> xmlProperties = new HashSet<XmlProperty>();
+        while (iter.hasNext()) {
+            XmlProperty xmlProperty = new XmlProperty();
+            Map<String, String> map = new HashMap<String, String>();
+            LogAttribute logattr = iter.next();
+            Attribute attr = logattr.getAttribute();
+            xmlProperty.setName(attr.getProperty().getName());
+            xmlProperty.setId(attr.getProperty().getId());
+            for (XmlProperty prevXmlProperty : xmlProperties) {
+                if (prevXmlProperty.getId().equals(xmlProperty.getId())) {
+                    map = prevXmlProperty.getAttributes();
+                }
+            }
+            map.put(attr.getName(), logattr.getValue());
+            xmlProperty.setAttributes(map);
+            xmlProperties.add(xmlProperty);
+        }
+        return xmlProperties;
+    }
+
     /**
      * Finds a log and edits in the database by id.
      *
@@ -395,25 +990,7 @@ public class LogManager {
             Log result = Collections.max(logs);
             result.setVersion(String.valueOf(logs.size()));
             result.setXmlAttachments(AttachmentManager.findAll(result.getEntryId()).getAttachments());
-            Iterator<LogAttribute> iter = result.getAttributes().iterator();
-            Set<XmlProperty> xmlProperties = new HashSet<XmlProperty>();
-            while (iter.hasNext()) {
-                XmlProperty xmlProperty = new XmlProperty();
-                Map<String, String> map = new HashMap<String, String>();
-                LogAttribute logattr = iter.next();
-                Attribute attr = logattr.getAttribute();
-                xmlProperty.setName(attr.getProperty().getName());
-                xmlProperty.setId(attr.getProperty().getId());
-                for (XmlProperty prevXmlProperty : xmlProperties) {
-                    if (prevXmlProperty.getId().equals(xmlProperty.getId())) {
-                        map = prevXmlProperty.getAttributes();
-                    }
-                }
-                map.put(attr.getName(), logattr.getValue());
-                xmlProperty.setAttributes(map);
-                xmlProperties.add(xmlProperty);
-            }
-            result.setXmlProperties(xmlProperties);
+            result.setXmlProperties(toXmlProperties(result));
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -429,53 +1006,53 @@ public class LogManager {
      * @throws CFException wrapping an SQLException
      */
     public static Log create(Log log) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         JPAUtil.startTransaction(em);
-        Log newLog = new Log();
-        newLog.setState(State.Active);
-        newLog.setLevel(log.getLevel());
-        newLog.setOwner(log.getOwner());
-        newLog.setDescription(log.getDescription());
-        newLog.setSource(log.getSource());
-        em.persist(newLog);
-        if (!log.getLogbooks().isEmpty()) {
-            Iterator<Logbook> iterator = log.getLogbooks().iterator();
-            Set<Logbook> logbooks = new HashSet<Logbook>();
-            while (iterator.hasNext()) {
-                String logbookName = iterator.next().getName();
-                Logbook logbook = LogbookManager.findLogbook(logbookName);
-                if (logbook != null) {
-                    logbook = em.merge(logbook);
-                    logbook.addLog(newLog);
-                    logbooks.add(logbook);
-                } else {
-                    throw new CFException(Response.Status.NOT_FOUND,
-                            "Log entry " + log.getId() + " logbook:" + logbookName + " does not exists.");
+        try {
+            Log newLog = new Log();
+            newLog.setState(State.Active);
+            newLog.setLevel(log.getLevel());
+            newLog.setOwner(log.getOwner());
+            newLog.setDescription(log.getDescription());
+            newLog.setSource(log.getSource());
+            em.persist(newLog);
+            if (!log.getLogbooks().isEmpty()) {
+                Iterator<Logbook> iterator = log.getLogbooks().iterator();
+                Set<Logbook> logbooks = new HashSet<Logbook>();
+                while (iterator.hasNext()) {
+                    String logbookName = iterator.next().getName();
+                    Logbook logbook = LogbookManager.findLogbook(logbookName);
+                    if (logbook != null) {
+                        logbook = em.merge(logbook);
+                        logbook.addLog(newLog);
+                        logbooks.add(logbook);
+                    } else {
+                        throw new CFException(Response.Status.NOT_FOUND,
+                                "Log entry " + log.getId() + " logbook:" + logbookName + " does not exists.");
+                    }
                 }
+                newLog.setLogbooks(logbooks);
+            } else {
+                throw new CFException(Response.Status.NOT_FOUND,
+                        "Log entry " + log.getId() + " must be in at least one logbook.");
             }
-            newLog.setLogbooks(logbooks);
-        } else {
-            throw new CFException(Response.Status.NOT_FOUND,
-                    "Log entry " + log.getId() + " must be in at least one logbook.");
-        }
-        if (log.getTags() != null) {
-            Iterator<Tag> iterator2 = log.getTags().iterator();
-            Set<Tag> tags = new HashSet<Tag>();
-            while (iterator2.hasNext()) {
-                String tagName = iterator2.next().getName();
-                Tag tag = TagManager.findTag(tagName);
-                if (tag != null) {
-                    tag = em.merge(tag);
-                    tag.addLog(newLog);
-                    tags.add(tag);
-                } else {
-                    throw new CFException(Response.Status.NOT_FOUND,
-                            "Log entry " + log.getId() + " tag:" + tagName + " does not exists.");
+            if (log.getTags() != null) {
+                Iterator<Tag> iterator2 = log.getTags().iterator();
+                Set<Tag> tags = new HashSet<Tag>();
+                while (iterator2.hasNext()) {
+                    String tagName = iterator2.next().getName();
+                    Tag tag = TagManager.findTag(tagName);
+                    if (tag != null) {
+                        tag = em.merge(tag);
+                        tag.addLog(newLog);
+                        tags.add(tag);
+                    } else {
+                        throw new CFException(Response.Status.NOT_FOUND,
+                                "Log entry " + log.getId() + " tag:" + tagName + " does not exists.");
+                    }
                 }
+                newLog.setTags(tags);
             }
-            newLog.setTags(tags);
-        }
-        try {
             if (log.getEntryId() != null) {
                 Entry entry = (Entry) JPAUtil.findByID(Entry.class, log.getEntryId());
                 if (entry.getLogs() != null) {
@@ -486,7 +1063,9 @@ public class LogManager {
                         sibling = em.merge(sibling);
                         sibling.setState(State.Inactive);
                         iterator.set(sibling);
+                        CacheCoordinator.evict(Log.class, sibling.getId());
                     }
+                    CacheCoordinator.evict(Entry.class, entry.getId());
                     entry.addLog(newLog);
                 }
                 newLog.setState(State.Active);
@@ -523,8 +1102,20 @@ public class LogManager {
                 }
             }
             newLog.setXmlProperties(log.getXmlProperties());
+            CacheCoordinator.evict(Log.class, newLog.getId());
+            final Log indexed = newLog;
+            JPAUtil.afterCommit(new Runnable() {
+
+                @Override
+                public void run() {
+                    LogIndex.add(indexed);
+                }
+            });
             JPAUtil.finishTransacton(em);
             return newLog;
+        } catch (CFException e) {
+            JPAUtil.transactionFailed(em);
+            throw e;
         } catch (Exception e) {
             JPAUtil.transactionFailed(em);
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
@@ -533,6 +1124,186 @@ public class LogManager {
 
     }
 
+    /**
+     * Number of logs created per transaction by create(List).
+     */
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Creates many Logs in the database. Logbooks, tags and attributes
+     * referenced by any of the logs are resolved from the dictionary caches,
+     * with one query each for those not cached, and
+     * the logs are written in batches of olog/bulkBatchSize logs, with one
+     * transaction (and one flush of the batched statements) per batch.
+     * Logs that replace an existing entry go through create(Log).
+     *
+     * @param logs logs to create
+     * @return created logs, in the same order
+     * @throws CFException on an unknown logbook, tag or attribute, or
+     * wrapping a JPA exception; batches before the failing one stay
+     * committed
+     */
+    public static List<Log> create(List<Log> logs) throws CFException {
+        Set<String> logbookNames = new HashSet<String>();
+        Set<String> tagNames = new HashSet<String>();
+        Set<String> attributeKeys = new HashSet<String>();
+        for (Log log : logs) {
+            for (Logbook logbook : log.getLogbooks()) {
+                logbookNames.add(logbook.getName());
+            }
+            if (log.getTags() != null) {
+                for (Tag tag : log.getTags()) {
+                    tagNames.add(tag.getName());
+                }
+            }
+            if (log.getXmlProperties() != null) {
+                for (XmlProperty p : log.getXmlProperties()) {
+                    for (String attribute : p.getAttributes().keySet()) {
+                        attributeKeys.add(DictionaryCache.attributeKey(p.getName(), attribute));
+                    }
+                }
+            }
+        }
+        Map<String, Logbook> logbooks = LogbookManager.findLogbooks(logbookNames);
+        Map<String, Tag> tags = TagManager.findTags(tagNames);
+        Map<String, Attribute> attributes = AttributeManager.findAttributes(attributeKeys);
+
+        List<Log> result = new ArrayList<Log>(logs.size());
+        for (int i = 0; i < logs.size(); i += batchSize) {
+            result.addAll(createBatch(logs.subList(i, Math.min(i + batchSize, logs.size())),
+                    logbooks, tags, attributes));
+        }
+        return result;
+    }
+
+    private static List<Log> createBatch(List<Log> logs, Map<String, Logbook> logbooks,
+            Map<String, Tag> tags, Map<String, Attribute> attributes) throws CFException {
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startTransaction(em);
+        try {
+            List<Log> created = new ArrayList<Log>(logs.size());
+            final List<Log> newLogs = new ArrayList<Log>();
+            // The logbooks and tags as resolved (and loaded), handed back once
+            // the references used for the inserts are detached
+            final Map<Log, Set<Logbook>> resolvedLogbooks = new IdentityHashMap<Log, Set<Logbook>>();
+            final Map<Log, Set<Tag>> resolvedTags = new IdentityHashMap<Log, Set<Tag>>();
+            for (Log log : logs) {
+                if (log.getEntryId() != null) {
+                    created.add(create(log));
+                    continue;
+                }
+                if (log.getLogbooks().isEmpty()) {
+                    throw new CFException(Response.Status.NOT_FOUND,
+                            "Log entry " + log.getId() + " must be in at least one logbook.");
+                }
+                Log newLog = new Log();
+                newLog.setState(State.Active);
+                newLog.setLevel(log.getLevel());
+                newLog.setOwner(log.getOwner());
+                newLog.setDescription(log.getDescription());
+                newLog.setSource(log.getSource());
+                Set<Logbook> newLogbooks = new HashSet<Logbook>();
+                Set<Logbook> logLogbooks = new HashSet<Logbook>();
+                for (Logbook l : log.getLogbooks()) {
+                    Logbook logbook = logbooks.get(l.getName());
+                    if (logbook == null) {
+                        throw new CFException(Response.Status.NOT_FOUND,
+                                "Log entry " + log.getId() + " logbook:" + l.getName() + " does not exists.");
+                    }
+                    newLogbooks.add(em.getReference(Logbook.class, logbook.getId()));
+                    logLogbooks.add(logbook);
+                }
+                resolvedLogbooks.put(newLog, logLogbooks);
+                newLog.setLogbooks(newLogbooks);
+                Set<Tag> newTags = new HashSet<Tag>();
+                Set<Tag> logTags = new HashSet<Tag>();
+                if (log.getTags() != null) {
+                    for (Tag t : log.getTags()) {
+                        Tag tag = tags.get(t.getName());
+                        if (tag == null) {
+                            throw new CFException(Response.Status.NOT_FOUND,
+                                    "Log entry " + log.getId() + " tag:" + t.getName() + " does not exists.");
+                        }
+                        newTags.add(em.getReference(Tag.class, tag.getId()));
+                        logTags.add(tag);
+                    }
+                }
+                resolvedTags.put(newLog, logTags);
+                newLog.setTags(newTags);
+                Entry entry = new Entry();
+                entry.addLog(newLog);
+                newLog.setEntry(entry);
+                em.persist(newLog);
+                em.persist(entry);
+                newLog.setXmlProperties(log.getXmlProperties());
+                newLogs.add(newLog);
+                created.add(newLog);
+            }
+            // One flush assigns the ids the attribute rows need
+            em.flush();
+            for (Log newLog : newLogs) {
+                if (newLog.getXmlProperties() == null) {
+                    continue;
+                }
+                Set<LogAttribute> logattrs = new HashSet<LogAttribute>();
+                Long i = 0L;
+                for (XmlProperty p : newLog.getXmlProperties()) {
+                    for (Map.Entry<String, String> att : p.getAttributes().entrySet()) {
+                        Attribute attribute = attributes.get(DictionaryCache.attributeKey(p.getName(), att.getKey()));
+                        if (attribute == null) {
+                            throw new CFException(Response.Status.NOT_FOUND,
+                                    "Log entry property:" + p.getName() + " attribute:" + att.getKey() + " does not exists.");
+                        }
+                        LogAttribute logattr = new LogAttribute();
+                        logattr.setAttribute(attribute);
+                        logattr.setLog(newLog);
+                        logattr.setAttributeId(attribute.getId());
+                        logattr.setLogId(newLog.getId());
+                        logattr.setValue(att.getValue());
+                        logattr.setGroupingNum(i);
+                        em.persist(logattr);
+                        logattrs.add(logattr);
+                    }
+                    i++;
+                }
+                newLog.setAttributes(logattrs);
+            }
+            if (!newLogs.isEmpty()) {
+                // One event for the batch; other writers' logs in the range
+                // are only indexed again
+                long first = Long.MAX_VALUE;
+                long last = Long.MIN_VALUE;
+                for (Log newLog : newLogs) {
+                    first = Math.min(first, newLog.getId());
+                    last = Math.max(last, newLog.getId());
+                }
+                CacheCoordinator.evictRange(Log.class, first, last);
+            }
+            JPAUtil.afterCommit(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (Log newLog : newLogs) {
+                        newLog.setLogbooks(resolvedLogbooks.get(newLog));
+                        newLog.setTags(resolvedTags.get(newLog));
+                    }
+                    LogIndex.addAll(newLogs);
+                }
+            });
+            JPAUtil.finishTransacton(em);
+            return created;
+        } catch (CFException e) {
+            JPAUtil.transactionFailed(em);
+            throw e;
+        } catch (Exception e) {
+            JPAUtil.transactionFailed(em);
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        }
+    }
+
     /**
      * Remove a tag (mark as Inactive).
      *
@@ -550,8 +1321,10 @@ public class LogManager {
                         sibling.setState(State.Inactive);
                         iterator.set(sibling);
                         JPAUtil.update(sibling);
+                        CacheCoordinator.evict(Log.class, sibling.getId());
                     }
                 }
+                CacheCoordinator.evict(Entry.class, entry.getId());
             }
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
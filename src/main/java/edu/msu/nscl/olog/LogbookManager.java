@@ -4,8 +4,13 @@
  */
 package edu.msu.nscl.olog;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -19,8 +24,8 @@ import javax.ws.rs.core.Response;
  * @author berryman
  */
 public class LogbookManager {
-    private static EntityManager em = null;
-    
+    private static final DictionaryCache<Logbook> ids = new DictionaryCache<Logbook>("logbooks", Logbook.class);
+
     private LogbookManager() {
     }
 
@@ -31,7 +36,7 @@ public class LogbookManager {
      * @throws CFException wrapping an SQLException
      */
     public static Logbooks findAll() throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Logbook> cq = cb.createQuery(Logbook.class);
         Root<Logbook> from = cq.from(Logbook.class);
@@ -39,8 +44,8 @@ public class LogbookManager {
         Predicate statusPredicate = cb.equal(from.get("state"), State.Active);
         select.where(statusPredicate);
         select.orderBy(cb.asc(from.get("name")));
-        TypedQuery<Logbook> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Logbook> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Logbooks result = new Logbooks();
             List<Logbook> rs = typedQuery.getResultList();
@@ -56,7 +61,7 @@ public class LogbookManager {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-           JPAUtil.finishTransacton(em);
+           JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -67,7 +72,11 @@ public class LogbookManager {
      * @throws CFException wrapping an SQLException
      */
     public static Logbook findLogbook(String name) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        Logbook cached = ids.find(name);
+        if (cached != null) {
+            return cached;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Logbook> cq = cb.createQuery(Logbook.class);
         Root<Logbook> from = cq.from(Logbook.class);
@@ -76,8 +85,8 @@ public class LogbookManager {
         //Predicate statusPredicate = cb.equal(from.get("state"), State.Active);
         select.where(namePredicate);
         select.orderBy(cb.asc(from.get("name")));
-        TypedQuery<Logbook> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Logbook> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Logbook result = null;
             List<Logbook> rs = typedQuery.getResultList();
@@ -87,16 +96,59 @@ public class LogbookManager {
                     result = iterator.next();
                 }
             }
+            if (result != null) {
+                ids.cache(name, result.getId());
+            }
 
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
-    
+
+    /**
+     * Finds logbooks by name, from the cache where it holds them and with
+     * one query for the rest.
+     *
+     * @param names logbook names
+     * @return the logbooks that exist, by name
+     * @throws CFException wrapping a JPA exception
+     */
+    public static Map<String, Logbook> findLogbooks(Collection<String> names) throws CFException {
+        Map<String, Logbook> result = new HashMap<String, Logbook>();
+        Set<String> misses = new HashSet<String>();
+        for (String name : names) {
+            Logbook cached = ids.find(name);
+            if (cached != null) {
+                result.put(name, cached);
+            } else {
+                misses.add(name);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            for (Logbook logbook : JPAUtil.readOnly(em.createQuery(
+                    "SELECT l FROM Logbook l WHERE l.name IN :names", Logbook.class))
+                    .setParameter("names", misses).getResultList()) {
+                result.put(logbook.getName(), logbook);
+                ids.cache(logbook.getName(), logbook.getId());
+            }
+            return result;
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
+        }
+    }
+
     /**
      * Creates a logbook in the database.
      *
@@ -113,12 +165,14 @@ public class LogbookManager {
                 logbook.setState(State.Active);
                 logbook.setOwner(owner);
                 logbook = (Logbook)JPAUtil.update(logbook);
+                ids.invalidate(name, logbook.getId());
                 return logbook;
             } else {
                 xmlLogbook.setName(name);
                 xmlLogbook.setOwner(owner);
                 xmlLogbook.setState(State.Active);
                 JPAUtil.save(xmlLogbook);
+                ids.invalidate(name, xmlLogbook.getId());
                 return xmlLogbook;
             }
              
@@ -140,6 +194,7 @@ public class LogbookManager {
                 Logbook logbook = findLogbook(name);
                 logbook.setState(State.Inactive);
                 JPAUtil.update(logbook);
+                ids.invalidate(name, logbook.getId());
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
@@ -5,8 +5,12 @@
  */
 package edu.msu.nscl.olog;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -20,9 +24,11 @@ import javax.xml.bind.annotation.XmlTransient;
  * @author Eric Berryman taken from Ralph Lange <Ralph.Lange@bessy.de>
  */
 @XmlRootElement(name = "logs")
-public class Logs extends ArrayList<Log> {
+public class Logs extends ArrayList<Log> implements Closeable {
 
     private Long count;
+    private String next;
+    private Iterable<Log> source;
     
     /**
      * Creates a new instance of Logs.
@@ -52,14 +58,75 @@ public class Logs extends ArrayList<Log> {
         this.count = count;
     }
 
+    /**
+     * Returns the cursor to pass as <tt>after</tt> to get the next page, or
+     * null if this is the last page.
+     *
+     * @return next page cursor
+     */
+    @XmlAttribute(name = "next")
+    public String getNext() {
+        return this.next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+
     /**
      * Returns a collection of Log.
+     * <p>
+     * For streamed logs this is a view that can only be iterated, once,
+     * which is all JAXB does with it; use getStream() elsewhere.
      *
      * @return logs a collection of Log
      */
     @XmlElementRef(type = Log.class, name = "log")
-    public List<Log> getLogList() {
-        return this;
+    public Collection<Log> getLogList() {
+        return source != null ? new StreamView(source) : this;
+    }
+
+    /**
+     * Writes out the logs of <tt>source</tt> instead of the ones added to
+     * this collection, so that a large result can be read as it is written
+     * rather than held whole. If <tt>source</tt> is Closeable, close()
+     * closes it.
+     *
+     * @param source logs to write out
+     */
+    public void streamFrom(Iterable<Log> source) {
+        this.source = source;
+    }
+
+    /**
+     * @return whether the logs are read from a stream while written out
+     */
+    @XmlTransient
+    public boolean isStreamed() {
+        return source != null;
+    }
+
+    /**
+     * Returns the logs to write out: the stream if there is one, otherwise
+     * this collection.
+     *
+     * @return logs to write out
+     */
+    @XmlTransient
+    public Iterable<Log> getStream() {
+        return source != null ? source : this;
+    }
+
+    /**
+     * Releases the stream, if any, and what it holds open.
+     *
+     * @throws IOException if the stream could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (source instanceof Closeable) {
+            ((Closeable) source).close();
+        }
     }
 
     @XmlTransient
@@ -121,4 +188,27 @@ public class Logs extends ArrayList<Log> {
             return s.toString();
         }
     }
+
+    /**
+     * Streamed logs as the collection JAXB marshals; their number is only
+     * known once they have been read.
+     */
+    private static class StreamView extends AbstractCollection<Log> {
+
+        private final Iterable<Log> source;
+
+        StreamView(Iterable<Log> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Iterator<Log> iterator() {
+            return source.iterator();
+        }
+
+        @Override
+        public int size() {
+            throw new UnsupportedOperationException("Streamed logs can only be iterated");
+        }
+    }
 }
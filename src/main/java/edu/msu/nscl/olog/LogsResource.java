@@ -6,7 +6,13 @@
 
 package edu.msu.nscl.olog;
 
+import com.sun.jersey.api.json.JSONUnmarshaller;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Logger;
@@ -23,9 +29,11 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
+import javax.xml.bind.JAXBException;
 
 /**
  * Top level Jersey HTTP methods for the .../logs URL
@@ -64,7 +72,7 @@ public class LogsResource {
             Logs result = cm.findLogsByMultiMatch(uriInfo.getQueryParameters());
             Response r = Response.ok(result).build();
             log.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus()
-                    + "|returns " + result.getLogList().size() + " logs");
+                    + (result.isStreamed() ? "|streams logs" : "|returns " + result.size() + " logs"));
             return r;
         } catch (CFException e) {
             log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|"
@@ -73,6 +81,33 @@ public class LogsResource {
         } 
     }
 
+    /**
+     * GET method for streaming the Log instances matching a query as
+     * newline delimited JSON, read from a database cursor as they are
+     * written (as with stream=true).
+     *
+     * @return HTTP Response
+     */
+    @GET
+    @Produces(LogsWriter.APPLICATION_NDJSON)
+    public Response stream() throws RepositoryException, UnsupportedEncodingException, NoSuchAlgorithmException {
+        OlogImpl cm = OlogImpl.getInstance();
+        String user = securityContext.getUserPrincipal() != null ? securityContext.getUserPrincipal().getName() : "";
+        try {
+            MultivaluedMap<String, String> matches = new MultivaluedMapImpl();
+            matches.putAll(uriInfo.getQueryParameters());
+            matches.putSingle("stream", "true");
+            Logs result = cm.findLogsByMultiMatch(matches);
+            Response r = Response.ok(result).build();
+            log.fine(user + "|" + uriInfo.getPath() + "|GET|OK|" + r.getStatus() + "|streams logs");
+            return r;
+        } catch (CFException e) {
+            log.warning(user + "|" + uriInfo.getPath() + "|GET|ERROR|"
+                    + e.getResponseStatusCode() +  "|cause=" + e);
+            return e.toResponse();
+        }
+    }
+
     /**
      * POST method for creating multiple log instances.
      *
@@ -113,6 +148,94 @@ public class LogsResource {
         }
     }
 
+    /**
+     * POST method for creating many log instances from a stream of
+     * newline delimited JSON, one log per line in the form written by GET
+     * with application/x-ndjson and by exports. Logs are validated and created in batches as they
+     * are read, so the request body is never held in memory as a whole.
+     * The response lists only the ids of the logs created. On an error the
+     * batches created before it stay committed: the response has the
+     * error status, and lists their ids with complete="false" and the
+     * error message.
+     *
+     * @param in request body
+     * @return HTTP Response
+     * @throws IOException when audit or log fail
+     */
+    @POST
+    @Consumes("application/x-ndjson")
+    @Produces({"application/xml", "application/json"})
+    public Response addStream(@Context HttpServletRequest req, InputStream in) throws IOException, UnsupportedEncodingException, NoSuchAlgorithmException, NamingException, RepositoryException {
+        OlogImpl cm = OlogImpl.getInstance();
+        UserManager um = UserManager.getInstance();
+        String hostAddress = req.getHeader("X-Forwarded-For") == null ? req.getRemoteAddr() : req.getHeader("X-Forwarded-For");
+        um.setUser(securityContext.getUserPrincipal(), securityContext.isUserInRole("Administrator"));
+        um.setHostAddress(hostAddress);
+        XmlCreatedLogs result = new XmlCreatedLogs();
+        int lineNumber = 0;
+        try {
+            JSONUnmarshaller unmarshaller = LogsWriter.getLineContext().createJSONUnmarshaller();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            Logs batch = new Logs();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                Log datum = unmarshaller.unmarshalFromJSON(new StringReader(line), Log.class);
+                datum.setOwner(um.getUserName());
+                batch.addLog(datum);
+                if (batch.size() >= LogManager.getBatchSize()) {
+                    result.addAll(addBatch(cm, um, batch));
+                    batch = new Logs();
+                }
+            }
+            if (!batch.isEmpty()) {
+                result.addAll(addBatch(cm, um, batch));
+            }
+            result.setComplete(true);
+            Response r = Response.ok(result).build();
+            audit.info(um.getUserName() + "|" + uriInfo.getPath() + "|POST|OK|" + r.getStatus()
+                    + "|created=" + createdToLogger(result));
+            return r;
+        } catch (JAXBException e) {
+            return partial(um, result, new CFException(Response.Status.BAD_REQUEST,
+                    "Invalid log on line " + lineNumber + ": " + e));
+        } catch (CFException e) {
+            return partial(um, result, e);
+        }
+    }
+
+    /**
+     * @return the error response of a streamed create that stopped midway
+     */
+    private Response partial(UserManager um, XmlCreatedLogs result, CFException e) {
+        log.warning(um.getUserName() + "|" + uriInfo.getPath() + "|POST|ERROR|" + e.getResponseStatusCode()
+                + "|created=" + createdToLogger(result) + "|cause=" + e);
+        if (result.getCount() == 0) {
+            return e.toResponse();
+        }
+        result.setMessage(e.getMessage());
+        return Response.status(e.getResponseStatusCode()).entity(result).build();
+    }
+
+    private static String createdToLogger(XmlCreatedLogs result) {
+        if (result.getCount() == 0) {
+            return "0";
+        }
+        return result.getCount() + " (" + result.getIds().get(0) + ".."
+                + result.getIds().get(result.getCount() - 1) + ")";
+    }
+
+    private Logs addBatch(OlogImpl cm, UserManager um, Logs batch) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
+        cm.checkValid(batch);
+        if (!um.userHasAdminRole()) {
+            cm.checkUserBelongsToGroup(um.getUserName(), batch);
+        }
+        return cm.createOrReplaceLogs(batch);
+    }
+
     /**
      * GET method for retrieving an instance of Log identified by <tt>id</tt>.
      *
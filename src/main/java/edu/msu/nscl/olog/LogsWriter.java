@@ -0,0 +1,238 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.jersey.api.json.JSONJAXBContext;
+import com.sun.jersey.api.json.JSONMarshaller;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.Providers;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Writes Logs as XML or JSON straight to the response, with the context of
+ * MyJAXBContextResolver, so the payload is the same as Jersey's own. A
+ * search result from LogManager is read batch by batch while it is written,
+ * so the first log goes out before the last one is loaded and only one
+ * batch is held at a time. The time to the first log and in total is logged
+ * at FINE, with the peak heap use while writing. The peak is that of the
+ * whole JVM, reset for each response, so it only measures the writer when
+ * responses do not overlap.
+ * <p>
+ * For application/x-ndjson each log is written as one JSON object per line,
+ * and flushed with every olog/logStreamBatchSize logs.
+ *
+ * @author berryman
+ */
+@Provider
+@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, LogsWriter.APPLICATION_NDJSON})
+public class LogsWriter implements MessageBodyWriter<Logs> {
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    public static final MediaType APPLICATION_NDJSON_TYPE = MediaType.valueOf(APPLICATION_NDJSON);
+    private static final Logger log = Logger.getLogger(LogsWriter.class.getName());
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final int flushSize = OlogConfig.getInt("olog/logStreamBatchSize", 100);
+    private static JSONJAXBContext lineContext;
+    @Context
+    private Providers providers;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return Logs.class.isAssignableFrom(type);
+    }
+
+    /**
+     * The length is only known once written.
+     */
+    @Override
+    public long getSize(Logs logs, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Logs logs, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        long start = System.currentTimeMillis();
+        String charset = mediaType.getParameters().get("charset");
+        if (charset == null) {
+            charset = DEFAULT_CHARSET;
+        }
+        boolean report = log.isLoggable(Level.FINE);
+        if (report) {
+            resetHeapPeak();
+        }
+        TimedOutputStream out = new TimedOutputStream(entityStream);
+        LogCounter counter = new LogCounter();
+        try {
+            if (mediaType.isCompatible(APPLICATION_NDJSON_TYPE)) {
+                writeLines(logs, new OutputStreamWriter(out, charset), counter);
+            } else if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                JAXBContext context = getContext(mediaType);
+                Marshaller marshaller = context.createMarshaller();
+                marshaller.setListener(counter);
+                Writer writer = new OutputStreamWriter(out, charset);
+                JSONJAXBContext.getJSONMarshaller(marshaller, context).marshallToJSON(logs, writer);
+                writer.flush();
+            } else {
+                Marshaller marshaller = getContext(mediaType).createMarshaller();
+                marshaller.setListener(counter);
+                marshaller.setProperty(Marshaller.JAXB_ENCODING, charset);
+                marshaller.marshal(logs, out);
+            }
+        } catch (JAXBException e) {
+            throw new WebApplicationException(e);
+        } finally {
+            logs.close();
+        }
+        if (report) {
+            log.log(Level.FINE, "Wrote {0} logs, first byte after {1} ms, all after {2} ms, peak heap {3} MB",
+                    new Object[]{counter.getCount(), out.getFirstWrite() - start,
+                        System.currentTimeMillis() - start, getHeapPeak() >> 20});
+        }
+    }
+
+    private static void writeLines(Logs logs, Writer writer, LogCounter counter) throws JAXBException, IOException {
+        JSONMarshaller marshaller = getLineContext().createJSONMarshaller();
+        for (Log item : logs.getStream()) {
+            marshaller.marshallToJSON(item, writer);
+            writer.write('\n');
+            counter.afterMarshal(item);
+            if (counter.getCount() % flushSize == 0) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+    }
+
+    private static void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Adds up the peaks of the heap pools. They need not peak at the same
+     * time, so this is an upper bound.
+     *
+     * @return bytes of heap used at most since resetHeapPeak()
+     */
+    private static long getHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            if (pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Lines hold the bare log object, without the "log" root.
+     *
+     * @return context for one log per line, as written and read by
+     * LogExport and LogImport and read by LogsResource.addStream too
+     */
+    static synchronized JSONJAXBContext getLineContext() throws JAXBException {
+        if (lineContext == null) {
+            lineContext = new JSONJAXBContext(JSONConfiguration.mapped().rootUnwrapping(true).build(), Log.class);
+        }
+        return lineContext;
+    }
+
+    private JAXBContext getContext(MediaType mediaType) throws JAXBException {
+        ContextResolver<JAXBContext> resolver = providers.getContextResolver(JAXBContext.class, mediaType);
+        JAXBContext context = resolver != null ? resolver.getContext(Logs.class) : null;
+        return context != null ? context : JAXBContext.newInstance(Logs.class);
+    }
+
+    /**
+     * Counts the logs written, as the number of a streamed result is only
+     * known once it has been read.
+     */
+    private static class LogCounter extends Marshaller.Listener {
+
+        private int count;
+
+        @Override
+        public void afterMarshal(Object source) {
+            if (source instanceof Log) {
+                count++;
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Notes when the first bytes are written.
+     */
+    private static class TimedOutputStream extends FilterOutputStream {
+
+        private long firstWrite;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getFirstWrite() {
+            return firstWrite != 0 ? firstWrite : System.currentTimeMillis();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            written();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written();
+            out.write(b, off, len);
+        }
+
+        private void written() {
+            if (firstWrite == 0) {
+                firstWrite = System.currentTimeMillis();
+            }
+        }
+    }
+}
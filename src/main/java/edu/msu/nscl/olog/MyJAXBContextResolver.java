@@ -24,7 +24,8 @@ public class MyJAXBContextResolver implements ContextResolver<JAXBContext> {
 
     private JAXBContext context;
     private List<Class<?>> types = Arrays.asList(Logs.class,
-            Logbooks.class, Tags.class, XmlAttachments.class, XmlProperties.class);
+            Logbooks.class, Tags.class, XmlAttachments.class, XmlProperties.class,
+            XmlCaches.class, Jobs.class, Job.class, XmlCreatedLogs.class);
 
     public MyJAXBContextResolver() throws Exception {
         this.context = new JSONJAXBContext(
@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Service settings looked up in JNDI, first as a global name (like
+ * olog/userManager) and then in the web application environment
+ * (java:/comp/env/...), falling back to a default.
+ *
+ * @author berryman
+ */
+public class OlogConfig {
+
+    private static final Logger log = Logger.getLogger(OlogConfig.class.getName());
+
+    private OlogConfig() {
+    }
+
+    /**
+     * Looks up a bound object, such as a datasource, without logging it.
+     *
+     * @param name JNDI name
+     * @return the object, or null if nothing is bound to the name
+     */
+    public static Object lookup(String name) {
+        try {
+            Context initCtx = new InitialContext();
+            try {
+                return initCtx.lookup(name);
+            } catch (NamingException e) {
+                return initCtx.lookup("java:/comp/env/" + name);
+            }
+        } catch (NamingException e) {
+            return null;
+        }
+    }
+
+    public static String getString(String name, String defaultValue) {
+        Object value = lookup(name);
+        if (value == null) {
+            log.log(Level.CONFIG, "Using default {0}: {1}", new Object[]{name, defaultValue});
+            return defaultValue;
+        }
+        log.log(Level.CONFIG, "Found {0}: {1}", new Object[]{name, value});
+        return value.toString();
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.log(Level.WARNING, "Invalid {0}: {1}, using {2}", new Object[]{name, value, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
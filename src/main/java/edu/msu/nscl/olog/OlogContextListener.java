@@ -64,8 +64,17 @@ public class OlogContextListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
-        JPAUtil.getEntityManagerFactory().close();
-        ((RepositoryImpl) repo.getRepository()).shutdown();
+        JobRunner.stop();
+        AttachmentStoreMigration.stop();
+        ThumbnailWorker.stop();
+        BlobCollector.stop();
+        CacheCoordinator.stop();
+        LogIndex.close();
+        JPAUtil.close();
+        JCRUtil.closeSessions();
+        if (JCRUtil.getRepository() != null) {
+            ((RepositoryImpl) JCRUtil.getRepository()).shutdown();
+        }
         System.out.println("Olog JCR and JPA Sessions have been removed");
 
     }
@@ -101,6 +110,12 @@ public class OlogContextListener implements ServletContextListener {
 			if (migrationPath == null || "migration".equals(migrationPath))
 				migrationPath = dbType.name() + File.separator + "migration";
             
+            // The repository is opened first: a migration backfills from it
+            if (OlogConfig.getBoolean("olog/jcrEnabled", true)) {
+                repo = new JCRUtil();
+                System.out.println("Olog JCR has been initialized: ");
+            }
+
             Flyway flyway = new Flyway();
             flyway.setLocations("db" + File.separator + migrationPath);
 			flyway.setDataSource(dataSource);
@@ -121,8 +136,12 @@ public class OlogContextListener implements ServletContextListener {
             flyway.migrate();
             System.out.println("Database is up to date: ");
 
-            repo = new JCRUtil();
-            System.out.println("Olog JCR has been initialized: ");
+            LogIndex.open();
+            CacheCoordinator.start();
+            ThumbnailWorker.start();
+            BlobCollector.start();
+            AttachmentStoreMigration.start();
+            JobRunner.start();
         } catch (CFException ex) {
             Logger.getLogger(OlogContextListener.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -104,7 +104,7 @@ public class OlogImpl {
      */
     public Logs findLogsByMultiMatch(MultivaluedMap<String, String> matches) throws CFException, RepositoryException, UnsupportedEncodingException, NoSuchAlgorithmException {
         //return FindLogsQuery.findLogsByMultiMatch(matches);
-        return LogManager.findLog(matches);
+        return LogManager.findLog(matches, true);
     }
 
     /**
@@ -555,26 +555,12 @@ public class OlogImpl {
      * @throws CFException on ownership mismatch, or wrapping an SQLException
      */
     public Logs createOrReplaceLogs(Logs logs) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
-        ListIterator<Log> iterator = logs.listIterator();
-        while (iterator.hasNext()) {
-            Log log = iterator.next();
-            iterator.set(createOneLog(log));
-        }
-        return (Logs) logs;
-    }
-
-    /**
-     * Create a new log using the logbook set in <tt>data</tt>.
-     *
-     * @param data Log data
-     * @throws CFException on ownership or name mismatch, or wrapping an
-     * SQLException
-     */
-    private Log createOneLog(Log data) throws CFException, UnsupportedEncodingException, NoSuchAlgorithmException {
         UserManager um = UserManager.getInstance();
-        data.setSource(um.getHostAddress());
-        data.setOwner(um.getUserName());
-        return LogManager.create(data);
+        for (Log log : logs) {
+            log.setSource(um.getHostAddress());
+            log.setOwner(um.getUserName());
+        }
+        return new Logs(LogManager.create(logs));
     }
 
     /**
@@ -892,8 +878,16 @@ public class OlogImpl {
         return AttachmentManager.findAll(logId);
     }
 
-    Attachment getAttachment(String filePath, String fileName) throws CFException {
-        return AttachmentManager.findAttachment(filePath, fileName);
+    AttachmentMetadata getAttachmentMetadata(Long logId, String fileName) throws CFException {
+        return AttachmentManager.findMetadata(logId, fileName);
+    }
+
+    Attachment getAttachment(AttachmentMetadata metadata) throws CFException {
+        return AttachmentManager.findAttachment(metadata);
+    }
+
+    Attachment getThumbnail(AttachmentMetadata metadata, int size) throws CFException {
+        return AttachmentManager.findThumbnail(metadata, size);
     }
 
     XmlAttachment createAttachment(Attachment attachment, Long logId) throws CFException {
@@ -16,7 +16,7 @@ import javax.ws.rs.core.Response;
  */
 public class PropertyManager {
 
-    private static EntityManager em = null;
+    private static final DictionaryCache<Property> ids = new DictionaryCache<Property>("properties", Property.class);
 
     private PropertyManager() {
     }
@@ -28,7 +28,7 @@ public class PropertyManager {
      * @throws CFException wrapping an SQLException
      */
     public static Set<Property> findAll() throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Property> cq = cb.createQuery(Property.class);
         Root<Property> from = cq.from(Property.class);
@@ -36,8 +36,8 @@ public class PropertyManager {
         Predicate statusPredicate = cb.equal(from.get(Property_.state), State.Active);
         select.where(statusPredicate);
         select.orderBy(cb.asc(from.get(Property_.name)));
-        TypedQuery<Property> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Property> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Set<Property> result = new HashSet<Property>();
             List<Property> rs = typedQuery.getResultList();
@@ -53,7 +53,7 @@ public class PropertyManager {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -64,7 +64,11 @@ public class PropertyManager {
      * @throws CFException wrapping an SQLException
      */
     public static Property findProperty(String propertyName) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        Property cached = ids.find(propertyName);
+        if (cached != null) {
+            return cached;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Property> cq = cb.createQuery(Property.class);
         Root<Property> from = cq.from(Property.class);
@@ -73,8 +77,8 @@ public class PropertyManager {
         //Predicate statusPredicate = cb.equal(from.get("state"), State.Active);
         select.where(namePredicate);
         select.orderBy(cb.asc(from.get(Property_.name)));
-        TypedQuery<Property> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Property> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Property result = null;
             List<Property> rs = typedQuery.getResultList();
@@ -85,12 +89,16 @@ public class PropertyManager {
                 }
             }
 
+            if (result != null) {
+                ids.cache(propertyName, result.getId());
+            }
+
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-            JPAUtil.finishTransacton(em);
+            JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -109,11 +117,13 @@ public class PropertyManager {
             if (property != null) {
                 property.setState(State.Active);
                 property = (Property) JPAUtil.update(property);
+                ids.invalidate(propertyName, property.getId());
                 return property;
             } else {
                 newProperty.setName(propertyName);
                 newProperty.setState(State.Active);
                 JPAUtil.save(newProperty);
+                ids.invalidate(propertyName, newProperty.getId());
                 return newProperty;
             }
         } catch (Exception e) {
@@ -146,12 +156,14 @@ public class PropertyManager {
             if (Inactiveproperty != null) {
                 Inactiveproperty.setState(State.Active);
                 Inactiveproperty = (Property) JPAUtil.update(Inactiveproperty);
+                ids.invalidate(property.getName(), Inactiveproperty.getId());
                 return Inactiveproperty;
             } else {
                 Property newProperty = new Property();
                 newProperty.setName(property.getName());
                 newProperty.setState(State.Active);
                 JPAUtil.save(newProperty);
+                ids.invalidate(property.getName(), newProperty.getId());
                 return newProperty;
             }
         } catch (Exception e) {
@@ -178,9 +190,11 @@ public class PropertyManager {
                     Attribute attribute = iterator.next();
                     attribute.setState(State.Inactive);
                     JPAUtil.update(attribute);
+                    AttributeManager.invalidate(propertyName, attribute.getName(), attribute.getId());
                 }
             }
             JPAUtil.update(property);
+            ids.invalidate(propertyName, property.getId());
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
@@ -0,0 +1,53 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/**
+ * Puts the connections of EclipseLink's read connection pool into JDBC
+ * read-only mode while a non-transactional read (see JPAUtil.startReadOnly)
+ * holds them, and hands them back to the container pool writable.
+ * <p>
+ * Connections acquired for a transaction belong to a client session and are
+ * left alone.
+ *
+ * @author berryman
+ */
+public class ReadOnlyConnectionListener extends SessionEventAdapter {
+
+    @Override
+    public void postAcquireConnection(SessionEvent event) {
+        if (event.getSession().isServerSession()) {
+            setReadOnly(event, true);
+        }
+    }
+
+    @Override
+    public void preReleaseConnection(SessionEvent event) {
+        if (event.getSession().isServerSession()) {
+            setReadOnly(event, false);
+        }
+    }
+
+    private void setReadOnly(SessionEvent event, boolean readOnly) {
+        Connection connection = ((Accessor) event.getResult()).getConnection();
+        if (connection == null) {
+            return;
+        }
+        try {
+            if (connection.isReadOnly() != readOnly) {
+                connection.setReadOnly(readOnly);
+            }
+        } catch (SQLException e) {
+            event.getSession().getSessionLog().logThrowable(SessionLog.WARNING, e);
+        }
+    }
+}
@@ -4,8 +4,13 @@
  */
 package edu.msu.nscl.olog;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -20,8 +25,8 @@ import javax.ws.rs.core.Response;
  * @author berryman
  */
 public class TagManager {
-    private static EntityManager em = null;
-    
+    private static final DictionaryCache<Tag> ids = new DictionaryCache<Tag>("tags", Tag.class);
+
     private TagManager() {
     }
     /**
@@ -31,7 +36,7 @@ public class TagManager {
      * @throws CFException wrapping an SQLException
      */
     public static Tags findAll() throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Tag> cq = cb.createQuery(Tag.class);
         Root<Tag> from = cq.from(Tag.class);
@@ -39,8 +44,8 @@ public class TagManager {
         Predicate statusPredicate = cb.equal(from.get("state"), State.Active);
         select.where(statusPredicate);
         select.orderBy(cb.asc(from.get("name")));
-        TypedQuery<Tag> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Tag> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Tags result = new Tags();
             List<Tag> rs = typedQuery.getResultList();
@@ -56,7 +61,7 @@ public class TagManager {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-           JPAUtil.finishTransacton(em);
+           JPAUtil.finishReadOnly(em);
         }
     }
 
@@ -67,7 +72,11 @@ public class TagManager {
      * @throws CFException wrapping an SQLException
      */
     public static Tag findTag(String name) throws CFException {
-        em = JPAUtil.getEntityManagerFactory().createEntityManager();
+        Tag cached = ids.find(name);
+        if (cached != null) {
+            return cached;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Tag> cq = cb.createQuery(Tag.class);
         Root<Tag> from = cq.from(Tag.class);
@@ -76,8 +85,8 @@ public class TagManager {
         //Predicate statusPredicate = cb.equal(from.get("state"), State.Active);
         select.where(namePredicate);
         select.orderBy(cb.asc(from.get("name")));
-        TypedQuery<Tag> typedQuery = em.createQuery(select);
-        JPAUtil.startTransaction(em);
+        TypedQuery<Tag> typedQuery = JPAUtil.readOnly(em.createQuery(select));
+        JPAUtil.startReadOnly(em);
         try {
             Tag result = null;
             List<Tag> rs = typedQuery.getResultList();
@@ -87,16 +96,60 @@ public class TagManager {
                     result = iterator.next();
                 }
             }
+            if (result != null) {
+                ids.cache(name, result.getId());
+            }
             
             return result;
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
         } finally {
-          JPAUtil.finishTransacton(em);
+          JPAUtil.finishReadOnly(em);
+        }
+    }
+
+    /**
+     * Finds tags by name, from the cache where it holds them and with
+     * one query for the rest.
+     *
+     * @param names tag names
+     * @return the tags that exist, by name
+     * @throws CFException wrapping a JPA exception
+     */
+    public static Map<String, Tag> findTags(Collection<String> names) throws CFException {
+        Map<String, Tag> result = new HashMap<String, Tag>();
+        Set<String> misses = new HashSet<String>();
+        for (String name : names) {
+            Tag cached = ids.find(name);
+            if (cached != null) {
+                result.put(name, cached);
+            } else {
+                misses.add(name);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        EntityManager em = JPAUtil.getEntityManager();
+        JPAUtil.startReadOnly(em);
+        try {
+            for (Tag tag : JPAUtil.readOnly(em.createQuery(
+                    "SELECT t FROM Tag t WHERE t.name IN :names", Tag.class))
+                    .setParameter("names", misses).getResultList()) {
+                result.put(tag.getName(), tag);
+                ids.cache(tag.getName(), tag.getId());
+            }
+            return result;
+        } catch (Exception e) {
+            throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
+                    "JPA exception: " + e);
+        } finally {
+            JPAUtil.finishReadOnly(em);
         }
     }
-            /**
+
+    /**
      * Creates a tag in the database.
      *
      * @param name name of tag
@@ -111,11 +164,13 @@ public class TagManager {
             if (tag != null) {
                 tag.setState(State.Active);
                 tag = (Tag)JPAUtil.update(tag);
+                ids.invalidate(name, tag.getId());
                 return tag;
             } else {
                 xmlTag.setName(name);
                 xmlTag.setState(State.Active);
                 JPAUtil.save(xmlTag);
+                ids.invalidate(name, xmlTag.getId());
                 return xmlTag;
             }    
         } catch (Exception e) {
@@ -136,6 +191,7 @@ public class TagManager {
                 Tag tag = findTag(name);
                 tag.setState(State.Inactive);
                 JPAUtil.update(tag);
+                ids.invalidate(name, tag.getId());
         } catch (Exception e) {
             throw new CFException(Response.Status.INTERNAL_SERVER_ERROR,
                     "JPA exception: " + e);
@@ -0,0 +1,172 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a tar archive file by file. After getNextEntry the stream reads the
+ * content of that file only; whatever is left of it is skipped by the next
+ * call.
+ *
+ * @author berryman
+ */
+public class TarInputStream extends FilterInputStream {
+
+    private static final int BLOCK = TarOutputStream.BLOCK;
+    private long size;
+    private long remaining;
+
+    public TarInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Moves to the next file.
+     *
+     * @return its path in the archive, or null at the end of the archive
+     * @throws IOException if the archive is damaged
+     */
+    public String getNextEntry() throws IOException {
+        skipFully(remaining + (BLOCK - size % BLOCK) % BLOCK);
+        size = 0;
+        remaining = 0;
+        byte[] header = new byte[BLOCK];
+        if (!readBlock(header)) {
+            return null;
+        }
+        if (isZero(header)) {
+            return null;
+        }
+        long recorded = parseOctal(header, 148, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        if (TarOutputStream.checksum(header) != recorded) {
+            throw new IOException("Damaged tar header");
+        }
+        String name = parseString(header, 0, 100);
+        String prefix = parseString(header, 345, 155);
+        if (new String(header, 257, 5, "US-ASCII").equals("ustar") && prefix.length() > 0) {
+            name = prefix + "/" + name;
+        }
+        size = parseOctal(header, 124, 12);
+        remaining = size;
+        return name;
+    }
+
+    /**
+     * @return size of the current file
+     */
+    public long getEntrySize() {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Tar archive ends within a file");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException("Tar archive ends within a file");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int read = 0;
+        while (read < block.length) {
+            int n = in.read(block, read, block.length - read);
+            if (n == -1) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Tar archive ends within a header");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Tar archive ends within a file");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String parseString(byte[] header, int offset, int length) throws IOException {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, "UTF-8");
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length) throws IOException {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && header[i] == ' ') {
+            i++;
+        }
+        long value = 0;
+        for (; i < end && header[i] != 0 && header[i] != ' '; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("Damaged tar header");
+            }
+            value = value * 8 + (header[i] - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a ustar archive of plain files, as read by tar(1) and
+ * TarInputStream. Each file is started with putNextEntry and must be
+ * written to exactly its size; names must fit the 100 byte name field.
+ *
+ * @author berryman
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+    static final int BLOCK = 512;
+    private static final long MAX_SIZE = 077777777777L;
+    private long size;
+    private long remaining;
+    private boolean inEntry;
+    private boolean closed;
+
+    public TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts a file, closing the previous one.
+     *
+     * @param name path in the archive
+     * @param size number of bytes that will be written
+     * @param modified modification time, in milliseconds
+     * @throws IOException if the name or size do not fit, or the previous
+     * file was not written to its size
+     */
+    public void putNextEntry(String name, long size, long modified) throws IOException {
+        closeEntry();
+        byte[] nameBytes = name.getBytes("UTF-8");
+        if (nameBytes.length > 100) {
+            throw new IOException("Name too long for a tar archive: " + name);
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IOException("Size " + size + " of " + name + " does not fit a tar archive");
+        }
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, modified / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        octal(header, 148, 7, checksum(header));
+        out.write(header);
+        this.size = size;
+        this.remaining = size;
+        this.inEntry = true;
+    }
+
+    /**
+     * Ends the current file, padding it to a whole block.
+     *
+     * @throws IOException if it was not written to its size
+     */
+    public void closeEntry() throws IOException {
+        if (!inEntry) {
+            return;
+        }
+        if (remaining != 0) {
+            throw new IOException("Tar entry is " + remaining + " bytes short");
+        }
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        out.write(new byte[padding]);
+        inEntry = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (remaining < 1) {
+            throw new IOException("Tar entry written past its size");
+        }
+        out.write(b);
+        remaining--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (remaining < len) {
+            throw new IOException("Tar entry written past its size");
+        }
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    /**
+     * Ends the archive, without closing the underlying stream.
+     *
+     * @throws IOException if the last file was not written to its size
+     */
+    public void finish() throws IOException {
+        closeEntry();
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    static long checksum(byte[] header) {
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        return sum;
+    }
+
+    /**
+     * Writes a zero padded octal number of <tt>length</tt> - 1 digits and a
+     * NUL.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int pad = length - 1 - digits.length();
+        for (int i = 0; i < length - 1; i++) {
+            header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+        }
+        header[offset + length - 1] = 0;
+    }
+}
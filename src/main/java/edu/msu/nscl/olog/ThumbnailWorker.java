@@ -0,0 +1,277 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import net.coobird.thumbnailator.Thumbnails;
+
+/**
+ * Makes attachment thumbnails in the background.
+ * <p>
+ * An upload of a jpeg, gif or png image is stored with its thumbnail
+ * pending and queued here; olog/thumbnailThreads workers take from a queue
+ * of at most olog/thumbnailQueueSize uploads. Each worker decodes the
+ * image once, subsampled so that it is about twice the largest size, and
+ * scales it to every size in olog/thumbnailSizes (comma separated, the
+ * first being the one served by default). Uploads that did not fit in the
+ * queue, failed, or were pending at shutdown are picked up again every
+ * olog/thumbnailRetryInterval seconds, until olog/thumbnailAttempts
+ * attempts have failed.
+ *
+ * @author berryman
+ */
+public class ThumbnailWorker {
+
+    private static final Logger log = Logger.getLogger(ThumbnailWorker.class.getName());
+    private static final int[] sizes = parseSizes(OlogConfig.getString("olog/thumbnailSizes", "80"));
+    private static final int threads = OlogConfig.getInt("olog/thumbnailThreads", 2);
+    private static final int queueSize = OlogConfig.getInt("olog/thumbnailQueueSize", 100);
+    private static final long retryInterval = OlogConfig.getLong("olog/thumbnailRetryInterval", 60);
+    private static final int maxAttempts = OlogConfig.getInt("olog/thumbnailAttempts", 3);
+    // Uploads queued or being worked on, as entry id/file name
+    private static final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static volatile ThreadPoolExecutor workers;
+    private static ScheduledExecutorService sweeper;
+
+    private ThumbnailWorker() {
+    }
+
+    private static int[] parseSizes(String list) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (String size : list.split(",")) {
+            try {
+                int s = Integer.parseInt(size.trim());
+                if (s > 0) {
+                    result.add(s);
+                }
+            } catch (NumberFormatException ex) {
+                log.log(Level.WARNING, "Ignoring thumbnail size {0}", size);
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(80);
+        }
+        int[] array = new int[result.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = result.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return the configured thumbnail sizes, the default one first
+     */
+    public static int[] getSizes() {
+        return sizes.clone();
+    }
+
+    /**
+     * @return the thumbnail size served when none is asked for
+     */
+    public static int getDefaultSize() {
+        return sizes[0];
+    }
+
+    /**
+     * @param fileName attachment file name
+     * @return whether a thumbnail is made for the file
+     */
+    public static boolean supports(String fileName) {
+        String format = format(fileName);
+        return format.equals("jpeg") || format.equals("jpg") || format.equals("gif") || format.equals("png");
+    }
+
+    private static String format(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    /**
+     * Starts the workers and the retry sweep.
+     */
+    public static synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        ThreadFactory factory = new ThreadFactory() {
+
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olog-thumbnail-" + (++count));
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), factory);
+        sweeper = Executors.newSingleThreadScheduledExecutor(factory);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (Exception ex) {
+                    log.log(Level.WARNING, "Could not list pending thumbnails", ex);
+                } finally {
+                    JPAUtil.closeEntityManager();
+                }
+            }
+        }, 0, retryInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the workers; unfinished thumbnails stay pending.
+     */
+    public static synchronized void stop() {
+        if (workers != null) {
+            sweeper.shutdownNow();
+            workers.shutdownNow();
+            workers = null;
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Queues the thumbnail of an attachment, unless it is queued already or
+     * the queue is full, in which case the next sweep picks it up.
+     *
+     * @param logId entry id
+     * @param fileName attachment file name
+     */
+    public static void submit(final Long logId, final String fileName) {
+        ThreadPoolExecutor pool = workers;
+        final String key = logId + "/" + fileName;
+        if (pool == null || !queued.add(key)) {
+            return;
+        }
+        try {
+            pool.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        generate(logId, fileName);
+                    } finally {
+                        queued.remove(key);
+                        JPAUtil.closeEntityManager();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            queued.remove(key);
+        }
+    }
+
+    private static void sweep() throws CFException {
+        ThreadPoolExecutor pool = workers;
+        if (pool == null) {
+            return;
+        }
+        int room = pool.getQueue().remainingCapacity();
+        if (room == 0) {
+            return;
+        }
+        for (AttachmentMetadata metadata : AttachmentManager.findPendingThumbnails(room + queued.size())) {
+            submit(metadata.getEntryId(), metadata.getFileName());
+        }
+    }
+
+    private static void generate(Long logId, String fileName) {
+        try {
+            String format = format(fileName);
+            Attachment attachment = AttachmentManager.findAttachment(logId, fileName);
+            BufferedImage image;
+            InputStream in = attachment.getContent();
+            try {
+                int largest = 0;
+                for (int size : sizes) {
+                    largest = Math.max(largest, size);
+                }
+                image = decode(in, largest);
+            } finally {
+                in.close();
+            }
+            Map<Integer, byte[]> thumbnails = new LinkedHashMap<Integer, byte[]>();
+            for (int size : sizes) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Thumbnails.of(image).size(size, size).outputFormat(format).toOutputStream(out);
+                thumbnails.put(size, out.toByteArray());
+            }
+            image.flush();
+            AttachmentManager.storeThumbnails(logId, fileName, "image/" + format, thumbnails);
+        } catch (Throwable ex) {
+            // Errors too, e.g. running out of memory on a huge image, count
+            // as attempts so that olog/thumbnailAttempts ends the retries
+            log.log(Level.WARNING, "Could not make thumbnail of " + logId + "/" + fileName, ex);
+            try {
+                AttachmentManager.thumbnailFailed(logId, fileName, maxAttempts);
+            } catch (CFException e) {
+                log.log(Level.WARNING, "Could not record thumbnail failure", e);
+            }
+            if (ex instanceof Error) {
+                throw (Error) ex;
+            }
+        }
+    }
+
+    /**
+     * Decodes the first image of <tt>in</tt>, reading only every n-th pixel
+     * of every n-th row, with n chosen so that the longer side is still at
+     * least twice <tt>target</tt>. Memory use then depends on the thumbnail
+     * size rather than on the image resolution.
+     */
+    private static BufferedImage decode(InputStream in, int target) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(in);
+        if (iis == null) {
+            throw new IOException("Cannot read image stream");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int longer = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longer / (2 * target));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 Michigan State University - Facility for Rare Isotope Beams
+ */
+package edu.msu.nscl.olog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Turns away uploads whose Content-Length is over the UploadLimits before
+ * their body is read, so that they are not first spooled by the multipart
+ * reader. The body of every upload is also counted against the limits
+ * while it is received, so one without a Content-Length (chunked) is cut
+ * off as soon as it goes over, and the bytes being received count towards
+ * olog/maxUploadsInFlight until the request is done.
+ *
+ * @author berryman
+ */
+public class UploadLimitFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        String method = req.getMethod();
+        if (method.equals("POST") || method.equals("PUT")) {
+            String length = req.getHeader("Content-Length");
+            if (length != null) {
+                try {
+                    UploadLimits.check(Long.valueOf(length.trim()));
+                } catch (NumberFormatException ex) {
+                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid Content-Length " + length);
+                    return;
+                } catch (CFException ex) {
+                    ((HttpServletResponse) response).sendError(ex.getResponseStatusCode(), ex.getMessage());
+                    return;
+                }
+            }
+            LimitedRequest limited = new LimitedRequest(req);
+            try {
+                chain.doFilter(limited, response);
+            } finally {
+                limited.close();
+            }
+            CFException failure = limited.getFailure();
+            if (failure != null && !response.isCommitted()) {
+                // Whatever the reader of the body made of the cut off stream
+                response.reset();
+                ((HttpServletResponse) response).sendError(failure.getResponseStatusCode(), failure.getMessage());
+            }
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * Request whose body is read through UploadLimits.
+     */
+    private static class LimitedRequest extends HttpServletRequestWrapper {
+
+        private UploadLimits.LimitedInputStream limited;
+        private ServletInputStream input;
+        private BufferedReader reader;
+
+        LimitedRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (input == null) {
+                limited = UploadLimits.limit(super.getInputStream());
+                input = new ServletInputStream() {
+
+                    @Override
+                    public int read() throws IOException {
+                        return limited.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        return limited.read(b, off, len);
+                    }
+
+                    @Override
+                    public long skip(long n) throws IOException {
+                        return limited.skip(n);
+                    }
+
+                    @Override
+                    public int available() throws IOException {
+                        return limited.available();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        limited.close();
+                    }
+                };
+            }
+            return input;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(),
+                        encoding != null ? encoding : "ISO-8859-1"));
+            }
+            return reader;
+        }
+
+        CFException getFailure() {
+            return limited != null ? limited.getFailure() : null;
+        }
+
+        /**
+         * Gives the bytes received back to the global limit.
+         */
+        void close() throws IOException {
+            if (limited != null) {
+                limited.close();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
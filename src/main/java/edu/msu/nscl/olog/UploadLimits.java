@@ -0,0 +1,206 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.Response;
+
+/**
+ * Size limits on attachment uploads.
+ * <p>
+ * olog/maxUploadSize bounds a single upload and olog/maxUploadsInFlight the
+ * bytes of all uploads being received at once, both counted as sent (so
+ * before base64 decoding). A request that declares a larger size is
+ * rejected before its body is read; one that does not, such as a chunked
+ * upload, is cut off by UploadLimitFilter as soon as it goes over.
+ *
+ * @author berryman
+ */
+public class UploadLimits {
+
+    public static final int HTTP_REQUEST_ENTITY_TOO_LARGE = 413;
+    public static final Response.StatusType REQUEST_ENTITY_TOO_LARGE = new Response.StatusType() {
+
+        @Override
+        public int getStatusCode() {
+            return HTTP_REQUEST_ENTITY_TOO_LARGE;
+        }
+
+        @Override
+        public Response.Status.Family getFamily() {
+            return Response.Status.Family.CLIENT_ERROR;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return "Request Entity Too Large";
+        }
+    };
+    private static final long maxUploadSize = OlogConfig.getLong("olog/maxUploadSize", 100L * 1024 * 1024);
+    private static final long maxUploadsInFlight = OlogConfig.getLong("olog/maxUploadsInFlight", 512L * 1024 * 1024);
+    private static final AtomicLong inFlight = new AtomicLong();
+
+    private UploadLimits() {
+    }
+
+    /**
+     * @return the largest upload accepted, in bytes
+     */
+    public static long getMaxUploadSize() {
+        return maxUploadSize;
+    }
+
+    /**
+     * @return bytes of the uploads being received
+     */
+    public static long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Rejects an upload by its declared size.
+     *
+     * @param size declared size in bytes, negative or null when unknown
+     * @throws CFException when the upload cannot be accepted
+     */
+    public static void check(Long size) throws CFException {
+        if (size == null || size < 0) {
+            return;
+        }
+        if (size > maxUploadSize) {
+            throw tooLarge(size);
+        }
+        if (inFlight.get() + size > maxUploadsInFlight) {
+            throw busy();
+        }
+    }
+
+    /**
+     * Wraps the content of an upload so that reading it fails once it goes
+     * over a limit. Closing the stream gives its bytes back to the global
+     * limit.
+     *
+     * @param in upload content
+     * @return the counted stream
+     */
+    public static LimitedInputStream limit(InputStream in) {
+        return new LimitedInputStream(in, true);
+    }
+
+    /**
+     * Wraps the content of an upload so that reading it fails once it goes
+     * over olog/maxUploadSize, without counting it against the global
+     * limit: for a part of a request UploadLimitFilter counts already.
+     *
+     * @param in upload content
+     * @return the counted stream
+     */
+    public static LimitedInputStream limitSize(InputStream in) {
+        return new LimitedInputStream(in, false);
+    }
+
+    private static CFException tooLarge(long size) {
+        return new CFException(REQUEST_ENTITY_TOO_LARGE,
+                "Upload of " + size + " bytes is over the limit of " + maxUploadSize + " bytes");
+    }
+
+    private static CFException busy() {
+        return new CFException(Response.Status.SERVICE_UNAVAILABLE,
+                "Too many uploads in progress, retry later");
+    }
+
+    /**
+     * Upload content counted against the limits.
+     */
+    public static class LimitedInputStream extends FilterInputStream {
+
+        private final boolean global;
+        private long count = 0;
+        // Bytes added to inFlight, given back on close
+        private long reserved = 0;
+        private boolean released = false;
+        private CFException failure;
+
+        private LimitedInputStream(InputStream in, boolean global) {
+            super(in);
+            this.global = global;
+        }
+
+        /**
+         * @return why reading was cut off, null if it was not
+         */
+        public CFException getFailure() {
+            return failure;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                counted(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            super.close();
+        }
+
+        private void counted(long n) throws IOException {
+            if (failure != null) {
+                throw new IOException(failure.getMessage());
+            }
+            count += n;
+            if (count > maxUploadSize) {
+                failure = tooLarge(count);
+            } else if (!global) {
+                return;
+            } else {
+                reserved += n;
+                if (inFlight.addAndGet(n) <= maxUploadsInFlight) {
+                    return;
+                }
+                failure = busy();
+            }
+            release();
+            throw new IOException(failure.getMessage());
+        }
+
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                inFlight.addAndGet(-reserved);
+            }
+        }
+    }
+}
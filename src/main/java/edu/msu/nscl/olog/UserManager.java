@@ -9,6 +9,8 @@ package edu.msu.nscl.olog;
 import java.security.Principal;
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.naming.InitialContext;
@@ -31,6 +33,18 @@ public abstract class UserManager {
     private static final String defaultUserManager = "edu.msu.nscl.olog.IDUserManager";
     private static final String userManager;
     private static UserManager instance;
+    private static final long negativeTTL = OlogConfig.getLong("olog/groupCacheNegativeTTL", 30) * 1000;
+    private static final ExpiringCache<String, Set<String>> groupCache = new ExpiringCache<String, Set<String>>("groups",
+            OlogConfig.getLong("olog/groupCacheTTL", 300) * 1000,
+            OlogConfig.getInt("olog/groupCacheSize", 1000)) {
+
+        @Override
+        protected long ttlFor(Set<String> groups) {
+            // Users without groups are kept shorter, so a fix in the
+            // directory is picked up quickly
+            return groups.isEmpty() ? negativeTTL : super.ttlFor(groups);
+        }
+    };
     
     static {
         String newManager = defaultUserManager;
@@ -75,6 +89,66 @@ public abstract class UserManager {
      */
     protected abstract Set<String> getGroups(Principal user);
 
+    /**
+     * Retrieves the group membership for the given principal through the
+     * group cache (olog/groupCacheTTL, olog/groupCacheNegativeTTL and
+     * olog/groupCacheSize). Concurrent requests of the same user share one
+     * call to getGroups.
+     *
+     * @param user a user
+     * @return the group names
+     */
+    protected Set<String> getCachedGroups(final Principal user) {
+        if (user == null) {
+            return getGroups(user);
+        }
+        userSeen(user.getName());
+        try {
+            return groupCache.get(user.getName(), new Callable<Set<String>>() {
+
+                @Override
+                public Set<String> call() {
+                    return getGroups(user);
+                }
+            });
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Error while retrieving group information for user '"
+                    + user.getName() + "'", ex.getCause());
+        }
+    }
+
+    /**
+     * Called on every group lookup through the cache; implementations that
+     * refresh memberships ahead of expiry use it to find the active users.
+     *
+     * @param userName user name
+     */
+    protected void userSeen(String userName) {
+    }
+
+    /**
+     * Stores freshly retrieved groups of <tt>userName</tt> in the cache.
+     *
+     * @param userName user name
+     * @param groups the group names
+     */
+    protected static void cacheGroups(String userName, Set<String> groups) {
+        groupCache.put(userName, groups);
+    }
+
+    /**
+     * Drops the cached groups of <tt>userName</tt>, or of all users if null,
+     * on every node.
+     *
+     * @param userName user name
+     */
+    public static void invalidateGroups(String userName) {
+        CacheCoordinator.invalidate(groupCache.getName(), userName);
+    }
+
     /**
      * Sets the (thread local) user principal to be used in further calls
      * and retrieves the group information.
@@ -85,7 +159,7 @@ public abstract class UserManager {
     public void setUser(Principal user, boolean isAdmin) {
         this.user.set(user);
         this.hasAdminRole.set(isAdmin);
-        this.groups.set(getGroups(user));
+        this.groups.set(getCachedGroups(user));
     }
 
     /**
@@ -19,6 +19,11 @@ import javax.xml.bind.annotation.XmlType;
 @XmlType
 @XmlRootElement(name = "attachment")
 public class XmlAttachment {
+    /** Thumbnail states */
+    public static final String THUMBNAIL_NONE = "false";
+    public static final String THUMBNAIL_READY = "true";
+    public static final String THUMBNAIL_PENDING = "pending";
+
     @XmlTransient
     protected String fileName;
 
@@ -26,7 +31,7 @@ public class XmlAttachment {
     protected String contentType;
     
     @XmlTransient
-    protected Boolean thumbnail;
+    protected String thumbnail;
     
     @XmlTransient
     protected Long fileSize;
@@ -35,7 +40,7 @@ public class XmlAttachment {
      * Creates a new instance of XmlAttachment
      */
     public XmlAttachment() {
-        this.thumbnail = false;
+        this.thumbnail = THUMBNAIL_NONE;
     }
 
     /**
@@ -84,17 +89,18 @@ public class XmlAttachment {
     }
     
         /**
-     * @return the thumbnail name
+     * @return "true" if a thumbnail can be fetched, "pending" while it is
+     * being generated, "false" otherwise
      */
-    public boolean getThumbnail() {
+    public String getThumbnail() {
         return thumbnail;
     }
 
     /**
-     * @param thumbnail name
-     *            the contentType to set
+     * @param thumbnail one of THUMBNAIL_NONE, THUMBNAIL_READY,
+     *            THUMBNAIL_PENDING
      */
-    public void setThumbnail(Boolean thumbnail) {
+    public void setThumbnail(String thumbnail) {
 	this.thumbnail = thumbnail;
     }
 
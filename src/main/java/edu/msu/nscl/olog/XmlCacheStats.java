@@ -0,0 +1,105 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Size and hit/miss counters of one cache, as represented in XML/JSON.
+ *
+ * @author berryman
+ */
+@XmlRootElement(name = "cache")
+public class XmlCacheStats {
+
+    private String name;
+    private int size;
+    private int maxSize;
+    private long ttl;
+    private long hits;
+    private long misses;
+    private long loads;
+    private long loadFailures;
+
+    /** Creates a new instance of XmlCacheStats. */
+    public XmlCacheStats() {
+    }
+
+    @XmlAttribute
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @XmlAttribute
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    @XmlAttribute
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return time to live of an entry, in seconds
+     */
+    @XmlAttribute
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    @XmlAttribute
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    @XmlAttribute
+    public long getMisses() {
+        return misses;
+    }
+
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+
+    @XmlAttribute
+    public long getLoads() {
+        return loads;
+    }
+
+    public void setLoads(long loads) {
+        this.loads = loads;
+    }
+
+    @XmlAttribute
+    public long getLoadFailures() {
+        return loadFailures;
+    }
+
+    public void setLoadFailures(long loadFailures) {
+        this.loadFailures = loadFailures;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Caches (collection) object that can be represented as XML/JSON in payload data.
+ *
+ * @author berryman
+ */
+@XmlRootElement(name = "caches")
+public class XmlCaches {
+
+    private Collection<XmlCacheStats> caches = new ArrayList<XmlCacheStats>();
+
+    /** Creates a new instance of XmlCaches. */
+    public XmlCaches() {
+    }
+
+    /**
+     * Returns a collection of XmlCacheStats.
+     *
+     * @return a collection of XmlCacheStats
+     */
+    @XmlElement(name = "cache")
+    public Collection<XmlCacheStats> getCaches() {
+        return caches;
+    }
+
+    /**
+     * Sets the collection of caches.
+     *
+     * @param items new cache collection
+     */
+    public void setCaches(Collection<XmlCacheStats> items) {
+        this.caches = items;
+    }
+
+    /**
+     * Adds a cache to the cache collection.
+     *
+     * @param item the XmlCacheStats to add
+     */
+    public void addXmlCacheStats(XmlCacheStats item) {
+        this.caches.add(item);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msu.nscl.olog;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Outcome of a streamed create (POST of application/x-ndjson to .../logs):
+ * the ids of the logs created, and, if the stream could not be read to the
+ * end, why. The batches created before a failure stay committed.
+ *
+ * @author berryman
+ */
+@XmlRootElement(name = "created")
+public class XmlCreatedLogs {
+
+    private List<Long> ids = new ArrayList<Long>();
+    private boolean complete;
+    private String message;
+
+    /** Creates a new instance of XmlCreatedLogs. */
+    public XmlCreatedLogs() {
+    }
+
+    /**
+     * @return number of logs created
+     */
+    @XmlAttribute
+    public int getCount() {
+        return ids.size();
+    }
+
+    /**
+     * @return whether every log of the stream was created
+     */
+    @XmlAttribute
+    public boolean getComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @return why the rest of the stream was not created
+     */
+    @XmlElement
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return ids of the logs created, in stream order
+     */
+    @XmlElement(name = "id")
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<Long> ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Adds the ids of a created batch.
+     *
+     * @param logs created logs
+     */
+    public void addAll(List<Log> logs) {
+        for (Log log : logs) {
+            ids.add(log.getId());
+        }
+    }
+}
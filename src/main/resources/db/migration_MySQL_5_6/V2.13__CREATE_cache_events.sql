@@ -0,0 +1,11 @@
+CREATE TABLE `cache_events` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `node` varchar(64) NOT NULL,
+  `cache_name` varchar(64) NOT NULL DEFAULT '',
+  `cache_key` varchar(250) NOT NULL DEFAULT '',
+  `entity` varchar(64) NOT NULL DEFAULT '',
+  `entity_id` bigint(20) NOT NULL DEFAULT 0,
+  `created` datetime NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `cache_events_created_idx` (`created`)
+) ENGINE=InnoDB;
@@ -0,0 +1,3 @@
+ALTER TABLE `attachments` ADD COLUMN `thumbnail_pending` tinyint(1) NOT NULL DEFAULT 0 AFTER `thumbnail`;
+ALTER TABLE `attachments` ADD COLUMN `thumbnail_attempts` int(11) NOT NULL DEFAULT 0 AFTER `thumbnail_pending`;
+ALTER TABLE `attachments` ADD INDEX `attachments_thumbnail_pending_idx` (`thumbnail_pending`);
@@ -0,0 +1,2 @@
+ALTER TABLE `jobs` ADD COLUMN `node` varchar(64) DEFAULT NULL AFTER `message`;
+ALTER TABLE `jobs` ADD COLUMN `heartbeat` datetime DEFAULT NULL AFTER `node`;
@@ -0,0 +1 @@
+ALTER TABLE `entries` ADD INDEX `entries_created_id_idx` (`created`, `id`);
@@ -0,0 +1,14 @@
+CREATE TABLE `attachments` (
+  `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+  `entry_id` int(11) unsigned NOT NULL,
+  `file_name` varchar(250) NOT NULL,
+  `mime_type` varchar(250) NOT NULL,
+  `file_size` bigint(20) NOT NULL,
+  `thumbnail` tinyint(1) NOT NULL DEFAULT 0,
+  `content_hash` char(64) DEFAULT NULL,
+  `path` varchar(500) NOT NULL,
+  `created` datetime NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `attachments_entry_file_idx` (`entry_id`, `file_name`),
+  KEY `attachments_hash_idx` (`content_hash`)
+) ENGINE=InnoDB;
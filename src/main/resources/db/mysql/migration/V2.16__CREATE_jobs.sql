@@ -0,0 +1,19 @@
+CREATE TABLE `jobs` (
+  `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+  `type` varchar(20) NOT NULL,
+  `status` varchar(20) NOT NULL,
+  `owner` varchar(50) NOT NULL,
+  `logbook` varchar(45) DEFAULT NULL,
+  `path` varchar(250) NOT NULL,
+  `position` bigint(20) NOT NULL DEFAULT 0,
+  `parts` int(11) NOT NULL DEFAULT 0,
+  `entries` bigint(20) NOT NULL DEFAULT 0,
+  `attachments` bigint(20) NOT NULL DEFAULT 0,
+  `skipped` bigint(20) NOT NULL DEFAULT 0,
+  `total` bigint(20) DEFAULT NULL,
+  `message` varchar(1000) DEFAULT NULL,
+  `created` datetime NOT NULL,
+  `modified` datetime NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `jobs_status_idx` (`status`)
+) ENGINE=InnoDB;
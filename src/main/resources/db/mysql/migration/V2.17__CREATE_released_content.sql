@@ -0,0 +1,7 @@
+CREATE TABLE `released_content` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `content_hash` char(64) NOT NULL,
+  `path` varchar(500) NOT NULL,
+  `released` datetime NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB;
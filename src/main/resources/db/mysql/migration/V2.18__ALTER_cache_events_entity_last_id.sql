@@ -0,0 +1 @@
+ALTER TABLE `cache_events` ADD COLUMN `entity_last_id` bigint(20) NOT NULL DEFAULT 0 AFTER `entity_id`;
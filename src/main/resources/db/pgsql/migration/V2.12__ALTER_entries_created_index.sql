@@ -0,0 +1 @@
+CREATE INDEX entries_created_id_idx ON entries (created, id);
@@ -0,0 +1,12 @@
+CREATE TABLE cache_events (
+  id BIGSERIAL,
+  node VARCHAR(64) NOT NULL,
+  cache_name VARCHAR(64) NOT NULL DEFAULT '',
+  cache_key VARCHAR(250) NOT NULL DEFAULT '',
+  entity VARCHAR(64) NOT NULL DEFAULT '',
+  entity_id BIGINT NOT NULL DEFAULT 0,
+  created TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
+
+CREATE INDEX cache_events_created_idx ON cache_events (created);
@@ -0,0 +1,15 @@
+CREATE TABLE attachments (
+  id SERIAL,
+  entry_id INTEGER NOT NULL,
+  file_name VARCHAR(250) NOT NULL,
+  mime_type VARCHAR(250) NOT NULL,
+  file_size BIGINT NOT NULL,
+  thumbnail BOOLEAN NOT NULL DEFAULT FALSE,
+  content_hash CHAR(64),
+  path VARCHAR(500) NOT NULL,
+  created TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
+
+CREATE UNIQUE INDEX attachments_entry_file_idx ON attachments (entry_id, file_name);
+CREATE INDEX attachments_hash_idx ON attachments (content_hash);
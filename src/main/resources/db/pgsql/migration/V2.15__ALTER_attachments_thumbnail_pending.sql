@@ -0,0 +1,3 @@
+ALTER TABLE attachments ADD COLUMN thumbnail_pending BOOLEAN NOT NULL DEFAULT FALSE;
+ALTER TABLE attachments ADD COLUMN thumbnail_attempts INTEGER NOT NULL DEFAULT 0;
+CREATE INDEX attachments_thumbnail_pending_idx ON attachments (thumbnail_pending);
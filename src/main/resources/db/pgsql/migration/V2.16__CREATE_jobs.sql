@@ -0,0 +1,20 @@
+CREATE TABLE jobs (
+  id SERIAL,
+  type VARCHAR(20) NOT NULL,
+  status VARCHAR(20) NOT NULL,
+  owner VARCHAR(50) NOT NULL,
+  logbook VARCHAR(45) DEFAULT NULL,
+  path VARCHAR(250) NOT NULL,
+  position BIGINT NOT NULL DEFAULT 0,
+  parts INTEGER NOT NULL DEFAULT 0,
+  entries BIGINT NOT NULL DEFAULT 0,
+  attachments BIGINT NOT NULL DEFAULT 0,
+  skipped BIGINT NOT NULL DEFAULT 0,
+  total BIGINT DEFAULT NULL,
+  message VARCHAR(1000) DEFAULT NULL,
+  created TIMESTAMP NOT NULL,
+  modified TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
+
+CREATE INDEX jobs_status_idx ON jobs (status);
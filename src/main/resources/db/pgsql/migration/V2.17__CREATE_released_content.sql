@@ -0,0 +1,7 @@
+CREATE TABLE released_content (
+  id BIGSERIAL,
+  content_hash CHAR(64) NOT NULL,
+  path VARCHAR(500) NOT NULL,
+  released TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
@@ -0,0 +1 @@
+ALTER TABLE cache_events ADD COLUMN entity_last_id BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,2 @@
+ALTER TABLE jobs ADD COLUMN node VARCHAR(64) DEFAULT NULL;
+ALTER TABLE jobs ADD COLUMN heartbeat TIMESTAMP DEFAULT NULL;